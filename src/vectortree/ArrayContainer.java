@@ -0,0 +1,243 @@
+package vectortree;
+
+import java.util.Arrays;
+
+/*
+ * leaf container holding its values as a sorted array, two bytes a value
+ *
+ * an add beyond MAX_ARRAY_SIZE values turns the container into a bitmap, or
+ * into runs if they are smaller.
+ */
+public class ArrayContainer implements LeafContainer {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	// an array this many times longer than the values it is intersected
+	// with is searched instead of merged
+	private static final int GALLOP_RATIO = 32;
+
+	// members
+	private char[] _values;
+	private int _cardinality;
+
+
+	public ArrayContainer() {
+		_values = new char[INITIAL_CAPACITY];
+	}
+
+	public ArrayContainer(LeafContainer other) {
+		_values = new char[Math.max(INITIAL_CAPACITY, other.getCardinality())];
+		_cardinality = other.copyTo(_values);
+	}
+
+	/*
+	 * copies the first count of the given sorted values, which may be more
+	 * than MAX_ARRAY_SIZE until the container is compacted
+	 */
+	ArrayContainer(char[] values, int count) {
+		_values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, count));
+		_cardinality = count;
+	}
+
+	/*
+	 * @return int - the index of the first value at or after from that is
+	 *               not less than value
+	 */
+	private int lowerBound(int from, int value) {
+		int low = from;
+		int high = _cardinality;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (_values[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public int getCardinality() {
+		return _cardinality;
+	}
+
+	@Override
+	public boolean contains(int value) {
+		int index = lowerBound(0, value);
+		return (index < _cardinality) && (_values[index] == value);
+	}
+
+	@Override
+	public LeafContainer add(int value) {
+		int index = lowerBound(0, value);
+		if ((index < _cardinality) && (_values[index] == value)) {
+			return this;
+		}
+
+		if (_cardinality == MAX_ARRAY_SIZE) {
+			BitmapContainer bitmap = new BitmapContainer(this);
+			bitmap.add(value);
+			return LeafContainer.compact(bitmap);
+		}
+
+		if (_cardinality == _values.length) {
+			_values = Arrays.copyOf(_values, Math.min(MAX_ARRAY_SIZE, 2 * _values.length));
+		}
+
+		System.arraycopy(_values, index, _values, index + 1, _cardinality - index);
+		_values[index] = (char)value;
+		_cardinality++;
+
+		return this;
+	}
+
+	@Override
+	public LeafContainer remove(int value) {
+		int index = lowerBound(0, value);
+		if ((index == _cardinality) || (_values[index] != value)) {
+			return this;
+		}
+
+		System.arraycopy(_values, index + 1, _values, index, _cardinality - index - 1);
+		_cardinality--;
+
+		return this;
+	}
+
+	@Override
+	public int getNumberOfRuns() {
+		int runs = 0;
+		for (int i = 0; i < _cardinality; i++) {
+			if ((i == 0) || (_values[i] != _values[i - 1] + 1)) {
+				runs++;
+			}
+		}
+		return runs;
+	}
+
+	@Override
+	public int getSizeInBytes() {
+		return Character.BYTES * _cardinality;
+	}
+
+	@Override
+	public int countIn(int from, int to) {
+		return lowerBound(0, to) - lowerBound(0, from);
+	}
+
+	@Override
+	public long getChildWord(int from, int to, int child_bits) {
+		long bits = 0;
+
+		int index = lowerBound(0, from);
+		while ((index < _cardinality) && (_values[index] < to)) {
+			int child = (_values[index] - from) >>> child_bits;
+			bits |= 1L << child;
+
+			// skip the other values of the same child
+			index = (child_bits == 0) ? index + 1 : lowerBound(index + 1, from + ((child + 1) << child_bits));
+		}
+
+		return bits;
+	}
+
+	@Override
+	public int copyTo(char[] values) {
+		System.arraycopy(_values, 0, values, 0, _cardinality);
+		return _cardinality;
+	}
+
+	@Override
+	public void copyTo(long[] words) {
+		Arrays.fill(words, 0L);
+		for (int i = 0; i < _cardinality; i++) {
+			words[_values[i] >>> 6] |= 1L << _values[i];
+		}
+	}
+
+	/*
+	 * merges with the values, or gallops through this array if it is much
+	 * the longer of the two
+	 */
+	@Override
+	public int retainIn(char[] values, int count) {
+		int kept = 0;
+		int index = 0;
+
+		if (_cardinality > GALLOP_RATIO * count) {
+			for (int i = 0; (i < count) && (index < _cardinality); i++) {
+				char value = values[i];
+				index = gallop(index, value);
+				if ((index < _cardinality) && (_values[index] == value)) {
+					values[kept++] = value;
+				}
+			}
+			return kept;
+		}
+
+		int i = 0;
+		while ((i < count) && (index < _cardinality)) {
+			char value = values[i];
+			char other = _values[index];
+			if (value == other) {
+				values[kept++] = value;
+				i++;
+				index++;
+			} else if (value < other) {
+				i++;
+			} else {
+				index++;
+			}
+		}
+		return kept;
+	}
+
+	/*
+	 * @return int - the index of the first value at or after from that is
+	 *               not less than value, found by doubling steps
+	 */
+	private int gallop(int from, int value) {
+		int step = 1;
+		int high = from;
+		while ((high < _cardinality) && (_values[high] < value)) {
+			from = high + 1;
+			high += step;
+			step <<= 1;
+		}
+
+		int low = from;
+		high = Math.min(high, _cardinality);
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (_values[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * builds the mask of each word from the values falling into it
+	 */
+	@Override
+	public boolean retainIn(long[] words) {
+		long survivors = 0;
+
+		int index = 0;
+		for (int word = 0; word < BITMAP_WORDS; word++) {
+			long mask = 0;
+			while ((index < _cardinality) && ((_values[index] >>> 6) == word)) {
+				mask |= 1L << _values[index];
+				index++;
+			}
+
+			words[word] &= mask;
+			survivors |= words[word];
+		}
+
+		return survivors != 0;
+	}
+}
@@ -0,0 +1,236 @@
+package vectortree;
+
+/*
+ * leaf container holding its values as a bitmap of BITMAP_WORDS words
+ *
+ * a remove down to MAX_ARRAY_SIZE values turns the container into an array.
+ * ANDing two bitmaps is a plain loop over their words, which the JIT
+ * unrolls and vectorizes.
+ */
+public class BitmapContainer implements LeafContainer {
+
+	// members
+	private long[] _words;
+	private int _cardinality;
+
+
+	public BitmapContainer() {
+		_words = new long[BITMAP_WORDS];
+	}
+
+	public BitmapContainer(LeafContainer other) {
+		_words = new long[BITMAP_WORDS];
+		other.copyTo(_words);
+		_cardinality = other.getCardinality();
+	}
+
+	@Override
+	public int getCardinality() {
+		return _cardinality;
+	}
+
+	@Override
+	public boolean contains(int value) {
+		return ((_words[value >>> 6] >>> value) & 1) != 0;
+	}
+
+	@Override
+	public LeafContainer add(int value) {
+		long word = _words[value >>> 6];
+		long updated_word = word | (1L << value);
+
+		if (updated_word != word) {
+			_words[value >>> 6] = updated_word;
+			_cardinality++;
+		}
+
+		return this;
+	}
+
+	@Override
+	public LeafContainer remove(int value) {
+		long word = _words[value >>> 6];
+		long updated_word = word & ~(1L << value);
+
+		if (updated_word == word) {
+			return this;
+		}
+
+		_words[value >>> 6] = updated_word;
+		_cardinality--;
+
+		return (_cardinality <= MAX_ARRAY_SIZE) ? new ArrayContainer(this) : this;
+	}
+
+	/*
+	 * counts the set bits whose lower neighbour is clear
+	 */
+	@Override
+	public int getNumberOfRuns() {
+		int runs = 0;
+		long previous = 0;
+		for (long word : _words) {
+			runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+			previous = word;
+		}
+		return runs;
+	}
+
+	@Override
+	public int getSizeInBytes() {
+		return BITMAP_BYTES;
+	}
+
+	@Override
+	public int countIn(int from, int to) {
+		if (from >= to) {
+			return 0;
+		}
+
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long first_mask = ~0L << from;
+		long last_mask = ~0L >>> (63 - ((to - 1) & 63));
+
+		if (first == last) {
+			return Long.bitCount(_words[first] & first_mask & last_mask);
+		}
+
+		int count = Long.bitCount(_words[first] & first_mask);
+		for (int word = first + 1; word < last; word++) {
+			count += Long.bitCount(_words[word]);
+		}
+		return count + Long.bitCount(_words[last] & last_mask);
+	}
+
+	/*
+	 * from is a multiple of (1 << child_bits), so a child narrower than a
+	 * word lies within one word, and a wider one covers whole words
+	 */
+	@Override
+	public long getChildWord(int from, int to, int child_bits) {
+
+		// the offsets are the bits themselves
+		if (child_bits == 0) {
+			long word = _words[from >>> 6] >>> from;
+			int width = to - from;
+			return (width == Long.SIZE) ? word : word & ((1L << width) - 1);
+		}
+
+		long bits = 0;
+		int child_size = 1 << child_bits;
+
+		if (child_bits < 6) {
+			long child_mask = (1L << child_size) - 1;
+			for (int start = from, child = 0; start < to; start += child_size, child++) {
+				if (((_words[start >>> 6] >>> start) & child_mask) != 0) {
+					bits |= 1L << child;
+				}
+			}
+			return bits;
+		}
+
+		for (int start = from, child = 0; start < to; start += child_size, child++) {
+			long any = 0;
+			for (int word = start >>> 6; word < (start + child_size) >>> 6; word++) {
+				any |= _words[word];
+			}
+			if (any != 0) {
+				bits |= 1L << child;
+			}
+		}
+		return bits;
+	}
+
+	@Override
+	public int copyTo(char[] values) {
+		int count = 0;
+		for (int word = 0; word < BITMAP_WORDS; word++) {
+			long bits = _words[word];
+			while (bits != 0) {
+				values[count++] = (char)((word << 6) + Long.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void copyTo(long[] words) {
+		System.arraycopy(_words, 0, words, 0, BITMAP_WORDS);
+	}
+
+	/*
+	 * looks every value up, keeping it without a branch
+	 */
+	@Override
+	public int retainIn(char[] values, int count) {
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			char value = values[i];
+			values[kept] = value;
+			kept += (int)(_words[value >>> 6] >>> value) & 1;
+		}
+		return kept;
+	}
+
+	@Override
+	public boolean retainIn(long[] words) {
+		long survivors = 0;
+		for (int word = 0; word < BITMAP_WORDS; word++) {
+			words[word] &= _words[word];
+			survivors |= words[word];
+		}
+		return survivors != 0;
+	}
+
+	/*
+	 * sets the bits of [from, to) in a bitmap
+	 */
+	static void setRange(long[] words, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long first_mask = ~0L << from;
+		long last_mask = ~0L >>> (63 - ((to - 1) & 63));
+
+		if (first == last) {
+			words[first] |= first_mask & last_mask;
+			return;
+		}
+
+		words[first] |= first_mask;
+		for (int word = first + 1; word < last; word++) {
+			words[word] = ~0L;
+		}
+		words[last] |= last_mask;
+	}
+
+	/*
+	 * clears the bits of [from, to) in a bitmap
+	 */
+	static void clearRange(long[] words, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long first_mask = ~0L << from;
+		long last_mask = ~0L >>> (63 - ((to - 1) & 63));
+
+		if (first == last) {
+			words[first] &= ~(first_mask & last_mask);
+			return;
+		}
+
+		words[first] &= ~first_mask;
+		for (int word = first + 1; word < last; word++) {
+			words[word] = 0;
+		}
+		words[last] &= ~last_mask;
+	}
+}
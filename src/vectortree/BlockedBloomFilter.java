@@ -0,0 +1,181 @@
+package vectortree;
+
+import java.util.Random;
+
+/*
+ * cache-line-blocked bloom filter
+ *
+ * the filter is split into 512-bit blocks, one cache line each. a key first
+ * hashes to a block, and all of its bits are then set within that block, so
+ * add and query touch a single cache line instead of one per hash function.
+ * filters smaller than a block use a single, smaller block.
+ */
+public class BlockedBloomFilter implements KeyFilter {
+
+	// words per block, 8 x 64 bits = 512 bits
+	private static final int BLOCK_WORDS = 8;
+
+	// bits of the filter, packed 64 to a word
+	private long[] bits;
+
+	private int blockWords;
+	private int numberOfBlocks;
+
+	// log2 of the number of bits in a block
+	private int blockShift;
+
+	private int numberOfHashFunctions;
+
+	// per-filter salt, derived from the seed
+	private long salt;
+
+
+	public BlockedBloomFilter(long seed, int filter_size, int expected_number_of_objects) {
+		int words = Math.max(1, (filter_size + Long.SIZE - 1) / Long.SIZE);
+
+		blockWords = Math.min(BLOCK_WORDS, Integer.highestOneBit(words));
+		numberOfBlocks = (words + blockWords - 1) / blockWords;
+		blockShift = Integer.numberOfTrailingZeros(blockWords * Long.SIZE);
+		bits = new long[numberOfBlocks * blockWords];
+
+		salt = new Random(seed).nextLong();
+
+		numberOfHashFunctions = (int) Math.floor(Math.log(2) * filter_size / expected_number_of_objects);
+		if (numberOfHashFunctions == 0) numberOfHashFunctions = 1;
+	}
+
+	/*
+	 * creates an empty filter sharing the hash parameters of the prototype
+	 */
+	private BlockedBloomFilter(BlockedBloomFilter prototype) {
+		bits = new long[prototype.bits.length];
+		blockWords = prototype.blockWords;
+		numberOfBlocks = prototype.numberOfBlocks;
+		blockShift = prototype.blockShift;
+		numberOfHashFunctions = prototype.numberOfHashFunctions;
+		salt = prototype.salt;
+	}
+
+	public KeyFilter emptyCopy() {
+		return new BlockedBloomFilter(this);
+	}
+
+	/*
+	 * murmur3 64-bit finalizer
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public void add(int key) {
+		long h = mix(key ^ salt);
+
+		// the high half picks the block, the low half the bits within it
+		int base = (int) (((h >>> 32) * numberOfBlocks) >>> 32) * blockWords;
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 16) | 1;
+
+		for (int i = 0; i < numberOfHashFunctions; i++) {
+			int bit = (h1 + i * h2) & ((1 << blockShift) - 1);
+			bits[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean query(int key) {
+		long h = mix(key ^ salt);
+
+		int base = (int) (((h >>> 32) * numberOfBlocks) >>> 32) * blockWords;
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 16) | 1;
+
+		for (int i = 0; i < numberOfHashFunctions; i++) {
+			int bit = (h1 + i * h2) & ((1 << blockShift) - 1);
+			if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * plain bloom filters cannot forget keys
+	 */
+	public boolean remove(int key) {
+		return false;
+	}
+
+	public int getNumberOfHashFunctions() {
+		return numberOfHashFunctions;
+	}
+
+	/*
+	 * the positions of a key within its block never repeat, since h2 is odd
+	 */
+	public int getMinimumKeyBits() {
+		return numberOfHashFunctions;
+	}
+
+	public long[] getWords() {
+		return bits;
+	}
+
+	public int getWordCount() {
+		return bits.length;
+	}
+
+	public long getWord(int index) {
+		return bits[index];
+	}
+
+	/*
+	 * compares insert throughput and false-positive rate of the blocked
+	 * filter against BloomFilter, in both hashing modes, at the same size
+	 */
+	public static void main(String[] args) {
+		int filter_size = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 24;
+		int number_of_keys = (args.length > 1) ? Integer.parseInt(args[1]) : 1 << 21;
+		int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		Random r = new Random(42);
+		int[] keys = new int[number_of_keys];
+		for (int i = 0; i < number_of_keys; i++)
+			keys[i] = r.nextInt(Integer.MAX_VALUE / 2);
+
+		// keys from the upper half of the range were never inserted
+		int[] absent = new int[number_of_keys];
+		for (int i = 0; i < number_of_keys; i++)
+			absent[i] = Integer.MAX_VALUE / 2 + r.nextInt(Integer.MAX_VALUE / 2);
+
+		System.out.println("filter\tinsert ms\tMkeys/s\tfalse positive rate");
+
+		for (int n = 0; n < repetitions; n++) {
+			KeyFilter[] filters = {
+					new BloomFilter(1l, filter_size, number_of_keys),
+					new BloomFilter(1l, filter_size, number_of_keys, true),
+					new BlockedBloomFilter(1l, filter_size, number_of_keys) };
+			String[] names = { "modular", "fast", "blocked" };
+
+			for (int f = 0; f < filters.length; f++) {
+				KeyFilter filter = filters[f];
+
+				long start = System.nanoTime();
+				for (int key : keys)
+					filter.add(key);
+				long duration = System.nanoTime() - start;
+
+				int false_positives = 0;
+				for (int key : absent)
+					if (filter.query(key))
+						false_positives++;
+
+				System.out.println(names[f] + "\t" + (duration / 1000000.0) + "\t"
+						+ (number_of_keys / (duration / 1000.0)) + "\t"
+						+ ((double) false_positives / number_of_keys));
+			}
+		}
+	}
+}
@@ -2,12 +2,12 @@ package vectortree;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Random;
 
-public class BloomFilter {
+public class BloomFilter implements KeyFilter {
 
-	private BitSet bitSet;
+	// bits of the filter, packed 64 to a word
+	private long[] bits;
 
 	// expected number of objects to be stored in the filter
 	private int expectedNumberOfObjects;
@@ -18,66 +18,212 @@ public class BloomFilter {
 	// the size of the bit set, in bits.
 	private int filterSize;
 
-	// random number generator
-	private Random r = new Random();
+	// random number generator, only needed while deriving hash parameters
+	private Random r;
 
-	// hash function factors
+	// hash function factors, modular hashing only
 	private long [][] hashFunctions;
 
+	private int numberOfHashFunctions;
+
+	// whether to hash with one 64-bit mixer and double hashing instead of
+	// modular arithmetic over bigPrime
+	private boolean fastHashing;
+
+	// per-filter salt for fast hashing, derived from the seed
+	private long salt;
+
+	// whether the positions of a key may repeat, which they do not in fast
+	// mode at power-of-two sizes, see reduce(), and the fewest distinct ones
+	// of any key added
+	private boolean repeatingPositions;
+	private int minimumKeyBits;
+
 
 	public BloomFilter(long seed, int filter_size, int expected_number_of_objects) {
-		r.setSeed(seed);
+		this(seed, filter_size, expected_number_of_objects, false);
+	}
+
+	/*
+	 * filters built with the same seed, size and hashing mode set the same
+	 * bits for a key, and can therefore be intersected
+	 */
+	public BloomFilter(long seed, int filter_size, int expected_number_of_objects, boolean fast_hashing) {
+		r = new Random(seed);
 
-		bitSet = new BitSet(filter_size);
+		bits = new long[(filter_size + Long.SIZE - 1) / Long.SIZE];
 		this.filterSize = filter_size;
 		this.expectedNumberOfObjects = expected_number_of_objects;
-		bigPrime = getPrimeLargerThan(filter_size);
+		this.fastHashing = fast_hashing;
+
+		if (fast_hashing) {
+			// no prime search needed, just a salt
+			salt = r.nextLong();
+			numberOfHashFunctions = computeNumberOfHashFunctions();
+		} else {
+			bigPrime = getPrimeLargerThan(filter_size);
+			initializeHashFunctions();
+		}
+
+		repeatingPositions = (fast_hashing == false) || ((filter_size & (filter_size - 1)) != 0);
+		minimumKeyBits = numberOfHashFunctions;
 
-		initializeHashFunctions();
+		r = null;
+	}
+
+	/*
+	 * creates an empty filter sharing the hash parameters of the prototype
+	 */
+	private BloomFilter(BloomFilter prototype) {
+		bits = new long[prototype.bits.length];
+		filterSize = prototype.filterSize;
+		expectedNumberOfObjects = prototype.expectedNumberOfObjects;
+		bigPrime = prototype.bigPrime;
+		hashFunctions = prototype.hashFunctions;
+		numberOfHashFunctions = prototype.numberOfHashFunctions;
+		fastHashing = prototype.fastHashing;
+		salt = prototype.salt;
+		repeatingPositions = prototype.repeatingPositions;
+		minimumKeyBits = numberOfHashFunctions;
+	}
+
+	public KeyFilter emptyCopy() {
+		return new BloomFilter(this);
 	}
 
 	public void add(int key) {
 		
-//		System.err.println("BEFORE: " + this.bitSet);
+//		System.err.println("ADDING: " + key + " (FUNCTIONS: " + numberOfHashFunctions + ")");
 		
-//		System.err.println("ADDING: " + key + " (FUNCTIONS: " + hashFunctions.length + ")");
-		
-		for (long [] h : hashFunctions) {
-			int i = hash(h, (long) key);
-			bitSet.set(i);
+		if (fastHashing) {
+			long h = mix(key ^ salt);
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+
+			for (int n = 0; n < numberOfHashFunctions; n++) {
+				int i = reduce(h1 + n * h2);
+				bits[i >>> 6] |= 1L << i;
+			}
+		} else {
+			for (long [] h : hashFunctions) {
+				int i = hash(h, (long) key);
+				bits[i >>> 6] |= 1L << i;
+			}
 		}
-		
-//		System.err.println("AFTER: " + this.bitSet);
+
+		if (repeatingPositions) {
+			countKeyBits(key);
+		}
+	}
+
+	/*
+	 * lowers minimumKeyBits to the distinct positions of the key, if it has
+	 * fewer, as two hash functions may map it onto the same bit
+	 */
+	private void countKeyBits(int key) {
+		int distinct = 0;
+		for (int n = 0; n < numberOfHashFunctions; n++) {
+			int i = getPosition(key, n);
+
+			boolean repeated = false;
+			for (int m = 0; (m < n) && (repeated == false); m++) {
+				repeated = (getPosition(key, m) == i);
+			}
+			if (repeated == false) {
+				distinct++;
+			}
+		}
+
+		minimumKeyBits = Math.min(minimumKeyBits, distinct);
+	}
+
+	/*
+	 * @return int - the bit the n-th hash function maps the key onto
+	 */
+	int getPosition(int key, int n) {
+		if (fastHashing) {
+			long h = mix(key ^ salt);
+			return reduce((int) h + n * ((int) (h >>> 32) | 1));
+		}
+
+		return hash(hashFunctions[n], (long) key);
 	}
 
 	public boolean query(int key) {
+		if (fastHashing) {
+			long h = mix(key ^ salt);
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+
+			for (int n = 0; n < numberOfHashFunctions; n++) {
+				int i = reduce(h1 + n * h2);
+				if ((bits[i >>> 6] & (1L << i)) == 0)
+					return false;
+			}
+			return true;
+		}
+
 		for (long [] h : hashFunctions) {
 			int i = hash(h, (long) key);
-			if (!bitSet.get(i))
+			if ((bits[i >>> 6] & (1L << i)) == 0)
 				return false;
 		}
 		return true;
 	}
 
+	/*
+	 * murmur3 64-bit finalizer
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * maps a 32-bit hash onto [0, filterSize) with a multiply and shift
+	 *
+	 * power-of-two sizes keep the low bits instead: since h2 is odd, the
+	 * positions h1 + n * h2 of a key are then all distinct, so a key sets
+	 * exactly numberOfHashFunctions bits, as getMinimumKeyBits() reports.
+	 */
+	private int reduce(int h) {
+		if ((filterSize & (filterSize - 1)) == 0) {
+			return h & (filterSize - 1);
+		}
+		return (int) (((h & 0xffffffffL) * filterSize) >>> 32);
+	}
+
 	public int intersect(BloomFilter other) {
-		BitSet intersection = (BitSet) this.bitSet.clone();
-		intersection.and(other.bitSet);
-		return (intersection.cardinality() / hashFunctions.length);
+		int words = Math.min(bits.length, other.bits.length);
+		int cardinality = 0;
+		for (int w = 0; w < words; w++)
+			cardinality += Long.bitCount(bits[w] & other.bits[w]);
+		return (cardinality / numberOfHashFunctions);
 	}
 
-	private void initializeHashFunctions() {
+	private int computeNumberOfHashFunctions() {
 		int number_of_hash_functions;
 
-		int big_prime_int = (int) bigPrime;
-
 		number_of_hash_functions = (int) Math.floor(Math.log(2) * filterSize / expectedNumberOfObjects);
 
-//		trace("a: " + Math.log(2) + ", fs: " + filterSize + ", bss: " + bitSet.size() + ", eno: " 
+//		trace("a: " + Math.log(2) + ", fs: " + filterSize + ", eno: " 
 //				+ expectedNumberOfObjects + ", number_of_hash_functions: " + number_of_hash_functions);
 
 		if (number_of_hash_functions == 0) number_of_hash_functions = 1;
 
-		hashFunctions = new long[number_of_hash_functions][2];
+		return number_of_hash_functions;
+	}
+
+	private void initializeHashFunctions() {
+		int big_prime_int = (int) bigPrime;
+
+		numberOfHashFunctions = computeNumberOfHashFunctions();
+
+		hashFunctions = new long[numberOfHashFunctions][2];
 		for (long [] h : hashFunctions) {
 			h[0] = (long) r.nextInt(big_prime_int) + 1;
 			h[1] = (long) r.nextInt(big_prime_int) + 1;
@@ -113,17 +259,55 @@ public class BloomFilter {
 		
 		BloomFilter initial_filter = bloom_filters.get(0);
 
-		BitSet intersection = (BitSet) initial_filter.bitSet.clone();
-
-		for (BloomFilter bloom_filter : bloom_filters) {
-			intersection.and(bloom_filter.bitSet);
-			
-//			System.out.println("mway:   " + intersection.cardinality());
+		int words = initial_filter.bits.length;
+		for (BloomFilter bloom_filter : bloom_filters)
+			words = Math.min(words, bloom_filter.bits.length);
+
+		// AND one word across all filters at a time, without copying
+		int cardinality = 0;
+		for (int w = 0; w < words; w++) {
+			long intersection = initial_filter.bits[w];
+			for (int f = 1; f < bloom_filters.size() && intersection != 0; f++)
+				intersection &= bloom_filters.get(f).bits[w];
+			cardinality += Long.bitCount(intersection);
 		}
-//		trace("Results in: " + intersection.cardinality()  + " / " + initial_filter.hashFunctions.length +
-//				" = " + (intersection.cardinality() / initial_filter.hashFunctions.length));
 		
-		return (intersection.cardinality() / initial_filter.hashFunctions.length);
+		return (cardinality / initial_filter.numberOfHashFunctions);
+	}
+
+	/*
+	 * plain bloom filters cannot forget keys
+	 */
+	public boolean remove(int key) {
+		return false;
+	}
+
+	/*
+	 * @return boolean - whether two hash functions may map a key onto the
+	 *                   same bit, see reduce()
+	 */
+	boolean repeatsPositions() {
+		return repeatingPositions;
+	}
+
+	public int getNumberOfHashFunctions() {
+		return numberOfHashFunctions;
+	}
+
+	public int getMinimumKeyBits() {
+		return minimumKeyBits;
+	}
+
+	public long[] getWords() {
+		return bits;
+	}
+
+	public int getWordCount() {
+		return bits.length;
+	}
+
+	public long getWord(int index) {
+		return bits[index];
 	}
 
 	public static void trace(String msg) {
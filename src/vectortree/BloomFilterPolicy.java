@@ -0,0 +1,414 @@
+package vectortree;
+
+/*
+ * decides, per depth, whether the bloom filters of a node are worth
+ * checking before its vectors are intersected, over the course of one
+ * intersection
+ *
+ * a check that prunes a node saves the traversal of its subtree; a check
+ * that does not prune is paid on top of that traversal. the cost of a
+ * check, and that of visiting a node at each depth, leaves included, are
+ * timed on a sample of calls, and the size of a subtree is estimated from
+ * the offsets surviving the nodes visited at each depth below it. once a
+ * depth has seen WARM_UP_CHECKS checks, its filters are only checked while
+ * they prune at least the share of nodes at which the two cancel out, and
+ * are kept as long as too little has been timed below the depth to tell.
+ *
+ * the choice at every PROBE_INTERVAL-th node of a depth is the other one:
+ * the filters of a depth that has been given up on are checked, deciding
+ * anew each time, and those of a depth that is checked are not, so that
+ * subtrees below it are timed even if its filters prune nearly every node.
+ * all counts are halved as they grow, so that a depth whose pruning rate
+ * changes further along is taken up again.
+ *
+ * a policy is used by one thread at a time. each task of a parallel
+ * intersection, and each split of a stream, counts into a policy forked
+ * from that of its parent, which starts from the choices made so far; a
+ * task adds the counts of its subtasks once it has joined them, and the
+ * policy of an intersection that has finished adds its counts to the one
+ * the config keeps, see VectorTreeConfig.getLearnedBloomFilterPolicy(),
+ * from which the next intersection forks. only forking from and adding to
+ * a policy synchronize.
+ */
+class BloomFilterPolicy {
+
+	// checks at a depth before its filters may be given up on, and checks
+	// between two decisions after that
+	static final int WARM_UP_CHECKS = 256;
+	static final int DECISION_INTERVAL = 64;
+
+	// one in this many checks and visits is timed, at random so as not to
+	// fall into step with the traversal, and a cost is only estimated from
+	// at least MIN_SAMPLES of them; all are timed at a depth short of those
+	// samples. must be a power of two
+	static final int SAMPLE_INTERVAL = 32;
+	static final int MIN_SAMPLES = 8;
+
+	// at one in this many nodes of a depth, its filters are checked if they
+	// have been given up on, and not checked otherwise; must be a power of
+	// two
+	static final int PROBE_INTERVAL = 64;
+
+	// counts are halved once they reach this
+	static final int DECAY_LIMIT = 1 << 16;
+
+	// members
+	private boolean _adaptive;
+	private int _height;
+
+	// the policy the counts are added to once the intersection is finished,
+	// null if there is none or they have been added
+	private BloomFilterPolicy _learned;
+
+	// the shallowest depth keeping filters; nothing above it is tracked
+	private int _filter_depth;
+
+	// state of the random choice of the calls timed
+	private int _sample_state = 0x9e3779b9;
+
+	// per depth: filter checks, those that pruned the node, and the time
+	// taken by the sampled ones
+	private int[] _checks;
+	private int[] _prunes;
+	private int[] _check_samples;
+	private long[] _check_nanos;
+
+	// per depth: nodes whose vectors were intersected, the offsets
+	// surviving them, and the time taken by the sampled ones
+	private int[] _visits;
+	private int[] _children;
+	private int[] _visit_samples;
+	private long[] _visit_nanos;
+
+	// per depth: whether its filters have been given up on, and the nodes
+	// at which the choice was made
+	private boolean[] _skipping;
+	private int[] _choices;
+
+
+	/*
+	 * a policy that is not adaptive checks the filters of every depth below
+	 * max_bloom_level, as a plain intersection does
+	 */
+	BloomFilterPolicy(int height, int max_bloom_level, boolean adaptive) {
+		_adaptive = adaptive;
+		_height = height;
+		_filter_depth = max_bloom_level + 1;
+
+		_checks = new int[height];
+		_prunes = new int[height];
+		_check_samples = new int[height];
+		_check_nanos = new long[height];
+		_visits = new int[height];
+		_children = new int[height];
+		_visit_samples = new int[height];
+		_visit_nanos = new long[height];
+		_skipping = new boolean[height];
+		_choices = new int[height];
+	}
+
+	/*
+	 * filters are kept between max_bloom_level and the leaves; an adaptive
+	 * policy starts from what the intersections of trees of the same config
+	 * have learned
+	 *
+	 * @return BloomFilterPolicy - a policy for an intersection of trees of
+	 *                             the given config and height, null if it
+	 *                             uses no bloom filters or there are none
+	 */
+	static BloomFilterPolicy create(int height, VectorTreeConfig config, boolean use_bloom_filter) {
+		int max_bloom_level = config.getMaxBloomLevel();
+		if ((use_bloom_filter == false) || (max_bloom_level + 1 >= height - 1)) {
+			return null;
+		}
+
+		if (config.adaptsBloomFilters() == false) {
+			return new BloomFilterPolicy(height, max_bloom_level, false);
+		}
+
+		BloomFilterPolicy learned = config.getLearnedBloomFilterPolicy(height);
+		BloomFilterPolicy policy = learned.fork();
+		policy._learned = learned;
+		return policy;
+	}
+
+	/*
+	 * @return BloomFilterPolicy - a policy without counts, making the choices
+	 *                             this one has made until it counts enough
+	 *                             to choose anew, and adding its counts to
+	 *                             the same policy once finished
+	 */
+	synchronized BloomFilterPolicy fork() {
+		BloomFilterPolicy policy = new BloomFilterPolicy(_height, _filter_depth - 1, _adaptive);
+		policy._learned = _learned;
+		System.arraycopy(_skipping, 0, policy._skipping, 0, _height);
+
+		// each fork times its own sample of calls
+		policy._sample_state = nextSampleState();
+
+		return policy;
+	}
+
+	/*
+	 * adds the counts of a policy forked from this one, or from the same
+	 * learned policy, and chooses anew at every depth that has counted
+	 * enough checks
+	 */
+	synchronized void join(BloomFilterPolicy other) {
+		for (int depth = 0; depth < _height; depth++) {
+			_checks[depth] += other._checks[depth];
+			_prunes[depth] += other._prunes[depth];
+			while (_checks[depth] >= DECAY_LIMIT) {
+				_checks[depth] >>>= 1;
+				_prunes[depth] >>>= 1;
+			}
+
+			_check_samples[depth] += other._check_samples[depth];
+			_check_nanos[depth] += other._check_nanos[depth];
+			while (_check_samples[depth] >= DECAY_LIMIT) {
+				_check_samples[depth] >>>= 1;
+				_check_nanos[depth] >>>= 1;
+			}
+
+			_visits[depth] += other._visits[depth];
+			_children[depth] += other._children[depth];
+			while (_visits[depth] >= DECAY_LIMIT) {
+				_visits[depth] >>>= 1;
+				_children[depth] >>>= 1;
+			}
+
+			_visit_samples[depth] += other._visit_samples[depth];
+			_visit_nanos[depth] += other._visit_nanos[depth];
+			while (_visit_samples[depth] >= DECAY_LIMIT) {
+				_visit_samples[depth] >>>= 1;
+				_visit_nanos[depth] >>>= 1;
+			}
+		}
+
+		// the cost of a node depends on the choices below it
+		if (_adaptive) {
+			for (int depth = _height - 2; depth >= _filter_depth; depth--) {
+				if (_checks[depth] >= WARM_UP_CHECKS) {
+					_skipping[depth] = (isWorthChecking(depth) == false);
+				}
+			}
+		}
+	}
+
+	/*
+	 * adds the counts of a finished intersection, or of its part covered by
+	 * a stream split, to the learned policy it was forked from, if any; has
+	 * no effect after the first call
+	 */
+	void finish() {
+		if (_learned != null) {
+			_learned.join(this);
+			_learned = null;
+		}
+	}
+
+	/*
+	 * @return long - the current time if the check or visit about to start
+	 *                at this depth is to be timed, 0 otherwise
+	 */
+	long startClock(int depth) {
+		if ((_adaptive == false) || (depth < _filter_depth)) {
+			return 0;
+		}
+
+		if ((_visit_samples[depth] < MIN_SAMPLES) || ((_checks[depth] > 0) && (_check_samples[depth] < MIN_SAMPLES))) {
+			return System.nanoTime();
+		}
+
+		return ((nextSampleState() & (SAMPLE_INTERVAL - 1)) == 0) ? System.nanoTime() : 0;
+	}
+
+	/*
+	 * xorshift
+	 */
+	private int nextSampleState() {
+		int state = _sample_state;
+		state ^= state << 13;
+		state ^= state >>> 17;
+		state ^= state << 5;
+		_sample_state = state;
+		return state;
+	}
+
+	/*
+	 * counts a node whose filters are left out into stats, unless it is
+	 * null
+	 *
+	 * @return boolean - whether the filters of the next node at this depth
+	 *                   are to be checked
+	 */
+	boolean shouldCheck(int depth, IntersectionStats stats) {
+		if (_adaptive == false) {
+			return true;
+		}
+
+		boolean probe = ((++_choices[depth] & (PROBE_INTERVAL - 1)) == 0);
+		if (_skipping[depth] == probe) {
+			return true;
+		}
+
+		if (stats != null) {
+			stats.countBloomSkip(depth);
+		}
+		return false;
+	}
+
+	/*
+	 * intersects the filters collected for a node at this depth since
+	 * started, as returned by startClock(depth), of which there are none if the
+	 * node of a tree has no filter, counting the check here and into stats,
+	 * unless it is null
+	 *
+	 * @return boolean - whether enough bits survive the intersection to
+	 *                   hold a single key
+	 */
+	boolean hasSurvivors(int depth, KeyFilter[] bloom_filters, int count, long started, IntersectionStats stats) {
+
+		// a missing node, or one without a filter, holds no keys, so nothing
+		// can survive; a common key sets at least the distinct bits each
+		// filter guarantees
+		int min_bits = 0;
+		for (int f = 0; f < count; f++) {
+			min_bits = Math.max(min_bits, bloom_filters[f].getMinimumKeyBits());
+		}
+		boolean survivors = (count > 0) && KeyFilter.hasSurvivors(bloom_filters, count, min_bits);
+
+		if (started != 0) {
+			_check_nanos[depth] += System.nanoTime() - started;
+			if (++_check_samples[depth] >= DECAY_LIMIT) {
+				_check_samples[depth] >>>= 1;
+				_check_nanos[depth] >>>= 1;
+			}
+		}
+		countCheck(depth, survivors == false);
+
+		if (stats != null) {
+			stats.countBloomCheck(depth);
+			if (survivors == false) {
+				stats.countBloomHit(depth);
+			}
+		}
+
+		return survivors;
+	}
+
+	/*
+	 * counts a filter check at this depth, and decides anew whether the
+	 * depth is worth checking
+	 */
+	private void countCheck(int depth, boolean pruned) {
+
+		int checks = ++_checks[depth];
+		if (pruned) {
+			_prunes[depth]++;
+		}
+
+		if (checks >= DECAY_LIMIT) {
+			_checks[depth] = checks >>> 1;
+			_prunes[depth] >>>= 1;
+		}
+
+		if (_adaptive && (checks >= WARM_UP_CHECKS) && (_skipping[depth] || ((checks % DECISION_INTERVAL) == 0))) {
+			_skipping[depth] = (isWorthChecking(depth) == false);
+		}
+	}
+
+	/*
+	 * counts a node at this depth whose vectors were intersected into the
+	 * given survivors since started, as returned by startClock(depth); leaves
+	 * are counted at their depth as well, and need no survivors
+	 */
+	void countVisit(int depth, long[] survivors, long started) {
+		if ((_adaptive == false) || (depth < _filter_depth)) {
+			return;
+		}
+
+		if (started != 0) {
+			_visit_nanos[depth] += System.nanoTime() - started;
+			if (++_visit_samples[depth] >= DECAY_LIMIT) {
+				_visit_samples[depth] >>>= 1;
+				_visit_nanos[depth] >>>= 1;
+			}
+		}
+
+		if (depth == _height - 1) {
+			return;
+		}
+
+		int children = 0;
+		for (long word : survivors) {
+			children += Long.bitCount(word);
+		}
+
+		if (++_visits[depth] >= DECAY_LIMIT) {
+			_visits[depth] >>>= 1;
+			_children[depth] >>>= 1;
+		}
+		_children[depth] += children;
+	}
+
+	/*
+	 * a check pays off if the share of nodes it prunes, times the cost of
+	 * visiting them and their subtrees, outweighs its own cost
+	 */
+	private boolean isWorthChecking(int depth) {
+		if (_check_samples[depth] < MIN_SAMPLES) {
+			return true;
+		}
+
+		// cost of a node, including its subtree, from the leaves up; the
+		// filters of a depth that is checked stop a share of its nodes
+		double node = 0;
+		for (int d = _height - 1; d > depth; d--) {
+			if (_visit_samples[d] < MIN_SAMPLES) {
+				return true;
+			}
+
+			node = getVisitCost(d, node);
+			if ((_skipping[d] == false) && (_check_samples[d] >= MIN_SAMPLES)) {
+				node = getCheckCost(d) + node * (_checks[d] - _prunes[d]) / _checks[d];
+			}
+		}
+
+		if (_visit_samples[depth] < MIN_SAMPLES) {
+			return true;
+		}
+
+		return _prunes[depth] * getVisitCost(depth, node) >= _checks[depth] * getCheckCost(depth);
+	}
+
+	/*
+	 * @return double - the time to visit a node at this depth, and each of
+	 *                  its children at the given cost
+	 */
+	private double getVisitCost(int depth, double child_cost) {
+		double visit = (double)_visit_nanos[depth] / _visit_samples[depth];
+		if (depth == _height - 1) {
+			return visit;
+		}
+
+		return visit + child_cost * _children[depth] / _visits[depth];
+	}
+
+	private double getCheckCost(int depth) {
+		return (double)_check_nanos[depth] / _check_samples[depth];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int depth = 0; depth < _height; depth++) {
+			if (_checks[depth] > 0) {
+				builder.append("depth ").append(depth)
+						.append(": ").append(_prunes[depth]).append("/").append(_checks[depth]).append(" pruned")
+						.append(_skipping[depth] ? ", probing" : "").append("\n");
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,882 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * vector tree whose bottom levels are replaced by roaring-style containers
+ *
+ * the levels above the low 16 bits of the key are vector nodes as in
+ * VectorTree, with their counters and bloom filters. the keys sharing their
+ * upper 16 bits are kept in one LeafContainer, held by the deepest vector
+ * node under the offset those bits end in. a container moves between array,
+ * bitmap and run form as keys come and go, so a sparse region costs two
+ * bytes a key and a dense one at most a bitmap of 8 KB, where a VectorTree
+ * keeps a node with its table entry for every 2^bits_per_level keys. the
+ * upper 16 bits must fall on a level boundary, so the fan-out is 1, 2, 4 or
+ * 8 bits per level.
+ *
+ * the intersections of VectorTree, sequential, parallel, streamed or
+ * counted, on a list of container trees only traverse the vector levels,
+ * with their filters, and AND the containers below each surviving offset of
+ * the deepest of them directly, see ContainerVectorTreeIterator; parallel
+ * ones only split the vector levels. the node accessors serve the levels
+ * below from the containers, so that the trees also take part in
+ * intersections alongside heap trees. a list mixing the two is intersected
+ * over the vectors derived from the containers, without their kernels, and
+ * without any bloom filters, since the container trees have none below the
+ * vector levels.
+ */
+public class ContainerVectorTree extends VectorTree {
+
+	private static final int VALUE_MASK = (1 << LeafContainer.VALUE_BITS) - 1;
+
+	private static int num_sets = 4;
+	private static int set_size = 1000000;
+	private static double set_density = 0.2;
+	private static double set_overlap = 0.2;
+	private static int repetitions = 10;
+
+	// settings of the trees built by the benchmark
+	private static VectorTreeConfig benchmark_config = VectorTreeConfig.DEFAULT;
+
+	// members
+
+	// the depth at which node prefixes are the upper 16 bits of their keys,
+	// whose nodes are replaced by containers, and the depth of the vector
+	// nodes holding them
+	private int _container_depth;
+	private int _holder_depth;
+
+
+	public ContainerVectorTree() {
+		this(true);
+	}
+
+	public ContainerVectorTree(boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT, maintain_bloom_filters);
+	}
+
+	public ContainerVectorTree(int bits_per_level, boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT.withBitsPerLevel(bits_per_level), maintain_bloom_filters);
+	}
+
+	public ContainerVectorTree(VectorTreeConfig config, boolean maintain_bloom_filters) {
+		super(config, maintain_bloom_filters, 0);
+
+		if (config.compressesPaths()) {
+			throw new IllegalArgumentException("container trees do not compress paths");
+		}
+		if (LeafContainer.VALUE_BITS % config.getBitsPerLevel() != 0) {
+			throw new IllegalArgumentException("container trees need a fan-out dividing " + LeafContainer.VALUE_BITS + " bits");
+		}
+
+		// the vector levels live in the node table of VectorTree, which
+		// holds the root already
+		_container_depth = _height - LeafContainer.VALUE_BITS / _bits_per_level;
+		_holder_depth = _container_depth - 1;
+	}
+
+	public static ContainerVectorTree bulkLoad(int[] sorted_keys, Record[] records) {
+		return bulkLoad(sorted_keys, records, true);
+	}
+
+	public static ContainerVectorTree bulkLoad(int[] sorted_keys, Record[] records, boolean maintain_bloom_filters) {
+		return bulkLoad(sorted_keys, records, maintain_bloom_filters, VectorTreeConfig.DEFAULT);
+	}
+
+	/*
+	 * builds a tree from non-negative keys sorted in ascending order, as
+	 * VectorTree.bulkLoad does; the keys of each container are collected
+	 * first, so that it is created in its smallest form at once
+	 */
+	public static ContainerVectorTree bulkLoad(
+			int[] sorted_keys,
+			Record[] records,
+			boolean maintain_bloom_filters,
+			VectorTreeConfig config) {
+
+		ContainerVectorTree tree = new ContainerVectorTree(config, maintain_bloom_filters);
+		tree.loadSorted(sorted_keys, records);
+		return tree;
+	}
+
+	private void loadSorted(int[] sorted_keys, Record[] records) {
+		if ((sorted_keys.length > 0) && (sorted_keys[0] < 0)) {
+			throw new IllegalArgumentException("keys must be non-negative");
+		}
+
+		HashMap<Integer, ArrayList<Record>> all_registrants = getRegistrants();
+		char[] values = new char[1 << LeafContainer.VALUE_BITS];
+
+		int from = 0;
+		while (from < sorted_keys.length) {
+			int first_key = sorted_keys[from];
+			int upper = first_key >>> LeafContainer.VALUE_BITS;
+
+			// collect the distinct keys of the container
+			int count = 0;
+			int to = from;
+			ArrayList<Record> registrants = null;
+			for (; (to < sorted_keys.length) && ((sorted_keys[to] >>> LeafContainer.VALUE_BITS) == upper); to++) {
+				int key = sorted_keys[to];
+				Record record = (records == null) ? null : records[to];
+
+				if ((to > 0) && (key < sorted_keys[to - 1])) {
+					throw new IllegalArgumentException("keys must be sorted in ascending order");
+				}
+
+				// is this another record for the previous key?
+				if ((to > from) && (key == sorted_keys[to - 1])) {
+					registrants.add(record);
+					continue;
+				}
+
+				registrants = new ArrayList<Record>(1);
+				registrants.add(record);
+				all_registrants.put(key, registrants);
+
+				values[count++] = (char)key;
+			}
+
+			if ((to < sorted_keys.length) && (sorted_keys[to] < sorted_keys[to - 1])) {
+				throw new IllegalArgumentException("keys must be sorted in ascending order");
+			}
+
+			// records whether the previous vector was modified
+			boolean change_occurred = false;
+
+			for (int depth = _holder_depth; depth >= 0; depth--) {
+				VectorTreeNode node = getNode(prefixOf(first_key, depth), depth);
+
+				if (depth == _holder_depth) {
+					((VectorTreeContainerNode)node).setContainer(offsetOf(first_key, depth),
+							LeafContainer.fromSorted(values, count));
+				}
+
+				// inner nodes count records, as in VectorTree
+				node.increaseLeavesBy(to - from);
+				if (change_occurred) {
+					node.increaseSubnodesBy(1);
+				}
+				change_occurred = node.setBit(offsetOf(first_key, depth));
+
+				if (_maintain_bloom_filters && (depth > getConfig().getMaxBloomLevel())) {
+					node.addAllToBloomFilter(sorted_keys, from, to, getConfig());
+				}
+			}
+
+			from = to;
+		}
+	}
+
+	@Override
+	public void insert(int key, Record record) {
+
+		// register the record
+		HashMap<Integer, ArrayList<Record>> all_registrants = getRegistrants();
+		ArrayList<Record> registrants = all_registrants.get(key);
+		if (registrants == null) {
+			registrants = new ArrayList<Record>();
+			all_registrants.put(key, registrants);
+		}
+
+		// a key already registered is in its container and in all bloom
+		// filters already
+		boolean key_is_new = registrants.isEmpty();
+		registrants.add(record);
+
+		// records whether the previous vector was modified
+		boolean change_occurred = false;
+
+		// work our way up from the holder of the key's container to the root
+		for (int depth = _holder_depth; depth >= 0; depth--) {
+
+			VectorTreeNode node = getNode(prefixOf(key, depth), depth);
+			int offset = offsetOf(key, depth);
+
+			if ((depth == _holder_depth) && key_is_new) {
+				VectorTreeContainerNode holder = (VectorTreeContainerNode)node;
+				LeafContainer container = holder.getContainer(offset);
+
+				if (container == null) {
+					container = new ArrayContainer();
+				}
+				holder.setContainer(offset, container.add(key & VALUE_MASK));
+			}
+
+			node.increaseLeavesBy(1);
+			if (change_occurred) {
+				node.increaseSubnodesBy(1);
+			}
+			change_occurred = node.setBit(offset);
+
+			if (key_is_new && _maintain_bloom_filters && (depth > getConfig().getMaxBloomLevel())) {
+				node.addToBloomFilter(key, getConfig());
+			}
+		}
+	}
+
+	@Override
+	public void remove(int key, Record record) {
+
+		ArrayList<Record> registrants = getRegistrants().get(key);
+		if ((registrants == null) || (registrants.remove(record) == false)) {
+			return;
+		}
+
+		// the key leaves its container with its last record
+		boolean key_is_gone = registrants.isEmpty();
+
+		// whether the vector of the previous node, or the container, was
+		// modified, and whether it was emptied
+		boolean change_occurred = false;
+		boolean child_emptied = false;
+
+		for (int depth = _holder_depth; depth >= 0; depth--) {
+
+			int prefix = prefixOf(key, depth);
+			int offset = offsetOf(key, depth);
+			VectorTreeNode node = getExistingNode(prefix, depth);
+
+			if ((depth == _holder_depth) && key_is_gone) {
+				VectorTreeContainerNode holder = (VectorTreeContainerNode)node;
+				LeafContainer container = holder.getContainer(offset).remove(key & VALUE_MASK);
+
+				child_emptied = (container.getCardinality() == 0);
+				holder.setContainer(offset, child_emptied ? null : container);
+			}
+
+			node.increaseLeavesBy(-1);
+			if (change_occurred) {
+				node.increaseSubnodesBy(-1);
+			}
+			change_occurred = child_emptied && node.clearBit(offset);
+
+			if (key_is_gone && _maintain_bloom_filters && (depth > getConfig().getMaxBloomLevel())) {
+				node.removeFromBloomFilter(key);
+			}
+
+			// the root stays, even when emptied
+			child_emptied = (depth > 0) && node.isEmpty();
+			if (child_emptied) {
+				decommissionNode(prefix, depth);
+			}
+		}
+	}
+
+	/*
+	 * brings every container into its smallest form, which insert and
+	 * remove only do for containers crossing the array size limit or
+	 * held as runs
+	 */
+	public void compactContainers() {
+		NodeTable nodes = getNodeTable();
+		for (long node_id : nodes.getIds()) {
+			VectorTreeNode node = nodes.get(node_id);
+
+			if (node instanceof VectorTreeContainerNode) {
+				VectorTreeContainerNode holder = (VectorTreeContainerNode)node;
+
+				for (int offset = 0; offset <= _offset_mask; offset++) {
+					LeafContainer container = holder.getContainer(offset);
+					if (container != null) {
+						holder.setContainer(offset, LeafContainer.compact(container));
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * as VectorTree.getNode, creating holders of containers at the holder
+	 * depth
+	 */
+	private VectorTreeNode getNode(int value, int depth) {
+		VectorTreeNode node = getExistingNode(value, depth);
+
+		if (node == null) {
+			node = (depth == _holder_depth) ? new VectorTreeContainerNode(depth, _vector_words, 1 << _bits_per_level)
+					: new VectorTreeNode(depth, _vector_words);
+			putNode(value, depth, node);
+		}
+
+		return node;
+	}
+
+	/*
+	 * @return VectorTreeContainerNode - the holder at the given prefix, null
+	 *                                   if there is none
+	 */
+	VectorTreeContainerNode getHolder(int value) {
+		return (VectorTreeContainerNode)getExistingNode(value, _holder_depth);
+	}
+
+	/*
+	 * @return LeafContainer - the container holding the keys of a node at or
+	 *                         below the container depth, null if there is none
+	 */
+	private LeafContainer getContainer(int value, int depth) {
+		int upper = value >> ((depth - _container_depth) * _bits_per_level);
+
+		VectorTreeContainerNode holder = getHolder(upper >> _bits_per_level);
+		return (holder == null) ? null : holder.getContainer(upper & _offset_mask);
+	}
+
+	/*
+	 * @return long - a word of the vector the node at or below the container
+	 *                depth would have in a VectorTree
+	 */
+	private long getDerivedWord(LeafContainer container, int value, int depth, int word) {
+		int covered_bits = (_height - depth) * _bits_per_level;
+		int child_bits = covered_bits - _bits_per_level;
+
+		int lowest = (value << covered_bits) & VALUE_MASK;
+		int from = lowest + (word << (6 + child_bits));
+		int to = Math.min(lowest + (1 << covered_bits), from + (Long.SIZE << child_bits));
+
+		return container.getChildWord(from, to, child_bits);
+	}
+
+	@Override
+	long getVectorWord(int value, int depth) {
+		if (depth < _container_depth) {
+			VectorTreeNode node = getExistingNode(value, depth);
+			return (node == null) ? 0 : node.getVectorWord(0);
+		}
+
+		LeafContainer container = getContainer(value, depth);
+		return (container == null) ? 0 : getDerivedWord(container, value, depth, 0);
+	}
+
+	@Override
+	boolean intersectVector(int value, int depth, long[] vector) {
+		long survivors = 0;
+
+		if (depth < _container_depth) {
+			VectorTreeNode node = getExistingNode(value, depth);
+
+			for (int word = 0; word < vector.length; word++) {
+				vector[word] &= (node == null) ? 0 : node.getVectorWord(word);
+				survivors |= vector[word];
+			}
+			return survivors != 0;
+		}
+
+		LeafContainer container = getContainer(value, depth);
+
+		for (int word = 0; word < vector.length; word++) {
+			vector[word] &= (container == null) ? 0 : getDerivedWord(container, value, depth, word);
+			survivors |= vector[word];
+		}
+		return survivors != 0;
+	}
+
+	/*
+	 * nodes below the container depth count keys, not records
+	 */
+	@Override
+	int getLeaves(int value, int depth) {
+		if (depth < _container_depth) {
+			VectorTreeNode node = getExistingNode(value, depth);
+			return (node == null) ? 0 : node.getLeaves();
+		}
+
+		LeafContainer container = getContainer(value, depth);
+		if (container == null) {
+			return 0;
+		}
+
+		int covered_bits = (_height - depth) * _bits_per_level;
+		int lowest = (value << covered_bits) & VALUE_MASK;
+		return container.countIn(lowest, lowest + (1 << covered_bits));
+	}
+
+	@Override
+	KeyFilter getBloomFilter(int value, int depth) {
+		if (depth >= _container_depth) {
+			return null;
+		}
+
+		VectorTreeNode node = getExistingNode(value, depth);
+		return (node == null) ? null : node.getBloomFilter();
+	}
+
+	/*
+	 * the levels below the containers keep no filters, which the traversal
+	 * of VectorTree would take for a miss; the filters of the vector levels
+	 * are only used when every tree holds containers, see
+	 * createBloomFilterPolicy()
+	 */
+	@Override
+	boolean maintainsBloomFilters() {
+		return false;
+	}
+
+	int getContainerDepth() {
+		return _container_depth;
+	}
+
+	public int getNodeCount() {
+		return getNodeTable().size();
+	}
+
+	public int getContainerCount() {
+		NodeTable nodes = getNodeTable();
+		int count = 0;
+		for (long node_id : nodes.getIds()) {
+			VectorTreeNode node = nodes.get(node_id);
+			if (node instanceof VectorTreeContainerNode) {
+				count += node.getBitCount();
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * @return long - the bytes taken by the values of all containers
+	 */
+	public long getContainerBytes() {
+		NodeTable nodes = getNodeTable();
+		long bytes = 0;
+		for (long node_id : nodes.getIds()) {
+			VectorTreeNode node = nodes.get(node_id);
+
+			if (node instanceof VectorTreeContainerNode) {
+				VectorTreeContainerNode holder = (VectorTreeContainerNode)node;
+
+				for (int offset = 0; offset <= _offset_mask; offset++) {
+					LeafContainer container = holder.getContainer(offset);
+					if (container != null) {
+						bytes += container.getSizeInBytes();
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * @return boolean - whether every tree is a container tree, so that
+	 *                   their containers can be ANDed directly
+	 */
+	static boolean holdContainers(ArrayList<VectorTree> trees) {
+		for (VectorTree tree : trees) {
+			if ((tree instanceof ContainerVectorTree) == false) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * as VectorTree.canUseBloomFilters, for the filters of the vector levels
+	 *
+	 * @return boolean - whether bloom filters can be used to intersect these trees
+	 */
+	static boolean canUseUpperBloomFilters(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		if (use_bloom_filter == false) {
+			return false;
+		}
+
+		for (VectorTree tree : trees) {
+			if (((ContainerVectorTree)tree)._maintain_bloom_filters == false) {
+				return false;
+			}
+		}
+
+		VectorTreeConfig config = trees.get(0).getConfig();
+		for (VectorTree tree : trees) {
+			if (tree.getConfig().hasSameFilters(config) == false) {
+				throw new IllegalArgumentException("trees of different bloom filter settings cannot be intersected using their filters");
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * intersects the holders at the given prefix across all trees into
+	 * survivors, checking their bloom filters first as bloom_policy
+	 * decides, unless it is null, and collects them into holders
+	 *
+	 * @return boolean - whether any offset survives in every tree; if not,
+	 *                   survivors is left empty
+	 */
+	static boolean getHolderSurvivors(
+			int prefix,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			VectorTreeContainerNode[] holders,
+			long[] survivors,
+			IntersectionStats stats) {
+
+		for (int i = 0; i < trees.size(); i++) {
+			holders[i] = ((ContainerVectorTree)trees.get(i)).getHolder(prefix);
+
+			if (holders[i] == null) {
+				Arrays.fill(survivors, 0L);
+				return false;
+			}
+		}
+
+		int depth = holders[0].getDepth();
+		if ((bloom_policy != null) && (depth > trees.get(0).getConfig().getMaxBloomLevel()) &&
+				bloom_policy.shouldCheck(depth, stats)) {
+
+			long check_started = bloom_policy.startClock(depth);
+
+			int count = 0;
+			for (VectorTreeContainerNode holder : holders) {
+				KeyFilter bloom_filter = holder.getBloomFilter();
+				if (bloom_filter == null) {
+					count = 0;
+					break;
+				}
+
+				bloom_filters[count++] = bloom_filter;
+			}
+
+			if (bloom_policy.hasSurvivors(depth, bloom_filters, count, check_started, stats) == false) {
+				Arrays.fill(survivors, 0L);
+				return false;
+			}
+		}
+
+		long started = (bloom_policy != null) ? bloom_policy.startClock(depth) : 0;
+
+		long any = 0;
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = ~0L;
+			for (VectorTreeContainerNode holder : holders) {
+				bits &= holder.getVectorWord(word);
+			}
+
+			survivors[word] = bits;
+			any |= bits;
+		}
+
+		if (bloom_policy != null) {
+			bloom_policy.countVisit(depth, survivors, started);
+		}
+
+		return any != 0;
+	}
+
+	/*
+	 * ANDs the containers under the offset of the holders, which exist in
+	 * every tree since the offset survived their vectors, by their kernels,
+	 * starting from the smallest: into values if that holds at most
+	 * MAX_ARRAY_SIZE values, and into the bitmap words otherwise
+	 *
+	 * @return int - the number of values kept, or -1 if the result is in
+	 *               words, of which some bit is set
+	 */
+	static int intersectContainers(
+			VectorTreeContainerNode[] holders,
+			int offset,
+			LeafContainer[] containers,
+			char[] values,
+			long[] words) {
+
+		// the result is no larger than the smallest container
+		int smallest = 0;
+		for (int i = 0; i < holders.length; i++) {
+			containers[i] = holders[i].getContainer(offset);
+			if (containers[i].getCardinality() < containers[smallest].getCardinality()) {
+				smallest = i;
+			}
+		}
+
+		LeafContainer seed = containers[smallest];
+		if (seed.getCardinality() <= LeafContainer.MAX_ARRAY_SIZE) {
+			int count = seed.copyTo(values);
+			for (int i = 0; (i < containers.length) && (count > 0); i++) {
+				if (i != smallest) {
+					count = containers[i].retainIn(values, count);
+				}
+			}
+			return count;
+		}
+
+		seed.copyTo(words);
+		for (int i = 0; i < containers.length; i++) {
+			if ((i != smallest) && (containers[i].retainIn(words) == false)) {
+				return 0;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * collects the keys below a node of the vector levels in all trees into
+	 * matches, as ContainerVectorTreeIterator hands them out, checking
+	 * filters as bloom_policy decides, unless it is null; the scratch
+	 * space is that of countNode
+	 */
+	static void intersectNode(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			int depth,
+			List<VectorTreeIterator.Matches> matches,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[][] vectors,
+			TreeOrder tree_order,
+			VectorTreeContainerNode[] holders,
+			LeafContainer[] containers,
+			char[] values,
+			long[] words,
+			IntersectionStats stats) {
+
+		ContainerVectorTree shape = (ContainerVectorTree)trees.get(0);
+		int holder_depth = shape._holder_depth;
+
+		long[] survivors = vectors[depth];
+		if (depth == holder_depth) {
+			if (getHolderSurvivors(prefix, trees, bloom_policy, bloom_filters, holders, survivors, stats) == false) {
+				return;
+			}
+		} else if (VectorTree.getSurvivors(prefix, depth, trees, bloom_policy, bloom_filters, survivors,
+				stats) == false) {
+			return;
+		}
+
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int child = (prefix << shape._bits_per_level) + offset;
+				if (depth < holder_depth) {
+					ArrayList<VectorTree> child_trees = tree_order.reorders(depth, depth + 1) ?
+							tree_order.order(child, depth + 1, trees, null) : trees;
+
+					intersectNode(child_trees, child, depth + 1, matches, bloom_policy, bloom_filters, vectors,
+							tree_order, holders, containers, values, words, stats);
+					continue;
+				}
+
+				// the container intersection takes the place of the leaves
+				long started = (bloom_policy != null) ? bloom_policy.startClock(depth + 1) : 0;
+				int kept = intersectContainers(holders, offset, containers, values, words);
+				if (bloom_policy != null) {
+					bloom_policy.countVisit(depth + 1, null, started);
+				}
+
+				addMatches(child << LeafContainer.VALUE_BITS, values, kept, words, matches);
+			}
+		}
+	}
+
+	/*
+	 * adds a container intersection, as returned by intersectContainers,
+	 * to the matches a word at a time
+	 */
+	private static void addMatches(
+			int base,
+			char[] values,
+			int kept,
+			long[] words,
+			List<VectorTreeIterator.Matches> matches) {
+
+		if (kept < 0) {
+			for (int word = 0; word < words.length; word++) {
+				if (words[word] != 0) {
+					matches.add(new VectorTreeIterator.Matches(base + (word << 6), words[word]));
+				}
+			}
+			return;
+		}
+
+		int index = 0;
+		while (index < kept) {
+			int word_base = values[index] & ~63;
+
+			long bits = 0;
+			while ((index < kept) && ((values[index] & ~63) == word_base)) {
+				bits |= 1L << values[index];
+				index++;
+			}
+
+			matches.add(new VectorTreeIterator.Matches(base + word_base, bits));
+		}
+	}
+
+	/*
+	 * counts the keys below a node of the vector levels in all trees, as
+	 * ContainerVectorTreeIterator finds them, checking filters as
+	 * bloom_policy decides, unless it is null
+	 *
+	 * vectors holds one scratch vector per vector level, and tree_order
+	 * orders the trees anew below the nodes near the root; the remaining
+	 * arrays are scratch space as the iterator keeps it.
+	 *
+	 * @return long - the number of keys in the intersection below the node
+	 */
+	static long countNode(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			int depth,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[][] vectors,
+			TreeOrder tree_order,
+			VectorTreeContainerNode[] holders,
+			LeafContainer[] containers,
+			char[] values,
+			long[] words,
+			IntersectionStats stats) {
+
+		ContainerVectorTree shape = (ContainerVectorTree)trees.get(0);
+		int holder_depth = shape._holder_depth;
+
+		long[] survivors = vectors[depth];
+		if (depth == holder_depth) {
+			if (getHolderSurvivors(prefix, trees, bloom_policy, bloom_filters, holders, survivors, stats) == false) {
+				return 0;
+			}
+		} else if (VectorTree.getSurvivors(prefix, depth, trees, bloom_policy, bloom_filters, survivors,
+				stats) == false) {
+			return 0;
+		}
+
+		long count = 0;
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				if (depth < holder_depth) {
+					int child = (prefix << shape._bits_per_level) + offset;
+					ArrayList<VectorTree> child_trees = tree_order.reorders(depth, depth + 1) ?
+							tree_order.order(child, depth + 1, trees, null) : trees;
+
+					count += countNode(child_trees, child, depth + 1, bloom_policy, bloom_filters, vectors, tree_order,
+							holders, containers, values, words, stats);
+					continue;
+				}
+
+				// the container intersection takes the place of the leaves
+				long started = (bloom_policy != null) ? bloom_policy.startClock(depth + 1) : 0;
+				int kept = intersectContainers(holders, offset, containers, values, words);
+				if (bloom_policy != null) {
+					bloom_policy.countVisit(depth + 1, null, started);
+				}
+
+				if (kept >= 0) {
+					count += kept;
+					continue;
+				}
+				for (long bitmap_word : words) {
+					count += Long.bitCount(bitmap_word);
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/*
+	 * consumes all results, since intersection runs as the iterator is read
+	 *
+	 * @return int - the number of keys in the intersection
+	 */
+	private static int drain(VectorTreeIterator iterator) {
+		int counter = 0;
+		while (iterator.hasNext()) {
+			iterator.nextInt();
+			counter++;
+		}
+		return counter;
+	}
+
+	/*
+	 * compares heap trees against container trees over the same keys, by
+	 * their size and by the time to intersect them, once through the
+	 * container kernels and once through the derived vectors of the
+	 * VectorTree traversal
+	 */
+	public static void testAgainstHeapTree() {
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i=1; i<num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		ArrayList<VectorTree> heap_trees = new ArrayList<VectorTree>(num_sets);
+		ArrayList<VectorTree> container_trees = new ArrayList<VectorTree>(num_sets);
+
+		long heap_nodes = 0;
+		long container_nodes = 0;
+		long containers = 0;
+		long container_bytes = 0;
+		for (int i=0; i<num_sets; i++) {
+			VectorTree heap_tree = new VectorTree(benchmark_config, true);
+			ContainerVectorTree container_tree = new ContainerVectorTree(benchmark_config, true);
+
+			for (int key : key_sets[i]) {
+				Record record = new Record();
+				heap_tree.insert(key, record);
+				container_tree.insert(key, record);
+			}
+			container_tree.compactContainers();
+
+			heap_trees.add(heap_tree);
+			container_trees.add(container_tree);
+
+			heap_nodes += heap_tree.getNodeTable().size();
+			container_nodes += container_tree.getNodeCount();
+			containers += container_tree.getContainerCount();
+			container_bytes += container_tree.getContainerBytes();
+		}
+
+		System.out.println("nodes\t" + heap_nodes + "\t" + container_nodes + "\tcontainers\t" + containers + "\t"
+				+ container_bytes + " bytes");
+
+		for (boolean use_bloom_filter : new boolean[] { false, true }) {
+			int[] counts = new int[3];
+
+			long startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[0] = drain(VectorTree.intersect(heap_trees, use_bloom_filter));
+			long heap_duration = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[1] = drain(VectorTree.intersect(container_trees, use_bloom_filter));
+			long container_duration = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[2] = (int)VectorTree.intersectStream(container_trees, use_bloom_filter, false).count();
+			long derived_duration = System.nanoTime() - startTime;
+
+			System.out.println(use_bloom_filter + "\t" + (heap_duration / 1000000.0) + "\t"
+					+ (container_duration / 1000000.0) + "\t" + (derived_duration / 1000000.0) + "\t"
+					+ ((counts[0] == counts[1]) && (counts[0] == counts[2])));
+		}
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 7) {
+			System.err.println("Arguments: bits_per_level max_bloom_lvl num_sets set_size set_density set_overlap repetitions");
+			return;
+		}
+
+		benchmark_config = VectorTreeConfig.DEFAULT
+				.withBitsPerLevel(Integer.parseInt(args[0]))
+				.withMaxBloomLevel(Integer.parseInt(args[1]));
+		num_sets = Integer.parseInt(args[2]);
+		set_size = Integer.parseInt(args[3]);
+		set_density = Double.parseDouble(args[4]);
+		set_overlap = Double.parseDouble(args[5]);
+		repetitions = Integer.parseInt(args[6]);
+
+		testAgainstHeapTree();
+	}
+}
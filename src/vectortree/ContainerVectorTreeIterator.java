@@ -0,0 +1,242 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/*
+ * iterator over a multiway intersection of ContainerVectorTrees
+ *
+ * the vector levels are traversed as LazyVectorTreeIterator traverses a
+ * whole tree, down to the holders of the containers. below each surviving
+ * offset of the holders, the containers of all trees are ANDed by their
+ * kernels, starting from the smallest: into a sorted array if that holds at
+ * most MAX_ARRAY_SIZE values, and into a bitmap otherwise. the result is
+ * handed out a 64-bit word at a time.
+ *
+ * the children of nodes near the root order the trees anew, as in
+ * LazyVectorTreeIterator.
+ *
+ * the trees must not be modified while the iterator is in use.
+ */
+public class ContainerVectorTreeIterator extends VectorTreeIterator {
+
+	// members
+
+	private BloomFilterPolicy _bloom_policy;
+	private KeyFilter[] _bloom_filters;
+	private IntersectionStats _stats;
+	private int _bits_per_level;
+	private int _holder_depth;
+
+	// traversal stack of the vector levels, indexed by depth, as in
+	// LazyVectorTreeIterator
+	private int[] _prefixes;
+	private long[][] _pending;
+	private int[] _pending_words;
+	private int _top;
+
+	// the order of the trees at the nodes of the stack
+	private TreeOrder _order;
+
+	// the holders of every tree at the holder depth of the stack, and the
+	// containers being intersected
+	private VectorTreeContainerNode[] _holders;
+	private LeafContainer[] _containers;
+
+	// intersection of the last containers, either as sorted values or as a
+	// bitmap, and the next value or word to hand out
+	private int _result_base;
+	private char[] _values;
+	private int _value_count;
+	private int _value_index;
+	private long[] _words;
+	private int _word_index;
+
+
+	/*
+	 * bloom_policy is null if no filters are used, see
+	 * VectorTree.createBloomFilterPolicy()
+	 */
+	ContainerVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats) {
+
+		// the root is never a holder
+		this(all_registrants, trees, bloom_policy, stats, 0, 0, getRootSurvivors(trees, bloom_policy, stats));
+	}
+
+	private static long[] getRootSurvivors(
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats) {
+
+		long[] survivors = new long[trees.get(0).getVectorWords()];
+		VectorTree.getSurvivors(0, 0, trees, bloom_policy, new KeyFilter[trees.size()], survivors, stats);
+		return survivors;
+	}
+
+	/*
+	 * starts the traversal below a node of the vector levels, at most at
+	 * the holder depth, whose surviving offsets have already been computed,
+	 * visiting only the given offsets
+	 */
+	ContainerVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats,
+			int prefix,
+			int depth,
+			long[] offsets) {
+
+		super(all_registrants);
+
+		ContainerVectorTree shape = (ContainerVectorTree)trees.get(0);
+
+		_bloom_policy = bloom_policy;
+		_bloom_filters = new KeyFilter[trees.size()];
+		_stats = stats;
+		_bits_per_level = shape.getBitsPerLevel();
+		_holder_depth = shape.getContainerDepth() - 1;
+
+		_prefixes = new int[_holder_depth + 1];
+		_pending = new long[_holder_depth + 1][shape.getVectorWords()];
+		_pending_words = new int[_holder_depth + 1];
+		_order = new TreeOrder(trees, _holder_depth + 1, false);
+
+		_holders = new VectorTreeContainerNode[trees.size()];
+		_containers = new LeafContainer[trees.size()];
+
+		_values = new char[LeafContainer.MAX_ARRAY_SIZE];
+		_words = new long[LeafContainer.BITMAP_WORDS];
+		_word_index = _words.length;
+
+		// any offset of a holder survived in every tree, so each has it
+		if (depth == _holder_depth) {
+			for (int i = 0; i < trees.size(); i++) {
+				_holders[i] = ((ContainerVectorTree)trees.get(i)).getHolder(prefix);
+			}
+		}
+
+		_top = -1;
+		System.arraycopy(offsets, 0, _pending[depth], 0, offsets.length);
+		push(prefix, depth);
+	}
+
+	private void push(int prefix, int depth) {
+		_top = depth;
+		_prefixes[depth] = prefix;
+		_pending_words[depth] = 0;
+	}
+
+	@Override
+	protected boolean advance() {
+
+		while (true) {
+
+			// hand out the rest of the last container intersection
+			if (nextResultWord()) {
+				return true;
+			}
+
+			if (_top < 0) {
+				if (_bloom_policy != null) {
+					_bloom_policy.finish();
+				}
+				return false;
+			}
+
+			long[] pending = _pending[_top];
+			int word = _pending_words[_top];
+			while ((word < pending.length) && (pending[word] == 0)) {
+				word++;
+			}
+			_pending_words[_top] = word;
+
+			// have all offsets at this depth been visited?
+			if (word == pending.length) {
+				_top--;
+				continue;
+			}
+
+			// take the lowest pending offset
+			long bits = pending[word];
+			int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+			pending[word] = bits & (bits - 1);
+
+			int prefix = (_prefixes[_top] << _bits_per_level) + offset;
+			int depth = _top + 1;
+
+			ArrayList<VectorTree> trees = _order.getTrees(_top);
+			if (_order.reorders(_top, depth)) {
+				trees = _order.order(prefix, depth, trees, null);
+			}
+
+			if (_top == _holder_depth) {
+				long started = (_bloom_policy != null) ? _bloom_policy.startClock(depth) : 0;
+				intersectContainers(prefix, offset);
+				if (_bloom_policy != null) {
+					_bloom_policy.countVisit(depth, null, started);
+				}
+			} else if (depth == _holder_depth) {
+				if (ContainerVectorTree.getHolderSurvivors(prefix, trees, _bloom_policy, _bloom_filters, _holders,
+						_pending[depth], _stats)) {
+					push(prefix, depth);
+				}
+			} else if (VectorTree.getSurvivors(prefix, depth, trees, _bloom_policy, _bloom_filters,
+					_pending[depth], _stats)) {
+				push(prefix, depth);
+			}
+		}
+	}
+
+	/*
+	 * ANDs the containers under the offset of the current holders into the
+	 * result to hand out
+	 */
+	private void intersectContainers(int upper, int offset) {
+		_result_base = upper << LeafContainer.VALUE_BITS;
+
+		int count = ContainerVectorTree.intersectContainers(_holders, offset, _containers, _values, _words);
+		if (count < 0) {
+			_word_index = 0;
+			return;
+		}
+
+		_value_count = count;
+		_value_index = 0;
+	}
+
+	/*
+	 * makes the next non-empty word of the container intersection current
+	 *
+	 * @return boolean - false if the intersection has been handed out
+	 */
+	private boolean nextResultWord() {
+		if (_value_index < _value_count) {
+			int word_base = _values[_value_index] & ~63;
+
+			long bits = 0;
+			while ((_value_index < _value_count) && ((_values[_value_index] & ~63) == word_base)) {
+				bits |= 1L << _values[_value_index];
+				_value_index++;
+			}
+
+			setCurrentMatchset(_result_base + word_base, bits);
+			return true;
+		}
+
+		while (_word_index < _words.length) {
+			int word = _word_index++;
+
+			if (_words[word] != 0) {
+				setCurrentMatchset(_result_base + (word << 6), _words[word]);
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
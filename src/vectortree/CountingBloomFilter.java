@@ -0,0 +1,250 @@
+package vectortree;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * counting bloom filter, which can forget keys again
+ *
+ * every position holds a 4-bit counter, sixteen to a long. alongside the
+ * counters, a plain bit per position records whether its counter is nonzero;
+ * those are the words the filter exposes, so counting filters built with the
+ * same seed and size are ANDed exactly like ordinary bloom filters.
+ *
+ * a counter that reaches 15 saturates: it is never decremented again, since
+ * its true count is unknown. its bit therefore stays set, which keeps every
+ * intersection free of false negatives at the price of some pruning power.
+ */
+public class CountingBloomFilter implements KeyFilter {
+
+	private static final long COUNTER_MASK = 0xfL;
+	private static final int SATURATED = 15;
+
+	// counters of the filter, packed 16 to a word
+	private long[] counters;
+
+	// one bit per position, set while its counter is nonzero
+	private long[] bits;
+
+	// the number of positions, in bits.
+	private int filterSize;
+
+	private int numberOfHashFunctions;
+
+	// per-filter salt, derived from the seed
+	private long salt;
+
+	// number of counters stuck at SATURATED
+	private int saturatedCounters;
+
+
+	public CountingBloomFilter(long seed, int filter_size, int expected_number_of_objects) {
+		counters = new long[(filter_size + 15) / 16];
+		bits = new long[(filter_size + Long.SIZE - 1) / Long.SIZE];
+		filterSize = filter_size;
+
+		salt = new Random(seed).nextLong();
+
+		numberOfHashFunctions = (int) Math.floor(Math.log(2) * filter_size / expected_number_of_objects);
+		if (numberOfHashFunctions == 0) numberOfHashFunctions = 1;
+	}
+
+	/*
+	 * creates an empty filter sharing the hash parameters of the prototype
+	 */
+	private CountingBloomFilter(CountingBloomFilter prototype) {
+		counters = new long[prototype.counters.length];
+		bits = new long[prototype.bits.length];
+		filterSize = prototype.filterSize;
+		numberOfHashFunctions = prototype.numberOfHashFunctions;
+		salt = prototype.salt;
+	}
+
+	public KeyFilter emptyCopy() {
+		return new CountingBloomFilter(this);
+	}
+
+	/*
+	 * murmur3 64-bit finalizer
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * maps a 32-bit hash onto [0, filterSize) with a multiply and shift
+	 *
+	 * power-of-two sizes keep the low bits instead: since h2 is odd, the
+	 * positions h1 + n * h2 of a key are then all distinct, so a key sets
+	 * exactly numberOfHashFunctions bits, as getMinimumKeyBits() reports.
+	 */
+	private int reduce(int h) {
+		if ((filterSize & (filterSize - 1)) == 0) {
+			return h & (filterSize - 1);
+		}
+		return (int) (((h & 0xffffffffL) * filterSize) >>> 32);
+	}
+
+	private int getCounter(int i) {
+		return (int) ((counters[i >>> 4] >>> ((i & 15) << 2)) & COUNTER_MASK);
+	}
+
+	public void add(int key) {
+		long h = mix(key ^ salt);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+
+		for (int n = 0; n < numberOfHashFunctions; n++) {
+			int i = reduce(h1 + n * h2);
+			int count = getCounter(i);
+
+			// saturated counters stay where they are
+			if (count == SATURATED)
+				continue;
+
+			counters[i >>> 4] += 1L << ((i & 15) << 2);
+
+			if (count == 0)
+				bits[i >>> 6] |= 1L << i;
+			else if (count + 1 == SATURATED)
+				saturatedCounters++;
+		}
+	}
+
+	public boolean remove(int key) {
+		long h = mix(key ^ salt);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+
+		for (int n = 0; n < numberOfHashFunctions; n++) {
+			int i = reduce(h1 + n * h2);
+			int count = getCounter(i);
+
+			// a saturated counter may be hiding other keys, and an empty one
+			// means the key was never added
+			if ((count == SATURATED) || (count == 0))
+				continue;
+
+			counters[i >>> 4] -= 1L << ((i & 15) << 2);
+
+			if (count == 1)
+				bits[i >>> 6] &= ~(1L << i);
+		}
+
+		return true;
+	}
+
+	public boolean query(int key) {
+		long h = mix(key ^ salt);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+
+		for (int n = 0; n < numberOfHashFunctions; n++) {
+			int i = reduce(h1 + n * h2);
+			if ((bits[i >>> 6] & (1L << i)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public int getNumberOfHashFunctions() {
+		return numberOfHashFunctions;
+	}
+
+	/*
+	 * positions only stay distinct at power-of-two sizes, see reduce(), and
+	 * may otherwise all fall onto one bit
+	 */
+	public int getMinimumKeyBits() {
+		return ((filterSize & (filterSize - 1)) == 0) ? numberOfHashFunctions : 1;
+	}
+
+	public long[] getWords() {
+		return bits;
+	}
+
+	public int getWordCount() {
+		return bits.length;
+	}
+
+	public long getWord(int index) {
+		return bits[index];
+	}
+
+	public int getSaturatedCounters() {
+		return saturatedCounters;
+	}
+
+	/*
+	 * measures bloom filter pruning over a long insert/delete churn, with
+	 * plain and with counting filters in otherwise identical trees
+	 */
+	public static void main(String[] args) {
+		int set_size = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		double churn = (args.length > 2) ? Double.parseDouble(args[2]) : 0.5;
+
+		VectorTreeConfig config = VectorTreeConfig.DEFAULT.withMaxBloomLevel(4);
+
+		Random r = new Random(42);
+		int key_range = set_size * 8;
+
+		// two trees drawing keys from disjoint halves of the key range, so
+		// that every bloom filter survivor is a false one
+		ArrayList<int[]> key_sets = new ArrayList<int[]>();
+		for (int t = 0; t < 2; t++) {
+			int[] keys = new int[set_size];
+			for (int i = 0; i < set_size; i++)
+				keys[i] = 2 * r.nextInt(key_range) + t;
+			key_sets.add(keys);
+		}
+
+		ArrayList<ArrayList<VectorTree>> tree_sets = new ArrayList<ArrayList<VectorTree>>();
+		for (boolean counting : new boolean[] { false, true }) {
+			ArrayList<VectorTree> trees = new ArrayList<VectorTree>();
+			for (int[] keys : key_sets) {
+				VectorTree tree = new VectorTree(config.withCountingBloomFilters(counting), true);
+				for (int key : keys)
+					tree.insert(key, null);
+				trees.add(tree);
+			}
+			tree_sets.add(trees);
+		}
+
+		System.out.println("round\tplain bloom hits\tcounting bloom hits");
+
+		for (int round = 0; round <= rounds; round++) {
+			System.out.print(round);
+
+			for (ArrayList<VectorTree> trees : tree_sets) {
+				IntersectionStats stats = new IntersectionStats();
+				VectorTreeIterator iterator = VectorTree.intersect(trees, true, stats);
+				while (iterator.hasNext())
+					iterator.nextInt();
+				System.out.print("\t" + stats.getBloomHits());
+			}
+			System.out.println();
+
+			// replace a share of every key set with fresh keys
+			for (int t = 0; t < key_sets.size(); t++) {
+				int[] keys = key_sets.get(t);
+				for (int i = 0; i < keys.length; i++) {
+					if (r.nextDouble() >= churn)
+						continue;
+
+					int fresh = 2 * r.nextInt(key_range) + t;
+					for (ArrayList<VectorTree> trees : tree_sets) {
+						trees.get(t).remove(keys[i], null);
+						trees.get(t).insert(fresh, null);
+					}
+					keys[i] = fresh;
+				}
+			}
+		}
+	}
+}
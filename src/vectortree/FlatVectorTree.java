@@ -0,0 +1,407 @@
+package vectortree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * experimental storage layout for the vector tree, kept to compare against
+ * VectorTree, see main(); it is not a VectorTree, takes no config and
+ * cannot be intersected with any other kind of tree
+ *
+ * each tree level is laid out as one set of parallel primitive arrays
+ * (struct-of-arrays), and each node is a slot index into the arrays of its
+ * level. the children of a node occupy a contiguous block of
+ * (1 << bits_per_level) slots on the next level, starting at the node's
+ * child base, so a child is found by adding its offset instead of a hash
+ * lookup. blocks are never moved: a node emptied by a removal releases its
+ * block, which the next node to need one on that level reuses before any
+ * block is appended.
+ *
+ * no bloom filters are kept, so intersection only prunes on vectors, and it
+ * runs to completion before the iterator is returned. the fan-out stays
+ * fixed at 4 bits per level, since a child block of 64 or 256 slots per
+ * node would be mostly empty in sparse trees. that is also why the layout
+ * does not sit behind the VectorTree API: its intersection looks nodes up
+ * by prefix and depth, which a child base cannot answer without walking
+ * down from the root.
+ */
+public class FlatVectorTree {
+
+	private static final int NO_CHILDREN = -1;
+	private static final int INITIAL_LEVEL_CAPACITY = 16;
+
+	// static tree properties
+	private static short bits_per_level = 4;
+	private static short bits_per_key = Integer.SIZE;
+	private static short height = (short)(bits_per_key / bits_per_level);
+	private static int fan_out = 1 << bits_per_level;
+	private static int offset_mask = fan_out - 1;
+
+	// members, indexed by [depth][slot]
+	private short[][] _vectors;
+	private int[][] _leaves;
+	private int[][] _subnodes;
+	private int[][] _child_base;
+
+	// number of slots in use per level, and the first slots of the blocks
+	// released per level
+	private int[] _slots_used;
+	private int[][] _free_blocks;
+	private int[] _free_counts;
+
+	private HashMap<Integer, ArrayList<Record>> _registrants;
+
+	// scratch path of slots from root to leaf, reused by every update
+	private int[] _path;
+	private boolean[] _created;
+
+	public FlatVectorTree() {
+		_vectors = new short[height][];
+		_leaves = new int[height][];
+		_subnodes = new int[height][];
+		_child_base = new int[height - 1][];
+		_slots_used = new int[height];
+		_free_blocks = new int[height][];
+		_free_counts = new int[height];
+
+		for (int depth = 0; depth < height; depth++) {
+			int capacity = (depth == 0) ? 1 : INITIAL_LEVEL_CAPACITY;
+			_vectors[depth] = new short[capacity];
+			_leaves[depth] = new int[capacity];
+			_subnodes[depth] = new int[capacity];
+			_free_blocks[depth] = new int[INITIAL_LEVEL_CAPACITY];
+			if (depth < height - 1) {
+				_child_base[depth] = newChildBases(capacity, 0);
+			}
+		}
+
+		// the root is the single slot on level 0
+		_slots_used[0] = 1;
+
+		_registrants = new HashMap<Integer, ArrayList<Record>>();
+
+		_path = new int[height];
+		_created = new boolean[height];
+	}
+
+	private static int[] newChildBases(int capacity, int from) {
+		int[] child_base = new int[capacity];
+		for (int slot = from; slot < capacity; slot++) {
+			child_base[slot] = NO_CHILDREN;
+		}
+		return child_base;
+	}
+
+	/*
+	 * extracts the offset of the given key within a node at the given depth
+	 */
+	private static int offsetAt(int key, int depth) {
+		return (key >>> (bits_per_key - (depth + 1) * bits_per_level)) & offset_mask;
+	}
+
+	/*
+	 * reuses a released block of fan_out empty child slots on the given
+	 * level, or appends one if none is left
+	 *
+	 * @return int - the first slot of the block
+	 */
+	private int allocateBlock(int depth) {
+		if (_free_counts[depth] > 0) {
+			return _free_blocks[depth][--_free_counts[depth]];
+		}
+
+		int base = _slots_used[depth];
+		int needed = base + fan_out;
+
+		// grow all arrays of this level together
+		if (needed > _vectors[depth].length) {
+			int capacity = _vectors[depth].length;
+			while (capacity < needed) {
+				capacity <<= 1;
+			}
+
+			short[] vectors = new short[capacity];
+			System.arraycopy(_vectors[depth], 0, vectors, 0, base);
+			_vectors[depth] = vectors;
+
+			int[] leaves = new int[capacity];
+			System.arraycopy(_leaves[depth], 0, leaves, 0, base);
+			_leaves[depth] = leaves;
+
+			int[] subnodes = new int[capacity];
+			System.arraycopy(_subnodes[depth], 0, subnodes, 0, base);
+			_subnodes[depth] = subnodes;
+
+			if (depth < height - 1) {
+				int[] child_base = newChildBases(capacity, base);
+				System.arraycopy(_child_base[depth], 0, child_base, 0, base);
+				_child_base[depth] = child_base;
+			}
+		}
+
+		_slots_used[depth] = needed;
+		return base;
+	}
+
+	/*
+	 * releases the child block of an emptied node, whose children are all
+	 * empty and hold no blocks themselves, having released theirs when they
+	 * were emptied; the slots of the block are left as allocateBlock()
+	 * hands them out
+	 */
+	private void releaseBlock(int depth, int slot) {
+		int base = _child_base[depth][slot];
+		_child_base[depth][slot] = NO_CHILDREN;
+
+		int[] free_blocks = _free_blocks[depth + 1];
+		if (_free_counts[depth + 1] == free_blocks.length) {
+			free_blocks = Arrays.copyOf(free_blocks, free_blocks.length << 1);
+			_free_blocks[depth + 1] = free_blocks;
+		}
+		free_blocks[_free_counts[depth + 1]++] = base;
+	}
+
+	public void insert(int key, Record record) {
+
+		// register the record first; only a new key changes the tree
+		ArrayList<Record> registrants = _registrants.get(key);
+		if (registrants == null) {
+			registrants = new ArrayList<Record>();
+			_registrants.put(key, registrants);
+		}
+		registrants.add(record);
+
+		if (registrants.size() > 1) {
+			return;
+		}
+
+		// walk down from the root, setting bits and appending child blocks
+		int slot = 0;
+		int created = 0;
+		for (int depth = 0; depth < height; depth++) {
+			_path[depth] = slot;
+
+			int offset = offsetAt(key, depth);
+			short bit = (short)(1 << offset);
+
+			// is the child at this offset new?
+			_created[depth] = (_vectors[depth][slot] & bit) == 0;
+			_vectors[depth][slot] |= bit;
+
+			if (depth < height - 1) {
+				if (_created[depth]) {
+					created++;
+				}
+
+				if (_child_base[depth][slot] == NO_CHILDREN) {
+					_child_base[depth][slot] = allocateBlock(depth + 1);
+				}
+				slot = _child_base[depth][slot] + offset;
+			}
+		}
+
+		// every node on the path gains a leaf, and counts the nodes created below it
+		for (int depth = 0; depth < height; depth++) {
+			_leaves[depth][_path[depth]]++;
+			_subnodes[depth][_path[depth]] += created;
+
+			if ((depth < height - 1) && _created[depth]) {
+				created--;
+			}
+		}
+	}
+
+	public void remove(int key, Record record) {
+
+		ArrayList<Record> registrants = _registrants.get(key);
+
+		// are any records registered?
+		if (registrants == null) {
+			return;
+		}
+
+		// remove record, and stop unless that emptied the key
+		if ((registrants.remove(record) == false) || (registrants.isEmpty() == false)) {
+			return;
+		}
+		_registrants.remove(key);
+
+		// collect the path from root to leaf
+		int slot = 0;
+		for (int depth = 0; depth < height; depth++) {
+			_path[depth] = slot;
+			if (depth < height - 1) {
+				slot = _child_base[depth][slot] + offsetAt(key, depth);
+			}
+		}
+
+		// clear bits bottom-up, for as long as the child below was emptied
+		int emptied = 0;
+		boolean clear = true;
+		for (int depth = height - 1; depth >= 0; depth--) {
+			slot = _path[depth];
+
+			if (clear) {
+				_vectors[depth][slot] &= ~(1 << offsetAt(key, depth));
+			}
+
+			_leaves[depth][slot]--;
+			_subnodes[depth][slot] -= emptied;
+
+			clear = clear && (_vectors[depth][slot] == 0);
+			if (clear) {
+				emptied++;
+
+				if (depth < height - 1) {
+					releaseBlock(depth, slot);
+				}
+			}
+		}
+	}
+
+	/*
+	 * @return long - bytes held by the per-level arrays
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (int depth = 0; depth < height; depth++) {
+			size += _vectors[depth].length * (long)(Short.SIZE / 8);
+			size += _leaves[depth].length * (long)(Integer.SIZE / 8);
+			size += _subnodes[depth].length * (long)(Integer.SIZE / 8);
+			if (depth < height - 1) {
+				size += _child_base[depth].length * (long)(Integer.SIZE / 8);
+			}
+		}
+		return size;
+	}
+
+	public int getLeaves() {
+		return _leaves[0][0];
+	}
+
+	public int getSubnodes() {
+		return _subnodes[0][0];
+	}
+
+	public static VectorTreeIterator intersect(ArrayList<FlatVectorTree> trees) {
+
+		ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants =
+				new ArrayList<HashMap<Integer,ArrayList<Record>>>();
+
+		// extract all records registered for this intersection
+		for (FlatVectorTree tree : trees) {
+			all_registrants.add(tree._registrants);
+		}
+
+		VectorTreeIterator iterator = new VectorTreeIterator(all_registrants);
+
+		// one row of slots per depth, one slot per tree, all starting at the root
+		int[][] slots = new int[height][trees.size()];
+
+		intersectNode(trees, 0, 0, slots, iterator);
+
+		return iterator;
+	}
+
+	private static void intersectNode(
+			ArrayList<FlatVectorTree> trees,
+			int prefix,
+			int depth,
+			int[][] slots,
+			VectorTreeIterator iterator) {
+
+		int num_trees = trees.size();
+		int[] current = slots[depth];
+
+		int vector_intersection = ~0;
+		for (int t = 0; t < num_trees; t++) {
+			vector_intersection &= trees.get(t)._vectors[depth][current[t]];
+		}
+		vector_intersection &= 0xffff;
+
+		if (vector_intersection == 0) {
+			return;
+		}
+
+		// are we at leaf level?
+		if (depth == height - 1) {
+			iterator.enqueue(new VectorTreeIterator.Matches(prefix << bits_per_level, vector_intersection));
+			return;
+		}
+
+		int[] next = slots[depth + 1];
+
+		while (vector_intersection != 0) {
+			int offset = Integer.numberOfTrailingZeros(vector_intersection);
+			vector_intersection &= vector_intersection - 1;
+
+			// children of surviving offsets exist in every tree
+			for (int t = 0; t < num_trees; t++) {
+				next[t] = trees.get(t)._child_base[depth][current[t]] + offset;
+			}
+
+			intersectNode(trees, (prefix << bits_per_level) + offset, depth + 1, slots, iterator);
+		}
+	}
+
+	/*
+	 * compares load time, intersection time and memory per key against the
+	 * node-based VectorTree on the same generated key sets
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 5) {
+			System.err.println("Arguments: num_sets set_size set_density set_overlap repetitions");
+			return;
+		}
+
+		int num_sets = Integer.parseInt(args[0]);
+		int set_size = Integer.parseInt(args[1]);
+		double set_density = Double.parseDouble(args[2]);
+		double set_overlap = Double.parseDouble(args[3]);
+		int repetitions = Integer.parseInt(args[4]);
+
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i = 1; i < num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		ArrayList<VectorTree> vector_trees = new ArrayList<VectorTree>(num_sets);
+		ArrayList<FlatVectorTree> flat_trees = new ArrayList<FlatVectorTree>(num_sets);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < num_sets; i++) {
+			VectorTree vt = new VectorTree();
+			for (int key : key_sets[i])
+				vt.insert(key, new Record());
+			vector_trees.add(vt);
+		}
+		long tree_insert = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long flat_bytes = 0;
+		for (int i = 0; i < num_sets; i++) {
+			FlatVectorTree ft = new FlatVectorTree();
+			for (int key : key_sets[i])
+				ft.insert(key, new Record());
+			flat_trees.add(ft);
+			flat_bytes += ft.getSizeInBytes();
+		}
+		long flat_insert = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int n = 0; n < repetitions; n++)
+			VectorTree.intersect(vector_trees, false);
+		long tree_intersect = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int n = 0; n < repetitions; n++)
+			FlatVectorTree.intersect(flat_trees);
+		long flat_intersect = System.nanoTime() - start;
+
+		System.out.println("insert ms:\t" + (tree_insert / 1000000.0) + "\t" + (flat_insert / 1000000.0));
+		System.out.println("intersect ms:\t" + (tree_intersect / 1000000.0) + "\t" + (flat_intersect / 1000000.0));
+		System.out.println("flat bytes/key:\t" + ((double)flat_bytes / (num_sets * set_size)));
+	}
+}
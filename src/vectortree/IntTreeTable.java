@@ -0,0 +1,184 @@
+package vectortree;
+
+/*
+ * open-addressing hash table mapping primitive long high parts to the int
+ * trees of a LongVectorTree
+ *
+ * laid out as NodeTable: the high parts are stored unboxed in a parallel
+ * long array, collisions are resolved by linear probing and removal shifts
+ * later entries back, so that a tree of a key per high part pays no boxed
+ * key or map entry on top of its int tree.
+ */
+class IntTreeTable {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// resize once the table is more than 3/4 full
+	private static final int LOAD_FACTOR_NUMERATOR = 3;
+	private static final int LOAD_FACTOR_DENOMINATOR = 4;
+
+	// members
+	private long[] _keys;
+	private VectorTree[] _values;
+	private int _mask;
+	private int _size;
+	private int _threshold;
+
+	IntTreeTable() {
+		allocate(DEFAULT_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		_values = new VectorTree[capacity];
+		_mask = capacity - 1;
+		_threshold = capacity / LOAD_FACTOR_DENOMINATOR * LOAD_FACTOR_NUMERATOR;
+		_size = 0;
+	}
+
+	/*
+	 * spreads the high part over all bits, since the high parts of nearby
+	 * keys differ only in their low-order bits
+	 */
+	private int slotFor(long high) {
+		long h = high * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & _mask;
+	}
+
+	int size() {
+		return _size;
+	}
+
+	/*
+	 * @return VectorTree - the int tree of this high part, null if absent
+	 */
+	VectorTree get(long high) {
+		int slot = slotFor(high);
+
+		while (_values[slot] != null) {
+			if (_keys[slot] == high) {
+				return _values[slot];
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		return null;
+	}
+
+	/*
+	 * stores the tree under this high part, replacing any previous tree
+	 */
+	void put(long high, VectorTree tree) {
+		int slot = slotFor(high);
+
+		while (_values[slot] != null) {
+			if (_keys[slot] == high) {
+				_values[slot] = tree;
+				return;
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		_keys[slot] = high;
+		_values[slot] = tree;
+
+		if (++_size > _threshold) {
+			resize(_keys.length << 1);
+		}
+	}
+
+	/*
+	 * @return VectorTree - the tree removed from this high part, null if
+	 *                      there was none
+	 */
+	VectorTree remove(long high) {
+		int slot = slotFor(high);
+
+		while (_values[slot] != null) {
+			if (_keys[slot] == high) {
+				VectorTree removed = _values[slot];
+				shiftBackFrom(slot);
+				_size--;
+				return removed;
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		return null;
+	}
+
+	/*
+	 * @return long[] - the stored high parts, in no particular order
+	 */
+	long[] getHighParts() {
+		long[] high_parts = new long[_size];
+		int count = 0;
+		for (int i = 0; i < _keys.length; i++) {
+			if (_values[i] != null) {
+				high_parts[count++] = _keys[i];
+			}
+		}
+		return high_parts;
+	}
+
+	/*
+	 * @return VectorTree[] - the stored trees, in no particular order
+	 */
+	VectorTree[] getTrees() {
+		VectorTree[] trees = new VectorTree[_size];
+		int count = 0;
+		for (int i = 0; i < _values.length; i++) {
+			if (_values[i] != null) {
+				trees[count++] = _values[i];
+			}
+		}
+		return trees;
+	}
+
+	/*
+	 * closes the gap left at the given slot as NodeTable does
+	 */
+	private void shiftBackFrom(int gap) {
+		int slot = gap;
+
+		while (true) {
+			slot = (slot + 1) & _mask;
+
+			if (_values[slot] == null) {
+				break;
+			}
+
+			int home = slotFor(_keys[slot]);
+			boolean movable = (gap <= slot) ?
+					(home <= gap || home > slot) :
+					(home <= gap && home > slot);
+
+			if (movable) {
+				_keys[gap] = _keys[slot];
+				_values[gap] = _values[slot];
+				gap = slot;
+			}
+		}
+
+		_values[gap] = null;
+	}
+
+	private void resize(int capacity) {
+		long[] old_keys = _keys;
+		VectorTree[] old_values = _values;
+
+		allocate(capacity);
+
+		for (int i = 0; i < old_keys.length; i++) {
+			if (old_values[i] != null) {
+				int slot = slotFor(old_keys[i]);
+				while (_values[slot] != null) {
+					slot = (slot + 1) & _mask;
+				}
+				_keys[slot] = old_keys[i];
+				_values[slot] = old_values[i];
+				_size++;
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package vectortree;
+
+/*
+ * estimated size of a multiway intersection, as returned by
+ * VectorTree.estimateIntersection()
+ *
+ * the bounds always hold, and the estimate lies between them. they meet,
+ * and the estimate is exact, if the estimate was counted down to the
+ * leaves. the standard error only covers the part of the estimate that
+ * was sampled.
+ */
+public class IntersectionEstimate {
+
+	// members
+
+	private long _estimate;
+	private double _standard_error;
+	private long _lower_bound;
+	private long _upper_bound;
+
+
+	IntersectionEstimate(long estimate, double standard_error, long lower_bound, long upper_bound) {
+		_estimate = estimate;
+		_standard_error = standard_error;
+		_lower_bound = lower_bound;
+		_upper_bound = upper_bound;
+	}
+
+	public long getEstimate() {
+		return _estimate;
+	}
+
+	public double getStandardError() {
+		return _standard_error;
+	}
+
+	/*
+	 * @return long - the fewest keys the intersection can hold
+	 */
+	public long getLowerBound() {
+		return _lower_bound;
+	}
+
+	/*
+	 * @return long - the most keys the intersection can hold
+	 */
+	public long getUpperBound() {
+		return _upper_bound;
+	}
+
+	public boolean isExact() {
+		return _lower_bound == _upper_bound;
+	}
+
+	@Override
+	public String toString() {
+		return "estimate " + _estimate + " +- " + Math.round(_standard_error) +
+				", bounds [" + _lower_bound + ", " + _upper_bound + "]";
+	}
+}
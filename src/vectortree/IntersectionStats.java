@@ -0,0 +1,91 @@
+package vectortree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * statistics of one intersection, passed to intersect() and its variants
+ *
+ * counters are safe to update from the tasks of a parallel intersection, so
+ * one object covers the whole query however it is run. an intersection given
+ * no statistics object counts nothing.
+ *
+ * filter counts are kept per depth, and summed over all depths by the
+ * accessors without one.
+ */
+public class IntersectionStats {
+
+	// one more than the deepest depth of any tree, that of 64-bit keys at a
+	// single bit per level
+	private static final int MAX_HEIGHT = Long.SIZE;
+
+	// members
+
+	// filter intersections performed below max_bloom_level
+	private LongAdder[] _bloom_checks = createCounters();
+
+	// subtrees pruned because no key survived the filter intersection
+	private LongAdder[] _bloom_hits = createCounters();
+
+	// filter intersections left out because the filters of their depth
+	// did not prune often enough to pay for themselves, or to time the
+	// subtrees below them, see BloomFilterPolicy
+	private LongAdder[] _bloom_skips = createCounters();
+
+
+	private static LongAdder[] createCounters() {
+		LongAdder[] counters = new LongAdder[MAX_HEIGHT];
+		for (int depth = 0; depth < MAX_HEIGHT; depth++) {
+			counters[depth] = new LongAdder();
+		}
+		return counters;
+	}
+
+	private static long sum(LongAdder[] counters) {
+		long sum = 0;
+		for (LongAdder counter : counters) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+
+	void countBloomCheck(int depth) {
+		_bloom_checks[depth].increment();
+	}
+
+	void countBloomHit(int depth) {
+		_bloom_hits[depth].increment();
+	}
+
+	void countBloomSkip(int depth) {
+		_bloom_skips[depth].increment();
+	}
+
+	public long getBloomChecks() {
+		return sum(_bloom_checks);
+	}
+
+	public long getBloomHits() {
+		return sum(_bloom_hits);
+	}
+
+	public long getBloomSkips() {
+		return sum(_bloom_skips);
+	}
+
+	public long getBloomChecks(int depth) {
+		return _bloom_checks[depth].sum();
+	}
+
+	public long getBloomHits(int depth) {
+		return _bloom_hits[depth].sum();
+	}
+
+	public long getBloomSkips(int depth) {
+		return _bloom_skips[depth].sum();
+	}
+
+	@Override
+	public String toString() {
+		return "bloom checks " + getBloomChecks() + ", bloom hits " + getBloomHits() + ", bloom skips " + getBloomSkips();
+	}
+}
@@ -0,0 +1,159 @@
+package vectortree;
+
+/*
+ * approximate membership filter over int keys, as kept by every tree node
+ *
+ * filters built with the same seed, size and implementation map a key to the
+ * same bits, so their words can be ANDed to find keys that may be in all of
+ * them.
+ */
+public interface KeyFilter {
+
+	// estimateIntersection() takes an OR of every subset of the filters
+	public static final int MAX_ESTIMATED_FILTERS = 6;
+
+	public void add(int key);
+
+	public boolean query(int key);
+
+	/*
+	 * takes a key out of the filter again, where the filter supports it
+	 *
+	 * @return boolean - false if the filter cannot forget keys, and the
+	 *                   call had no effect
+	 */
+	public boolean remove(int key);
+
+	public int getNumberOfHashFunctions();
+
+	/*
+	 * a key common to filters sharing its hash parameters sets at least as
+	 * many bits in their intersection as the most of these
+	 *
+	 * @return int - the fewest distinct bits set by any key added, at most
+	 *               the number of hash functions
+	 */
+	public int getMinimumKeyBits();
+
+	/*
+	 * @return int - the number of words holding the bits of the filter
+	 */
+	public int getWordCount();
+
+	/*
+	 * @return long - the bits of the filter at the given word, 64 to a word
+	 */
+	public long getWord(int index);
+
+	/*
+	 * @return KeyFilter - an empty filter sharing this filter's hash
+	 *                     parameters, and therefore intersectable with it
+	 */
+	public KeyFilter emptyCopy();
+
+	/*
+	 * checks whether any bit is set in all of the first count filters,
+	 * returning on the first word in which one survives
+	 */
+	public static boolean anySurvivors(KeyFilter[] filters, int count) {
+		return hasSurvivors(filters, count, 1);
+	}
+
+	/*
+	 * checks whether at least min_bits bits are set in all of the first
+	 * count filters, returning as soon as that many have been seen
+	 *
+	 * with min_bits set to the number of hash functions, this is equivalent
+	 * to (BloomFilter.intersectMutiway(...) > 0); min_bits must not exceed
+	 * the distinct bits a key sets, see getMinimumKeyBits()
+	 */
+	public static boolean hasSurvivors(KeyFilter[] filters, int count, int min_bits) {
+
+		// if we are passed no filters, indicate no overlap
+		if (count == 0) {
+			return false;
+		}
+
+		KeyFilter initial_filter = filters[0];
+
+		int words = initial_filter.getWordCount();
+		for (int f = 1; f < count; f++)
+			words = Math.min(words, filters[f].getWordCount());
+
+		int cardinality = 0;
+		for (int w = 0; w < words; w++) {
+			long intersection = initial_filter.getWord(w);
+			for (int f = 1; f < count && intersection != 0; f++)
+				intersection &= filters[f].getWord(w);
+			if (intersection != 0) {
+				cardinality += Long.bitCount(intersection);
+				if (cardinality >= min_bits)
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * estimates the number of keys added to every one of the first count
+	 * filters, which must span whole words
+	 *
+	 * after Swamidass and Baldi, a filter of m bits and k hash functions
+	 * with x bits set holds about -(m / k) * ln(1 - x / m) keys. the OR of
+	 * any of the filters estimates the union of their keys in the same
+	 * way, and inclusion-exclusion over the unions of every subset of the
+	 * filters yields the keys common to all. unlike the bits set in their
+	 * AND alone, this does not take keys shared by only some of the
+	 * filters for common ones. it takes keys to set bits at random, which
+	 * modular hashing only approximates for dense runs of keys, so fast
+	 * hashing estimates those more closely.
+	 *
+	 * @return double - the estimated number of common keys, NaN if there
+	 *                  are more than MAX_ESTIMATED_FILTERS filters, or if an
+	 *                  OR of them has every bit set, so that nothing can be
+	 *                  told
+	 */
+	public static double estimateIntersection(KeyFilter[] filters, int count) {
+
+		if (count == 0) {
+			return 0;
+		}
+
+		if (count > MAX_ESTIMATED_FILTERS) {
+			return Double.NaN;
+		}
+
+		int words = filters[0].getWordCount();
+		for (int f = 1; f < count; f++)
+			words = Math.min(words, filters[f].getWordCount());
+
+		// each subset of the filters is built from the one without its
+		// lowest filter
+		int subsets = 1 << count;
+		long[] unions = new long[subsets];
+		int[] cardinalities = new int[subsets];
+		for (int w = 0; w < words; w++) {
+			for (int subset = 1; subset < subsets; subset++) {
+				int lowest = Integer.numberOfTrailingZeros(subset);
+				unions[subset] = unions[subset & (subset - 1)] | filters[lowest].getWord(w);
+				cardinalities[subset] += Long.bitCount(unions[subset]);
+			}
+		}
+
+		double bits = (double)words * Long.SIZE;
+		double log_q = filters[0].getNumberOfHashFunctions() * Math.log1p(-1 / bits);
+
+		double keys = 0;
+		for (int subset = 1; subset < subsets; subset++) {
+			if (cardinalities[subset] == bits) {
+				return Double.NaN;
+			}
+
+			double union = Math.log1p(-cardinalities[subset] / bits) / log_q;
+			keys += ((Integer.bitCount(subset) & 1) == 1) ? union : -union;
+		}
+
+		return Math.max(0, keys);
+	}
+}
@@ -0,0 +1,62 @@
+package vectortree;
+
+import java.nio.ByteBuffer;
+
+/*
+ * read-only view of filter words kept in a byte buffer, outside the heap
+ *
+ * only the words are kept, not the hash parameters, so the view takes part
+ * in intersections but cannot be queried.
+ */
+class KeyFilterView implements KeyFilter {
+
+	private ByteBuffer _buffer;
+	private int _offset;
+	private int _words;
+	private int _hash_functions;
+	private int _minimum_key_bits;
+
+	/*
+	 * minimum_key_bits must not exceed the distinct bits any key in the
+	 * filter sets
+	 */
+	public KeyFilterView(ByteBuffer buffer, int offset, int words, int hash_functions, int minimum_key_bits) {
+		_buffer = buffer;
+		_offset = offset;
+		_words = words;
+		_hash_functions = hash_functions;
+		_minimum_key_bits = minimum_key_bits;
+	}
+
+	public void add(int key) {
+		throw new UnsupportedOperationException("filter views are read-only");
+	}
+
+	public boolean query(int key) {
+		throw new UnsupportedOperationException("filter views only take part in intersections");
+	}
+
+	public boolean remove(int key) {
+		return false;
+	}
+
+	public int getNumberOfHashFunctions() {
+		return _hash_functions;
+	}
+
+	public int getMinimumKeyBits() {
+		return _minimum_key_bits;
+	}
+
+	public int getWordCount() {
+		return _words;
+	}
+
+	public long getWord(int index) {
+		return _buffer.getLong(_offset + (index << 3));
+	}
+
+	public KeyFilter emptyCopy() {
+		throw new UnsupportedOperationException("filter views are read-only");
+	}
+}
@@ -0,0 +1,263 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/*
+ * iterator that performs the multiway intersection on demand
+ *
+ * instead of descending the whole tree up front, it keeps an explicit stack
+ * holding, per depth, the prefix being visited and the surviving offsets not
+ * yet descended into. each call to advance() resumes the descent until the
+ * next non-empty leaf intersection, so memory is bounded by the tree height
+ * and a consumer that stops early never pays for the rest of the traversal.
+ *
+ * if any tree compresses paths, the stack also holds the chains covering
+ * the children of each node, and a descent below a node at which every
+ * tree is inside a chain jumps to the shallowest of their ends, leaving
+ * the levels in between empty.
+ *
+ * the children of nodes near the root order the trees anew, see TreeOrder,
+ * so each node is intersected in the order of its parent, or its own.
+ *
+ * the trees must not be modified while the iterator is in use.
+ */
+public class LazyVectorTreeIterator extends VectorTreeIterator {
+
+	// members
+
+	private BloomFilterPolicy _bloom_policy;
+	private KeyFilter[] _bloom_filters;
+	private IntersectionStats _stats;
+	private int _bits_per_level;
+	private int _height;
+
+	// traversal stack, indexed by depth; pending offsets are kept a word
+	// per 64 offsets, with the lowest word that may still hold any
+	private int[] _prefixes;
+	private long[][] _pending;
+	private int[] _pending_words;
+	private int _top;
+
+	// the chains covering the children of the node at each depth, null if
+	// no tree compresses paths
+	private VectorTreeNode[][] _chains;
+
+	// the order of the trees at the nodes of the stack
+	private TreeOrder _order;
+
+	// intersection of the last leaf, and its next word to hand out
+	private int _leaf_prefix;
+	private long[] _leaf;
+	private int _leaf_word;
+
+
+	public LazyVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			short bits_per_level,
+			short height,
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter) {
+
+		this(all_registrants, bits_per_level, height, trees, use_bloom_filter, null);
+	}
+
+	/*
+	 * counts into stats, unless it is null, as the iterator is consumed
+	 */
+	public LazyVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			short bits_per_level,
+			short height,
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			IntersectionStats stats) {
+
+		this(all_registrants, bits_per_level, height, trees,
+				BloomFilterPolicy.create(height, trees.get(0).getConfig(), use_bloom_filter), stats);
+	}
+
+	private LazyVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			short bits_per_level,
+			short height,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats) {
+
+		// begin intersection at the root node, which is never inside a chain
+		this(all_registrants, bits_per_level, height, trees, bloom_policy, stats,
+				0, 0, getRootSurvivors(trees, bloom_policy, stats),
+				VectorTree.compressesPaths(trees) ? new VectorTreeNode[trees.size()] : null);
+	}
+
+	private static long[] getRootSurvivors(
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats) {
+
+		long[] survivors = new long[trees.get(0).getVectorWords()];
+		VectorTree.getSurvivors(0, 0, trees, bloom_policy, new KeyFilter[trees.size()], survivors, stats);
+		return survivors;
+	}
+
+	/*
+	 * starts the traversal below an inner node whose surviving offsets have
+	 * already been computed, visiting only the given offsets; chains holds
+	 * the chains covering its children, or is null if no tree compresses
+	 * paths, and bloom_policy is null if no filters are used
+	 */
+	LazyVectorTreeIterator(
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
+			short bits_per_level,
+			short height,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats,
+			int prefix,
+			int depth,
+			long[] offsets,
+			VectorTreeNode[] chains) {
+
+		super(all_registrants);
+
+		_bloom_policy = bloom_policy;
+		_bloom_filters = new KeyFilter[trees.size()];
+		_stats = stats;
+		_bits_per_level = bits_per_level;
+		_height = height;
+
+		_prefixes = new int[height];
+		_pending = new long[height][offsets.length];
+		_pending_words = new int[height];
+
+		_leaf = new long[offsets.length];
+		_leaf_word = _leaf.length;
+
+		if (chains != null) {
+			_chains = new VectorTreeNode[height][trees.size()];
+			System.arraycopy(chains, 0, _chains[depth], 0, chains.length);
+		}
+
+		_order = new TreeOrder(trees, height - 1, chains != null);
+
+		_top = -1;
+		System.arraycopy(offsets, 0, _pending[depth], 0, offsets.length);
+		push(prefix, depth);
+	}
+
+	/*
+	 * pushes an inner node, whose surviving offsets are already in
+	 * _pending[depth], onto the stack
+	 */
+	private void push(int prefix, int depth) {
+		_top = depth;
+		_prefixes[depth] = prefix;
+		_pending_words[depth] = 0;
+	}
+
+	@Override
+	protected boolean advance() {
+
+		while (true) {
+
+			// hand out the remaining words of the last leaf intersection
+			while (_leaf_word < _leaf.length) {
+				int word = _leaf_word++;
+
+				if (_leaf[word] != 0) {
+					setCurrentMatchset((_leaf_prefix << _bits_per_level) + (word << 6), _leaf[word]);
+					return true;
+				}
+			}
+
+			if (_top < 0) {
+				if (_bloom_policy != null) {
+					_bloom_policy.finish();
+				}
+				return false;
+			}
+
+			long[] pending = _pending[_top];
+			int word = _pending_words[_top];
+			while ((word < pending.length) && (pending[word] == 0)) {
+				word++;
+			}
+			_pending_words[_top] = word;
+
+			// have all offsets at this depth been visited?
+			if (word == pending.length) {
+				_top--;
+				continue;
+			}
+
+			// take the lowest pending offset
+			long bits = pending[word];
+			int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+			pending[word] = bits & (bits - 1);
+
+			int prefix = (_prefixes[_top] << _bits_per_level) + offset;
+			int depth = _top + 1;
+
+			if (_chains != null) {
+				advanceBelowChains(prefix, depth);
+				continue;
+			}
+
+			ArrayList<VectorTree> trees = _order.getTrees(_top);
+			if (_order.reorders(_top, depth)) {
+				trees = _order.order(prefix, depth, trees, null);
+			}
+
+			// are we at leaf level?
+			if (depth == _height - 1) {
+				// were results produced?
+				if (VectorTree.getLeafIntersection(prefix, depth, trees, _leaf, _bloom_policy, null, null)) {
+					// a leaf of up to 64 offsets is handed out right away
+					if (_leaf.length == 1) {
+						setCurrentMatchset(prefix << _bits_per_level, _leaf[0]);
+						return true;
+					}
+					_leaf_prefix = prefix;
+					_leaf_word = 0;
+				}
+			} else if (VectorTree.getSurvivors(prefix, depth, trees, _bloom_policy, _bloom_filters,
+					_pending[depth], _stats)) {
+				push(prefix, depth);
+			}
+		}
+	}
+
+	/*
+	 * visits the child at the given prefix and depth of the node on top of
+	 * the stack, or the node the chains covering it jump to
+	 */
+	private void advanceBelowChains(int prefix, int depth) {
+		VectorTreeNode[] chains = _chains[_top];
+
+		int jump = VectorTree.getChainJump(chains, depth, _bits_per_level);
+		if (jump < 0) {
+			return;
+		}
+		if (jump > depth) {
+			prefix = ((VectorTreeChainNode)chains[0]).getPrefixAt(jump, _bits_per_level);
+			depth = jump;
+		}
+
+		ArrayList<VectorTree> trees = _order.getTrees(_top);
+		if (_order.reorders(_top, depth)) {
+			trees = _order.order(prefix, depth, trees, chains);
+			chains = _order.getChains(depth);
+		}
+
+		if (depth == _height - 1) {
+			if (VectorTree.getLeafIntersection(prefix, depth, trees, _leaf, _bloom_policy, chains, _chains[depth])) {
+				_leaf_prefix = prefix;
+				_leaf_word = 0;
+			}
+		} else if (VectorTree.getSurvivors(prefix, depth, trees, _bloom_policy, _bloom_filters,
+				_pending[depth], _stats, chains, _chains[depth])) {
+			push(prefix, depth);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package vectortree;
+
+/*
+ * set of the low 16 bits of the keys sharing their upper 16 bits, as kept
+ * below the vector levels of a ContainerVectorTree
+ *
+ * a container takes whichever of three forms is smallest for its values: a
+ * sorted array of at most MAX_ARRAY_SIZE values, a bitmap of all of them,
+ * or a sorted list of runs. add() and remove() return the container holding
+ * the values afterwards, which is a new one whenever the form changed.
+ *
+ * values are passed as ints in [0, 1 << VALUE_BITS).
+ */
+public interface LeafContainer {
+
+	public static final int VALUE_BITS = 16;
+
+	// beyond this, an array takes more bytes than a bitmap
+	public static final int MAX_ARRAY_SIZE = 4096;
+
+	public static final int BITMAP_WORDS = (1 << VALUE_BITS) / Long.SIZE;
+	public static final int BITMAP_BYTES = (1 << VALUE_BITS) / Byte.SIZE;
+
+	public int getCardinality();
+
+	public boolean contains(int value);
+
+	public LeafContainer add(int value);
+
+	public LeafContainer remove(int value);
+
+	/*
+	 * @return int - the number of runs of consecutive values
+	 */
+	public int getNumberOfRuns();
+
+	/*
+	 * @return int - the bytes taken by the values, without object headers
+	 */
+	public int getSizeInBytes();
+
+	/*
+	 * @return int - the number of values in [from, to)
+	 */
+	public int countIn(int from, int to);
+
+	/*
+	 * the word of a vector node derived from the container, whose offsets
+	 * stand for runs of (1 << child_bits) values starting at from
+	 *
+	 * @return long - bit o set if any value lies in
+	 *                [from + (o << child_bits), from + ((o + 1) << child_bits)),
+	 *                counting only values below to
+	 */
+	public long getChildWord(int from, int to, int child_bits);
+
+	/*
+	 * copies the values, in ascending order, into an array of at least
+	 * getCardinality() elements
+	 *
+	 * @return int - the number of values copied
+	 */
+	public int copyTo(char[] values);
+
+	/*
+	 * overwrites the BITMAP_WORDS words with the bitmap of the values
+	 */
+	public void copyTo(long[] words);
+
+	/*
+	 * intersection kernel keeping, in place, the first count of the sorted
+	 * values that are in this container
+	 *
+	 * @return int - the number of values kept
+	 */
+	public int retainIn(char[] values, int count);
+
+	/*
+	 * intersection kernel ANDing the container into a bitmap of
+	 * BITMAP_WORDS words
+	 *
+	 * @return boolean - whether any bit survives
+	 */
+	public boolean retainIn(long[] words);
+
+	/*
+	 * @return LeafContainer - the container, or a copy of it in whichever
+	 *                         form takes the fewest bytes
+	 */
+	public static LeafContainer compact(LeafContainer container) {
+		int cardinality = container.getCardinality();
+		int array_bytes = (cardinality <= MAX_ARRAY_SIZE) ? Character.BYTES * cardinality : Integer.MAX_VALUE;
+
+		if (RunContainer.getSizeInBytes(container.getNumberOfRuns()) < Math.min(array_bytes, BITMAP_BYTES)) {
+			return (container instanceof RunContainer) ? container : new RunContainer(container);
+		}
+
+		if (array_bytes <= BITMAP_BYTES) {
+			return (container instanceof ArrayContainer) ? container : new ArrayContainer(container);
+		}
+
+		return (container instanceof BitmapContainer) ? container : new BitmapContainer(container);
+	}
+
+	/*
+	 * @return LeafContainer - the first count of the given distinct values,
+	 *                         sorted ascending, in the form taking the
+	 *                         fewest bytes
+	 */
+	public static LeafContainer fromSorted(char[] values, int count) {
+		return compact(new ArrayContainer(values, count));
+	}
+}
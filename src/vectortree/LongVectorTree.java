@@ -0,0 +1,354 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * vector tree over 64-bit keys
+ *
+ * a key is split into its high 33 bits, which pick a VectorTree, and its
+ * low 31 bits, which are inserted into that tree, since int trees only
+ * take non-negative keys. keys are taken as unsigned, so intersections
+ * return them in unsigned order.
+ *
+ * the keys of a sparse 64-bit key space mostly share their high bits, ids
+ * below 2^40 sharing the top 24 for instance, so the upper levels of a
+ * full tree would be chains of single-child nodes. here they take a single
+ * lookup, and only the levels of an int tree are stored: 8 at 4 bits per
+ * level, 6 at 6 bits or 4 at 8 bits. insertion, removal, bloom filters,
+ * path compression and the intersection below the high bits are all those
+ * of VectorTree; this class only keeps the high bits and decodes the keys.
+ *
+ * the high parts are kept unboxed in an IntTreeTable. as a key space whose
+ * high bits vary leaves most high parts with a single key, the int trees
+ * compress their paths, start at the smallest tables and share the path of
+ * their insertions, so that such a key takes a root and a chain node below
+ * its high part rather than a full path and the tables of a tree.
+ *
+ * the bloom filter depths of a config of 64 bits per key count from the
+ * root of the full 64-bit tree, and are moved up by the levels above the
+ * int trees, see getIntConfig(). the filters are given the low bits of the
+ * keys, which they hold exactly.
+ */
+public class LongVectorTree {
+
+	private static int num_sets = 4;
+	private static int set_size = 1000000;
+	private static double set_density = 0.2;
+	private static double set_overlap = 0.2;
+	private static int repetitions = 10;
+
+	// settings of the trees built by the benchmark
+	private static VectorTreeConfig benchmark_config = VectorTreeConfig.DEFAULT_LONG_KEYS;
+
+	// bits of a key below its high part
+	static final int LOW_BITS = Integer.SIZE - 1;
+	private static final long LOW_MASK = (1L << LOW_BITS) - 1;
+
+	// members
+
+	private VectorTreeConfig _config;
+	private VectorTreeConfig _int_config;
+
+	// the int tree of each high part holding any key, by high part
+	private IntTreeTable _int_trees;
+
+	// the first int tree, whose path of the last insertion or removal all
+	// int trees share, since only one of them is written at a time
+	private VectorTree _path_owner;
+
+	// the high parts in ascending order and their int trees, as the
+	// intersection merges them, null until it asks for them after a high
+	// part was added or removed
+	private long[] _high_parts;
+	private VectorTree[] _high_part_trees;
+
+	// whether inserted keys are added to node bloom filters
+	private boolean _maintain_bloom_filters;
+
+
+	public LongVectorTree() {
+		this(true);
+	}
+
+	public LongVectorTree(boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT_LONG_KEYS, maintain_bloom_filters);
+	}
+
+	public LongVectorTree(VectorTreeConfig config, boolean maintain_bloom_filters) {
+		if (config.getBitsPerKey() != Long.SIZE) {
+			throw new IllegalArgumentException("trees over long keys need a config of " + Long.SIZE + " bits per key");
+		}
+
+		_config = config;
+		_int_config = getIntConfig(config);
+		_maintain_bloom_filters = maintain_bloom_filters;
+		_int_trees = new IntTreeTable();
+	}
+
+	/*
+	 * the levels of both trees line up from the leaves, so that a depth of
+	 * the int tree lies as many levels below the same depth of the 64-bit
+	 * tree as the int tree is shorter. the int trees always compress their
+	 * paths, since a high part holding few keys would otherwise store a
+	 * full path of single-child nodes per key
+	 *
+	 * @return VectorTreeConfig - the config of the int trees below the high
+	 *                            parts of a tree of the given config
+	 */
+	static VectorTreeConfig getIntConfig(VectorTreeConfig config) {
+		VectorTreeConfig int_config = config.withBitsPerKey(Integer.SIZE);
+		int levels_above = config.getHeight() - int_config.getHeight();
+
+		return int_config
+				.withPathCompression(true)
+				.withMaxBloomLevel(config.getMaxBloomLevel() - levels_above)
+				.withBlockedBloomLevel(config.getBlockedBloomLevel() - levels_above);
+	}
+
+	public void insert(long key, Record record) {
+		long high = key >>> LOW_BITS;
+
+		VectorTree tree = _int_trees.get(high);
+		if (tree == null) {
+			// most high parts of a sparse key space hold a single key, so
+			// new trees start at the smallest tables
+			tree = new VectorTree(_int_config, _maintain_bloom_filters, 1, _path_owner);
+			if (_path_owner == null) {
+				_path_owner = tree;
+			}
+			_int_trees.put(high, tree);
+			_high_parts = null;
+		}
+
+		tree.insert((int)(key & LOW_MASK), record);
+	}
+
+	public void remove(long key, Record record) {
+		long high = key >>> LOW_BITS;
+
+		VectorTree tree = _int_trees.get(high);
+		if (tree == null) {
+			return;
+		}
+
+		tree.remove((int)(key & LOW_MASK), record);
+
+		// an emptied tree is created afresh by the next key of its high part
+		if (tree.isEmpty()) {
+			_int_trees.remove(high);
+			_high_parts = null;
+		}
+	}
+
+	/*
+	 * @return ArrayList<Record> - the records registered to the key, empty
+	 *                             if there are none
+	 */
+	public ArrayList<Record> getRecords(long key) {
+		VectorTree tree = _int_trees.get(key >>> LOW_BITS);
+		ArrayList<Record> registrants = (tree == null) ? null : tree.getRegistrants().get((int)(key & LOW_MASK));
+		return (registrants == null) ? new ArrayList<Record>() : registrants;
+	}
+
+	/*
+	 * the high parts are sorted once for any number of intersections, and
+	 * again after a high part was added or removed
+	 *
+	 * @return long[] - the high parts holding any key, in ascending order
+	 */
+	synchronized long[] getHighParts() {
+		if (_high_parts == null) {
+			long[] high_parts = _int_trees.getHighParts();
+			Arrays.sort(high_parts);
+
+			VectorTree[] trees = new VectorTree[high_parts.length];
+			for (int i = 0; i < high_parts.length; i++) {
+				trees[i] = _int_trees.get(high_parts[i]);
+			}
+
+			_high_part_trees = trees;
+			_high_parts = high_parts;
+		}
+
+		return _high_parts;
+	}
+
+	/*
+	 * @return VectorTree[] - the int trees of the high parts, in the order
+	 *                        of getHighParts()
+	 */
+	synchronized VectorTree[] getHighPartTrees() {
+		getHighParts();
+		return _high_part_trees;
+	}
+
+	public VectorTreeConfig getConfig() {
+		return _config;
+	}
+
+	/*
+	 * @return int - the number of high parts holding any key, each of which
+	 *               has an int tree of its own
+	 */
+	public int getIntTreeCount() {
+		return _int_trees.size();
+	}
+
+	public int getNodeCount() {
+		int count = 0;
+		for (VectorTree tree : _int_trees.getTrees()) {
+			count += tree.getNodeTable().size();
+		}
+		return count;
+	}
+
+	public static LongVectorTreeIterator intersect(ArrayList<LongVectorTree> trees, boolean use_bloom_filter) {
+		return intersect(trees, use_bloom_filter, null);
+	}
+
+	/*
+	 * as intersect(trees, use_bloom_filter), counting into stats, which may
+	 * be null, as the iterator is consumed
+	 */
+	public static LongVectorTreeIterator intersect(
+			ArrayList<LongVectorTree> trees,
+			boolean use_bloom_filter,
+			IntersectionStats stats) {
+
+		checkFanOut(trees);
+
+		return new LongVectorTreeIterator(trees, use_bloom_filter, stats);
+	}
+
+	/*
+	 * the int trees are checked by VectorTree.intersect(), but only for the
+	 * high parts held by every tree
+	 */
+	static void checkFanOut(ArrayList<LongVectorTree> trees) {
+		if (trees.isEmpty()) {
+			throw new IllegalArgumentException("no trees to intersect");
+		}
+
+		for (LongVectorTree tree : trees) {
+			if (tree._config.getBitsPerLevel() != trees.get(0)._config.getBitsPerLevel()) {
+				throw new IllegalArgumentException("trees of different fan-outs cannot be intersected");
+			}
+		}
+	}
+
+	/*
+	 * consumes all results, since intersection runs as the iterator is read
+	 *
+	 * @return int - the number of keys in the intersection
+	 */
+	private static int drain(LongVectorTreeIterator iterator) {
+		int counter = 0;
+		while (iterator.hasNext()) {
+			iterator.nextLong();
+			counter++;
+		}
+		return counter;
+	}
+
+	private static int drain(VectorTreeIterator iterator) {
+		int counter = 0;
+		while (iterator.hasNext()) {
+			iterator.nextInt();
+			counter++;
+		}
+		return counter;
+	}
+
+	/*
+	 * times the intersection of int trees against long trees over the same
+	 * keys, widened, moved above 2^32 by a shared base, and spread so that
+	 * the high half of a key repeats its low half; the first two keep their
+	 * keys in a single int tree, the last gives each key an int tree of its
+	 * own
+	 */
+	public static void testAgainstIntTree() {
+		VectorTreeConfig int_config = getIntConfig(benchmark_config);
+
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i=1; i<num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		ArrayList<VectorTree> int_trees = new ArrayList<VectorTree>(num_sets);
+		ArrayList<LongVectorTree> widened_trees = new ArrayList<LongVectorTree>(num_sets);
+		ArrayList<LongVectorTree> based_trees = new ArrayList<LongVectorTree>(num_sets);
+		ArrayList<LongVectorTree> spread_trees = new ArrayList<LongVectorTree>(num_sets);
+
+		long base = 0x5DEECE66DL << 32;
+		for (int i=0; i<num_sets; i++) {
+			VectorTree int_tree = new VectorTree(int_config, true);
+			LongVectorTree widened_tree = new LongVectorTree(benchmark_config, true);
+			LongVectorTree based_tree = new LongVectorTree(benchmark_config, true);
+			LongVectorTree spread_tree = new LongVectorTree(benchmark_config, true);
+
+			for (int key : key_sets[i]) {
+				Record record = new Record();
+				int_tree.insert(key, record);
+				widened_tree.insert(key, record);
+				based_tree.insert(base + key, record);
+				spread_tree.insert(((long)key << 32) | key, record);
+			}
+
+			int_trees.add(int_tree);
+			widened_trees.add(widened_tree);
+			based_trees.add(based_tree);
+			spread_trees.add(spread_tree);
+		}
+
+		System.out.println("int trees\t" + widened_trees.get(0).getIntTreeCount() + "\t"
+				+ based_trees.get(0).getIntTreeCount() + "\t" + spread_trees.get(0).getIntTreeCount());
+
+		for (boolean use_bloom_filter : new boolean[] { false, true }) {
+			int[] counts = new int[4];
+
+			long startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[0] = drain(VectorTree.intersect(int_trees, use_bloom_filter));
+			long int_duration = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[1] = drain(intersect(widened_trees, use_bloom_filter));
+			long widened_duration = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[2] = drain(intersect(based_trees, use_bloom_filter));
+			long based_duration = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				counts[3] = drain(intersect(spread_trees, use_bloom_filter));
+			long spread_duration = System.nanoTime() - startTime;
+
+			System.out.println(use_bloom_filter + "\t" + (int_duration / 1000000.0) + "\t"
+					+ (widened_duration / 1000000.0) + "\t" + (based_duration / 1000000.0) + "\t"
+					+ (spread_duration / 1000000.0) + "\t"
+					+ ((counts[0] == counts[1]) && (counts[0] == counts[2]) && (counts[0] == counts[3])));
+		}
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 7) {
+			System.err.println("Arguments: bits_per_level max_bloom_lvl num_sets set_size set_density set_overlap repetitions");
+			return;
+		}
+
+		benchmark_config = VectorTreeConfig.DEFAULT_LONG_KEYS
+				.withBitsPerLevel(Integer.parseInt(args[0]))
+				.withMaxBloomLevel(Integer.parseInt(args[1]));
+		num_sets = Integer.parseInt(args[2]);
+		set_size = Integer.parseInt(args[3]);
+		set_density = Double.parseDouble(args[4]);
+		set_overlap = Double.parseDouble(args[5]);
+		repetitions = Integer.parseInt(args[6]);
+
+		testAgainstIntTree();
+	}
+}
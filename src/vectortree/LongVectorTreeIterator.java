@@ -0,0 +1,172 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.LongConsumer;
+
+
+/*
+ * iterator over the keys of a multiway intersection of LongVectorTrees
+ *
+ * the sorted high parts of the trees are merged, each tree skipping ahead
+ * to the next high part of the others by galloping, so that trees whose
+ * keys share few high parts are not visited high part by high part. the
+ * int trees of a high part held by every tree are intersected as
+ * VectorTree.intersect() does, as the iterator is consumed, and their keys
+ * handed out below the high part, so that keys are returned in unsigned
+ * order.
+ *
+ * the trees must not be modified while the iterator is in use.
+ */
+public class LongVectorTreeIterator implements PrimitiveIterator.OfLong {
+
+	// members
+
+	private boolean _use_bloom_filter;
+	private IntersectionStats _stats;
+
+	// the high parts of each tree with their int trees, the position of
+	// each at or after the next high part, and that high part
+	private long[][] _high_parts;
+	private VectorTree[][] _int_trees;
+	private int[] _positions;
+	private long _next_high;
+
+	// the tree holding the fewest high parts, which the merge starts at
+	private int _fewest;
+
+	// the intersection of the int trees of the current high part, and the
+	// high bits of its keys
+	private VectorTreeIterator _current;
+	private long _current_base;
+
+
+	LongVectorTreeIterator(
+			ArrayList<LongVectorTree> trees,
+			boolean use_bloom_filter,
+			IntersectionStats stats) {
+
+		_use_bloom_filter = use_bloom_filter;
+		_stats = stats;
+
+		_high_parts = new long[trees.size()][];
+		_int_trees = new VectorTree[trees.size()][];
+		_positions = new int[trees.size()];
+
+		for (int i = 0; i < trees.size(); i++) {
+			_high_parts[i] = trees.get(i).getHighParts();
+			_int_trees[i] = trees.get(i).getHighPartTrees();
+
+			if (_high_parts[i].length < _high_parts[_fewest].length) {
+				_fewest = i;
+			}
+		}
+	}
+
+	/*
+	 * starts the intersection of the next high part held by every tree,
+	 * moving the trees in turn up to the highest part any of them is at,
+	 * until all of them agree
+	 *
+	 * @return boolean - false if no high parts are left
+	 */
+	private boolean advance() {
+		long high = _next_high;
+
+		int agreeing = 0;
+		for (int i = _fewest; agreeing < _high_parts.length; i = (i + 1) % _high_parts.length) {
+			long[] high_parts = _high_parts[i];
+
+			int position = seek(high_parts, _positions[i], high);
+			_positions[i] = position;
+
+			if (position == high_parts.length) {
+				return false;
+			}
+
+			if (high_parts[position] == high) {
+				agreeing++;
+			} else {
+				high = high_parts[position];
+				agreeing = 1;
+			}
+		}
+
+		ArrayList<VectorTree> int_trees = new ArrayList<VectorTree>(_high_parts.length);
+		for (int i = 0; i < _high_parts.length; i++) {
+			int_trees.add(_int_trees[i][_positions[i]]);
+		}
+
+		_current = VectorTree.intersect(int_trees, _use_bloom_filter, _stats);
+		_current_base = high << LongVectorTree.LOW_BITS;
+		_next_high = high + 1;
+		return true;
+	}
+
+	/*
+	 * gallops from the given position in steps doubling in size, then
+	 * searches the last step by halves, so that skipping n high parts takes
+	 * about 2 log n comparisons
+	 *
+	 * @return int - the first position at or after from whose high part is
+	 *               not below high, the length of high_parts if none is
+	 */
+	private static int seek(long[] high_parts, int from, long high) {
+		if ((from == high_parts.length) || (high_parts[from] >= high)) {
+			return from;
+		}
+
+		// high_parts[low] stays below high, and high_parts[upper] does not
+		// unless it lies past the end
+		int low = from;
+		int step = 1;
+		while ((from + step < high_parts.length) && (high_parts[from + step] < high)) {
+			low = from + step;
+			step <<= 1;
+		}
+
+		int upper = Math.min(from + step, high_parts.length);
+		while (low + 1 < upper) {
+			int middle = (low + upper) >>> 1;
+
+			if (high_parts[middle] < high) {
+				low = middle;
+			} else {
+				upper = middle;
+			}
+		}
+
+		return upper;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while ((_current == null) || (_current.hasNext() == false)) {
+			if (advance() == false) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public long nextLong() {
+		if (hasNext() == false) {
+			throw new NoSuchElementException();
+		}
+
+		return _current_base | _current.nextInt();
+	}
+
+	/*
+	 * hands every remaining key to the consumer, a high part at a time
+	 */
+	@Override
+	public void forEachRemaining(LongConsumer action) {
+		while (hasNext()) {
+			long base = _current_base;
+			_current.forEachRemaining((int key) -> action.accept(base | key));
+		}
+	}
+}
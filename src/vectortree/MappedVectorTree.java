@@ -0,0 +1,559 @@
+package vectortree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * read-only vector tree backed by a memory-mapped file
+ *
+ * the file holds, per level, an open-addressing table from node prefix to
+ * node index, followed by the vectors, leaf and subnode counters and bloom
+ * filter words of the nodes on that level, in index order. intersection reads
+ * all of these straight from the mapping, so opening a tree costs a map call
+ * rather than a rebuild. records come last, grouped by key, and are only
+ * decoded when asked for.
+ *
+ * layout, little-endian, every section aligned to 8 bytes:
+ *
+ *   header       magic, version, bits_per_level, height,
+ *                maintain_bloom_filters, and the registrant section:
+ *                key count, offsets of keys, record offsets and records;
+ *                then the filter settings of the tree's config:
+ *                max_bloom_level, bloom_size_offset, blocked_bloom_level,
+ *                hashing flags and the long bloom seed
+ *   per level    node count, table capacity, filter words per node, hash
+ *                functions, offsets of table, vectors, leaves, subnodes
+ *                and filters, and the fewest distinct filter bits set by
+ *                any key of the level
+ *   per level    table of (prefix, node index + 1) pairs, 0 marking an
+ *                empty slot, then the long vector words, int leaves, int
+ *                subnodes and long filter words of every node
+ *   registrants  sorted keys, byte offsets of each key's records (one more
+ *                than there are keys), and the encoded records
+ *
+ * offsets are ints, so a tree file is limited to 2 GB.
+ */
+public class MappedVectorTree extends VectorTree {
+
+	private static final int MAGIC = 0x56545245;
+	private static final int VERSION = 4;
+
+	private static final int HEADER_SIZE = 64;
+
+	// hashing flags of the header
+	private static final int FAST_BLOOM_HASHING = 1;
+	private static final int COUNTING_BLOOM_FILTERS = 2;
+	private static final int LEVEL_HEADER_SIZE = 40;
+
+	// members
+	private ByteBuffer _buffer;
+
+	// level headers, copied out of the mapping once, indexed by depth
+	private int[] _table_masks;
+	private int[] _table_offsets;
+	private int[] _vector_offsets;
+	private int[] _leaves_offsets;
+	private int[] _filter_words;
+	private int[] _hash_functions;
+	private int[] _minimum_key_bits;
+	private int[] _filter_offsets;
+
+	private int _key_count;
+	private int _keys_offset;
+	private int _record_offsets_offset;
+	private int _records_offset;
+
+
+	private MappedVectorTree(ByteBuffer buffer) throws IOException {
+		super(readConfig(buffer), buffer.getInt(16) != 0, 0);
+
+		_buffer = buffer;
+
+		// the shape of the tree decides how prefixes are computed
+		if (buffer.getInt(12) != getHeight()) {
+			throw new IOException("tree file was written for a different tree shape");
+		}
+
+		_key_count = buffer.getInt(24);
+		_keys_offset = buffer.getInt(28);
+		_record_offsets_offset = buffer.getInt(32);
+		_records_offset = buffer.getInt(36);
+
+		int height = getHeight();
+		_table_masks = new int[height];
+		_table_offsets = new int[height];
+		_vector_offsets = new int[height];
+		_leaves_offsets = new int[height];
+		_filter_words = new int[height];
+		_hash_functions = new int[height];
+		_minimum_key_bits = new int[height];
+		_filter_offsets = new int[height];
+
+		for (int depth = 0; depth < height; depth++) {
+			int level = HEADER_SIZE + depth * LEVEL_HEADER_SIZE;
+
+			_table_masks[depth] = buffer.getInt(level + 4) - 1;
+			_filter_words[depth] = buffer.getInt(level + 8);
+			_hash_functions[depth] = buffer.getInt(level + 12);
+			_table_offsets[depth] = buffer.getInt(level + 16);
+			_vector_offsets[depth] = buffer.getInt(level + 20);
+			_leaves_offsets[depth] = buffer.getInt(level + 24);
+			_filter_offsets[depth] = buffer.getInt(level + 32);
+			_minimum_key_bits[depth] = buffer.getInt(level + 36);
+		}
+	}
+
+	/*
+	 * checks the header of a tree file before the tree is created
+	 *
+	 * @return VectorTreeConfig - the config the tree was written with
+	 */
+	private static VectorTreeConfig readConfig(ByteBuffer buffer) throws IOException {
+		if ((buffer.capacity() < HEADER_SIZE) ||
+				(buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+			throw new IOException("not a vector tree file");
+		}
+
+		int flags = buffer.getInt(52);
+		try {
+			return VectorTreeConfig.DEFAULT
+					.withBitsPerLevel(buffer.getInt(8))
+					.withMaxBloomLevel(buffer.getInt(40))
+					.withBloomSizeOffset(buffer.getInt(44))
+					.withBlockedBloomLevel(buffer.getInt(48))
+					.withFastBloomHashing((flags & FAST_BLOOM_HASHING) != 0)
+					.withCountingBloomFilters((flags & COUNTING_BLOOM_FILTERS) != 0)
+					.withBloomSeed(buffer.getLong(56));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("tree file was written for a different tree shape", e);
+		}
+	}
+
+	/*
+	 * maps a tree file written by write(), without reading its nodes
+	 */
+	public static MappedVectorTree map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("tree file exceeds 2 GB");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedVectorTree(buffer.order(ByteOrder.LITTLE_ENDIAN));
+		}
+	}
+
+	private static int align(long offset) {
+		long aligned = (offset + 7) & ~7L;
+		if (aligned > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("tree exceeds the 2 GB file limit");
+		}
+		return (int) aligned;
+	}
+
+	private static int slotFor(int prefix, int mask) {
+		int h = prefix * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/*
+	 * writes the nodes and records of a tree to the given file
+	 */
+	public static void write(VectorTree tree, Path path) throws IOException {
+		// other backends keep their nodes elsewhere
+		if (tree.getClass() != VectorTree.class) {
+			throw new IllegalArgumentException("only heap trees can be written");
+		}
+
+		// the format holds no chain nodes
+		if (tree.getConfig().compressesPaths()) {
+			throw new IllegalArgumentException("trees compressing paths cannot be written");
+		}
+
+		int height = tree.getHeight();
+		int vector_words = tree.getVectorWords();
+		NodeTable nodes = tree.getNodeTable();
+
+		// node ids are (prefix << log_height) + depth, so sorting them
+		// orders every level by prefix
+		long[] ids = nodes.getIds();
+		Arrays.sort(ids);
+
+		int log_height = tree.getLogHeight();
+		int depth_mask = (1 << log_height) - 1;
+
+		int[] node_counts = new int[height];
+		for (long id : ids) {
+			node_counts[(int)(id & depth_mask)]++;
+		}
+
+		int[][] prefixes = new int[height][];
+		VectorTreeNode[][] level_nodes = new VectorTreeNode[height][];
+		for (int depth = 0; depth < height; depth++) {
+			prefixes[depth] = new int[node_counts[depth]];
+			level_nodes[depth] = new VectorTreeNode[node_counts[depth]];
+			node_counts[depth] = 0;
+		}
+		for (long id : ids) {
+			int depth = (int)(id & depth_mask);
+			prefixes[depth][node_counts[depth]] = (int)(id >> log_height);
+			level_nodes[depth][node_counts[depth]] = nodes.get(id);
+			node_counts[depth]++;
+		}
+
+		// encode records, grouped by key in key order
+		HashMap<Integer, ArrayList<Record>> registrants = tree.getRegistrants();
+		int[] keys = new int[registrants.size()];
+		int key_count = 0;
+		for (Integer key : registrants.keySet()) {
+			if (registrants.get(key).isEmpty() == false) {
+				keys[key_count++] = key;
+			}
+		}
+		keys = Arrays.copyOf(keys, key_count);
+		Arrays.sort(keys);
+
+		ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+		DataOutputStream records = new DataOutputStream(record_bytes);
+		int[] record_offsets = new int[key_count + 1];
+		for (int k = 0; k < key_count; k++) {
+			for (Record record : registrants.get(keys[k])) {
+				writeRecord(records, record);
+			}
+			record_offsets[k + 1] = records.size();
+		}
+		records.flush();
+
+		// lay out the levels, then the registrants
+		int[][] level_header = new int[height][10];
+		long offset = HEADER_SIZE + height * LEVEL_HEADER_SIZE;
+		for (int depth = 0; depth < height; depth++) {
+			int count = node_counts[depth];
+
+			int capacity = 2;
+			while (capacity < 2 * count) {
+				capacity <<= 1;
+			}
+
+			int filter_words = 0;
+			int hash_functions = 0;
+			int minimum_key_bits = Integer.MAX_VALUE;
+			if (tree.maintainsBloomFilters()) {
+				for (VectorTreeNode node : level_nodes[depth]) {
+					KeyFilter filter = node.getBloomFilter();
+					if (filter != null) {
+						filter_words = filter.getWordCount();
+						hash_functions = filter.getNumberOfHashFunctions();
+						minimum_key_bits = Math.min(minimum_key_bits, filter.getMinimumKeyBits());
+					}
+				}
+			}
+
+			int[] header = level_header[depth];
+			header[0] = count;
+			header[1] = capacity;
+			header[2] = filter_words;
+			header[3] = hash_functions;
+			header[4] = align(offset);
+			header[5] = align(header[4] + 8L * capacity);
+			header[6] = align(header[5] + 8L * vector_words * count);
+			header[7] = align(header[6] + 4L * count);
+			header[8] = align(header[7] + 4L * count);
+			header[9] = Math.min(minimum_key_bits, hash_functions);
+			offset = header[8] + 8L * count * filter_words;
+		}
+
+		int keys_offset = align(offset);
+		int record_offsets_offset = align(keys_offset + 4L * key_count);
+		int records_offset = align(record_offsets_offset + 4L * (key_count + 1));
+		int size = align(records_offset + (long) record_bytes.size());
+
+		Files.deleteIfExists(path);
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, tree.getBitsPerLevel());
+			buffer.putInt(12, height);
+			buffer.putInt(16, tree.maintainsBloomFilters() ? 1 : 0);
+			buffer.putInt(24, key_count);
+			buffer.putInt(28, keys_offset);
+			buffer.putInt(32, record_offsets_offset);
+			buffer.putInt(36, records_offset);
+
+			VectorTreeConfig config = tree.getConfig();
+			buffer.putInt(40, config.getMaxBloomLevel());
+			buffer.putInt(44, config.getBloomSizeOffset());
+			buffer.putInt(48, config.getBlockedBloomLevel());
+			buffer.putInt(52, (config.usesFastBloomHashing() ? FAST_BLOOM_HASHING : 0) |
+					(config.usesCountingBloomFilters() ? COUNTING_BLOOM_FILTERS : 0));
+			buffer.putLong(56, config.getBloomSeed());
+
+			for (int depth = 0; depth < height; depth++) {
+				int[] header = level_header[depth];
+				for (int field = 0; field < header.length; field++) {
+					buffer.putInt(HEADER_SIZE + depth * LEVEL_HEADER_SIZE + 4 * field, header[field]);
+				}
+
+				int mask = header[1] - 1;
+				int filter_words = header[2];
+
+				for (int index = 0; index < header[0]; index++) {
+					int prefix = prefixes[depth][index];
+					VectorTreeNode node = level_nodes[depth][index];
+
+					// linear probing, as in NodeTable
+					int slot = slotFor(prefix, mask);
+					while (buffer.getInt(header[4] + (slot << 3) + 4) != 0) {
+						slot = (slot + 1) & mask;
+					}
+					buffer.putInt(header[4] + (slot << 3), prefix);
+					buffer.putInt(header[4] + (slot << 3) + 4, index + 1);
+
+					for (int w = 0; w < vector_words; w++) {
+						buffer.putLong(header[5] + 8 * (index * vector_words + w), node.getVectorWord(w));
+					}
+					buffer.putInt(header[6] + 4 * index, node.getLeaves());
+					buffer.putInt(header[7] + 4 * index, node.getSubnodes());
+
+					// a node without a filter holds no keys, as do zero words
+					KeyFilter filter = node.getBloomFilter();
+					if (filter != null) {
+						int words = Math.min(filter_words, filter.getWordCount());
+						for (int w = 0; w < words; w++) {
+							buffer.putLong(header[8] + 8 * (index * filter_words + w), filter.getWord(w));
+						}
+					}
+				}
+			}
+
+			for (int k = 0; k < key_count; k++) {
+				buffer.putInt(keys_offset + 4 * k, keys[k]);
+			}
+			for (int k = 0; k <= key_count; k++) {
+				buffer.putInt(record_offsets_offset + 4 * k, record_offsets[k]);
+			}
+
+			ByteBuffer blob = buffer.duplicate();
+			blob.position(records_offset);
+			blob.put(record_bytes.toByteArray());
+
+			mapped.force();
+		}
+	}
+
+	/*
+	 * records are written as their field count, -1 for a null record,
+	 * followed by the name and value of every field
+	 */
+	private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+		if (record == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(record.getFields().size());
+		for (String field : record.getFields()) {
+			out.writeUTF(field);
+			out.writeInt(record.get(field));
+		}
+	}
+
+	private static Record readRecord(DataInputStream in) throws IOException {
+		int fields = in.readInt();
+		if (fields < 0) {
+			return null;
+		}
+
+		Record record = new Record();
+		for (int f = 0; f < fields; f++) {
+			String field = in.readUTF();
+			record.set(field, in.readInt());
+		}
+		return record;
+	}
+
+	/*
+	 * decodes the records registered to a key from the mapping
+	 *
+	 * @return ArrayList<Record> - the records, empty if the key is absent
+	 */
+	public ArrayList<Record> getRecords(int key) throws IOException {
+		ArrayList<Record> records = new ArrayList<Record>();
+
+		// binary search over the sorted keys
+		int low = 0;
+		int high = _key_count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middle_key = _buffer.getInt(_keys_offset + 4 * middle);
+
+			if (middle_key < key) {
+				low = middle + 1;
+			} else if (middle_key > key) {
+				high = middle - 1;
+			} else {
+				int start = _buffer.getInt(_record_offsets_offset + 4 * middle);
+				int end = _buffer.getInt(_record_offsets_offset + 4 * (middle + 1));
+
+				byte[] bytes = new byte[end - start];
+				ByteBuffer blob = _buffer.duplicate();
+				blob.position(_records_offset + start);
+				blob.get(bytes);
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+				while (in.available() > 0) {
+					records.add(readRecord(in));
+				}
+				break;
+			}
+		}
+
+		return records;
+	}
+
+	/*
+	 * @return int - the index of the node within its level, -1 if absent
+	 */
+	private int findNode(int value, int depth) {
+		int mask = _table_masks[depth];
+		int table = _table_offsets[depth];
+
+		int slot = slotFor(value, mask);
+		while (true) {
+			int entry = table + (slot << 3);
+			int index = _buffer.getInt(entry + 4);
+
+			if (index == 0) {
+				return -1;
+			}
+			if (_buffer.getInt(entry) == value) {
+				return index - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	long getVectorWord(int value, int depth) {
+		int index = findNode(value, depth);
+		return (index < 0) ? 0 : _buffer.getLong(_vector_offsets[depth] + (index << 3));
+	}
+
+	@Override
+	boolean intersectVector(int value, int depth, long[] vector) {
+		int index = findNode(value, depth);
+		int position = _vector_offsets[depth] + ((index * _vector_words) << 3);
+
+		long survivors = 0;
+		for (int word = 0; word < vector.length; word++) {
+			vector[word] &= (index < 0) ? 0 : _buffer.getLong(position + (word << 3));
+			survivors |= vector[word];
+		}
+
+		return survivors != 0;
+	}
+
+	@Override
+	int getLeaves(int value, int depth) {
+		int index = findNode(value, depth);
+		return (index < 0) ? 0 : _buffer.getInt(_leaves_offsets[depth] + (index << 2));
+	}
+
+	@Override
+	KeyFilter getBloomFilter(int value, int depth) {
+		int words = _filter_words[depth];
+		if (words == 0) {
+			return null;
+		}
+
+		int index = findNode(value, depth);
+		if (index < 0) {
+			return null;
+		}
+
+		return new KeyFilterView(_buffer, _filter_offsets[depth] + ((index * words) << 3), words,
+				_hash_functions[depth], _minimum_key_bits[depth]);
+	}
+
+	@Override
+	public void insert(int key, Record record) {
+		throw new UnsupportedOperationException("mapped trees are read-only");
+	}
+
+	@Override
+	public void remove(int key, Record record) {
+		throw new UnsupportedOperationException("mapped trees are read-only");
+	}
+
+	/*
+	 * compares rebuilding a set of trees against mapping them from files,
+	 * and intersecting heap trees against their mapped counterparts
+	 */
+	public static void main(String[] args) throws IOException {
+		int num_sets = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		int set_size = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		VectorTreeConfig config = VectorTreeConfig.DEFAULT.withMaxBloomLevel(5);
+
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, 0.2);
+		for (int i = 1; i < num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], 0.2);
+
+		ArrayList<VectorTree> trees = new ArrayList<VectorTree>();
+		ArrayList<Path> paths = new ArrayList<Path>();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < num_sets; i++) {
+			Arrays.sort(key_sets[i]);
+			trees.add(VectorTree.bulkLoad(key_sets[i], null, true, config));
+		}
+		System.out.println("build ms\t" + ((System.nanoTime() - start) / 1000000.0));
+
+		for (VectorTree tree : trees) {
+			Path path = Files.createTempFile("vectortree", ".bin");
+			path.toFile().deleteOnExit();
+			write(tree, path);
+			paths.add(path);
+		}
+
+		start = System.nanoTime();
+		ArrayList<VectorTree> mapped_trees = new ArrayList<VectorTree>();
+		for (Path path : paths)
+			mapped_trees.add(map(path));
+		System.out.println("map ms\t" + ((System.nanoTime() - start) / 1000000.0));
+
+		System.out.println("heap ms\tmapped ms\tresults");
+		for (int n = 0; n < repetitions; n++) {
+			start = System.nanoTime();
+			int heap_results = VectorTree.intersectStream(trees, true, false).toArray().length;
+			long heap_duration = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int mapped_results = VectorTree.intersectStream(mapped_trees, true, false).toArray().length;
+			long mapped_duration = System.nanoTime() - start;
+
+			System.out.println((heap_duration / 1000000.0) + "\t" + (mapped_duration / 1000000.0) + "\t"
+					+ heap_results + "/" + mapped_results);
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package vectortree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * open-addressing hash table mapping primitive long node ids to tree nodes
+ *
+ * keys are stored unboxed in a parallel long array and collisions are
+ * resolved by linear probing. removal uses backward-shift deletion, so the
+ * table never accumulates tombstones under insert/remove churn.
+ */
+public class NodeTable {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// the capacity of a table sized for very few nodes, such as the root
+	// and the chain below it of a tree holding a single key
+	private static final int MIN_CAPACITY = 4;
+
+	// resize once the table is more than 3/4 full
+	private static final int LOAD_FACTOR_NUMERATOR = 3;
+	private static final int LOAD_FACTOR_DENOMINATOR = 4;
+
+	// slots of each region filled by a task of putAllParallel(), at least
+	private static final int MIN_REGION_SLOTS = 1 << 12;
+
+	// members
+	private long[] _keys;
+	private VectorTreeNode[] _values;
+	private int _mask;
+	private int _size;
+	private int _threshold;
+
+	public NodeTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public NodeTable(int expected_size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * LOAD_FACTOR_NUMERATOR / LOAD_FACTOR_DENOMINATOR < expected_size) {
+			capacity <<= 1;
+		}
+
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		_values = new VectorTreeNode[capacity];
+		_mask = capacity - 1;
+		_threshold = capacity / LOAD_FACTOR_DENOMINATOR * LOAD_FACTOR_NUMERATOR;
+		_size = 0;
+	}
+
+	/*
+	 * spreads the node id over all bits, since ids differ mostly in their
+	 * low-order bits (depth) and in the prefix just above them
+	 */
+	private int slotFor(long node_id) {
+		long h = node_id * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & _mask;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/*
+	 * @return VectorTreeNode - the node stored for this id, null if absent
+	 */
+	public VectorTreeNode get(long node_id) {
+		int slot = slotFor(node_id);
+
+		// probe until we hit an empty slot or the key
+		while (_values[slot] != null) {
+			if (_keys[slot] == node_id) {
+				return _values[slot];
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		return null;
+	}
+
+	/*
+	 * stores the node under this id, replacing any previous node
+	 */
+	public void put(long node_id, VectorTreeNode node) {
+		int slot = slotFor(node_id);
+
+		while (_values[slot] != null) {
+			if (_keys[slot] == node_id) {
+				_values[slot] = node;
+				return;
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		_keys[slot] = node_id;
+		_values[slot] = node;
+
+		// grow once we pass the load factor
+		if (++_size > _threshold) {
+			resize(_keys.length << 1);
+		}
+	}
+
+	/*
+	 * @return long[] - the ids of all stored nodes, in no particular order
+	 */
+	public long[] getIds() {
+		long[] ids = new long[_size];
+		int count = 0;
+		for (int i = 0; i < _keys.length; i++) {
+			if (_values[i] != null) {
+				ids[count++] = _keys[i];
+			}
+		}
+		return ids;
+	}
+
+	/*
+	 * stores all nodes of the given tables, none of whose ids is stored in
+	 * this table or in another of them, merging them on the given pool
+	 *
+	 * the table grows once to hold them all, and its slots are split into
+	 * regions, each filled by a task of its own with the nodes whose home
+	 * slot lies in it. a probe run leaving its region is left to the
+	 * calling thread, which stores these few nodes last, so that no slot is
+	 * written by two tasks.
+	 */
+	public void putAllParallel(NodeTable[] others, ForkJoinPool pool) {
+		int total = _size;
+		for (NodeTable other : others) {
+			total += other._size;
+		}
+
+		int capacity = _keys.length;
+		while (capacity / LOAD_FACTOR_DENOMINATOR * LOAD_FACTOR_NUMERATOR < total) {
+			capacity <<= 1;
+		}
+		if (capacity != _keys.length) {
+			resize(capacity);
+		}
+
+		int regions = Math.max(1, Math.min(capacity / MIN_REGION_SLOTS, Integer.highestOneBit(pool.getParallelism() * 4)));
+		int region_shift = Integer.numberOfTrailingZeros(capacity / regions);
+
+		// sort the nodes of every table by the region of their home slot
+		ArrayList<RegionSplit> splits = new ArrayList<RegionSplit>(others.length);
+		for (NodeTable other : others) {
+			RegionSplit split = new RegionSplit(this, other, regions, region_shift);
+			pool.execute(split);
+			splits.add(split);
+		}
+		for (RegionSplit split : splits) {
+			split.join();
+		}
+
+		ArrayList<RegionFill> fills = new ArrayList<RegionFill>(regions);
+		for (int region = 0; region < regions; region++) {
+			RegionFill fill = new RegionFill(this, splits, region, region_shift);
+			pool.execute(fill);
+			fills.add(fill);
+		}
+		for (RegionFill fill : fills) {
+			fill.join();
+			_size += fill._stored;
+		}
+
+		for (RegionFill fill : fills) {
+			for (int i = 0; i < fill._spilled; i++) {
+				put(fill._spilled_ids[i], fill._spilled_nodes[i]);
+			}
+		}
+	}
+
+	/*
+	 * the nodes of one table, ordered by the region of this table their
+	 * home slot lies in
+	 */
+	private static class RegionSplit extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private NodeTable _table;
+		private NodeTable _other;
+		private int _region_shift;
+
+		// the nodes of region r lie in [_region_starts[r], _region_starts[r + 1])
+		private long[] _ids;
+		private VectorTreeNode[] _nodes;
+		private int[] _region_starts;
+
+		RegionSplit(NodeTable table, NodeTable other, int regions, int region_shift) {
+			_table = table;
+			_other = other;
+			_region_shift = region_shift;
+			_region_starts = new int[regions + 1];
+		}
+
+		@Override
+		protected void compute() {
+			long[] keys = _other._keys;
+			VectorTreeNode[] values = _other._values;
+
+			// count the nodes of each region, then place them after those
+			// of the regions before
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					_region_starts[(_table.slotFor(keys[i]) >>> _region_shift) + 1]++;
+				}
+			}
+			for (int region = 1; region < _region_starts.length; region++) {
+				_region_starts[region] += _region_starts[region - 1];
+			}
+
+			int[] next = Arrays.copyOf(_region_starts, _region_starts.length - 1);
+			_ids = new long[_other._size];
+			_nodes = new VectorTreeNode[_other._size];
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					int position = next[_table.slotFor(keys[i]) >>> _region_shift]++;
+					_ids[position] = keys[i];
+					_nodes[position] = values[i];
+				}
+			}
+		}
+	}
+
+	/*
+	 * stores the nodes of every split whose home slot lies in one region,
+	 * keeping those whose probe run leaves the region for the caller
+	 */
+	private static class RegionFill extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private NodeTable _table;
+		private ArrayList<RegionSplit> _splits;
+		private int _region;
+		private int _region_shift;
+
+		private int _stored;
+		private long[] _spilled_ids;
+		private VectorTreeNode[] _spilled_nodes;
+		private int _spilled;
+
+		RegionFill(NodeTable table, ArrayList<RegionSplit> splits, int region, int region_shift) {
+			_table = table;
+			_splits = splits;
+			_region = region;
+			_region_shift = region_shift;
+			_spilled_ids = new long[0];
+			_spilled_nodes = new VectorTreeNode[0];
+		}
+
+		@Override
+		protected void compute() {
+			long[] keys = _table._keys;
+			VectorTreeNode[] values = _table._values;
+			int mask = _table._mask;
+
+			for (RegionSplit split : _splits) {
+				for (int i = split._region_starts[_region]; i < split._region_starts[_region + 1]; i++) {
+					long node_id = split._ids[i];
+
+					int slot = _table.slotFor(node_id);
+					while ((values[slot] != null) && ((slot >>> _region_shift) == _region)) {
+						slot = (slot + 1) & mask;
+					}
+
+					if ((slot >>> _region_shift) != _region) {
+						spill(node_id, split._nodes[i]);
+						continue;
+					}
+
+					keys[slot] = node_id;
+					values[slot] = split._nodes[i];
+					_stored++;
+				}
+			}
+		}
+
+		private void spill(long node_id, VectorTreeNode node) {
+			if (_spilled == _spilled_ids.length) {
+				_spilled_ids = Arrays.copyOf(_spilled_ids, Math.max(16, _spilled << 1));
+				_spilled_nodes = Arrays.copyOf(_spilled_nodes, _spilled_ids.length);
+			}
+			_spilled_ids[_spilled] = node_id;
+			_spilled_nodes[_spilled] = node;
+			_spilled++;
+		}
+	}
+
+	/*
+	 * removes the node stored for this id
+	 *
+	 * @return VectorTreeNode - the removed node, null if absent
+	 */
+	public VectorTreeNode remove(long node_id) {
+		int slot = slotFor(node_id);
+
+		while (_values[slot] != null) {
+			if (_keys[slot] == node_id) {
+				VectorTreeNode removed = _values[slot];
+				shiftBackFrom(slot);
+				_size--;
+				return removed;
+			}
+			slot = (slot + 1) & _mask;
+		}
+
+		return null;
+	}
+
+	/*
+	 * closes the gap left at the given slot by moving later entries of the
+	 * same probe run back, so that lookups never need to skip deleted slots
+	 */
+	private void shiftBackFrom(int gap) {
+		int slot = gap;
+
+		while (true) {
+			slot = (slot + 1) & _mask;
+
+			// end of the probe run, nothing left to move
+			if (_values[slot] == null) {
+				break;
+			}
+
+			// an entry may only move back if its home slot does not lie
+			// cyclically within (gap, slot]
+			int home = slotFor(_keys[slot]);
+			boolean movable = (gap <= slot) ?
+					(home <= gap || home > slot) :
+					(home <= gap && home > slot);
+
+			if (movable) {
+				_keys[gap] = _keys[slot];
+				_values[gap] = _values[slot];
+				gap = slot;
+			}
+		}
+
+		_values[gap] = null;
+	}
+
+	private void resize(int capacity) {
+		long[] old_keys = _keys;
+		VectorTreeNode[] old_values = _values;
+
+		allocate(capacity);
+
+		for (int i = 0; i < old_keys.length; i++) {
+			if (old_values[i] != null) {
+				int slot = slotFor(old_keys[i]);
+				while (_values[slot] != null) {
+					slot = (slot + 1) & _mask;
+				}
+				_keys[slot] = old_keys[i];
+				_values[slot] = old_values[i];
+				_size++;
+			}
+		}
+	}
+
+	/*
+	 * micro-benchmark of node lookups against a boxed HashMap, replaying the
+	 * node ids touched by inserting a uniform key set into a vector tree
+	 */
+	public static void main(String[] args) {
+		int set_size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		double set_density = (args.length > 1) ? Double.parseDouble(args[1]) : 0.2;
+		int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		int[] keys = DataGenerator.generateUniform(set_size, set_density);
+
+		// node ids as built by VectorTree: (prefix << 3) + depth, 8 levels of 4 bits
+		long[] node_ids = new long[keys.length * 8];
+		for (int i = 0; i < keys.length; i++) {
+			for (int depth = 0; depth < 8; depth++) {
+				int shift = 32 - 4 * depth;
+				int prefix = (shift == 32) ? 0 : keys[i] >>> shift;
+				node_ids[i * 8 + depth] = ((long)prefix << 3) + depth;
+			}
+		}
+
+		// lookups are timed, not node construction, so all ids share one node
+		VectorTreeNode node = new VectorTreeNode(0, 1);
+
+		for (int n = 0; n < repetitions; n++) {
+			long start = System.nanoTime();
+			HashMap<Long, VectorTreeNode> map = new HashMap<Long, VectorTreeNode>();
+			for (long node_id : node_ids) {
+				if (map.get(node_id) == null) {
+					map.put(node_id, node);
+				}
+			}
+			long map_duration = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			NodeTable table = new NodeTable();
+			for (long node_id : node_ids) {
+				if (table.get(node_id) == null) {
+					table.put(node_id, node);
+				}
+			}
+			long table_duration = System.nanoTime() - start;
+
+			System.out.println((map_duration / 1000000.0) + "\t" + (table_duration / 1000000.0));
+		}
+	}
+}
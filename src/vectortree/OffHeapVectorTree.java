@@ -0,0 +1,621 @@
+package vectortree;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * vector tree whose nodes live outside the heap, in direct byte buffers
+ *
+ * each level keeps an open-addressing table from node prefix to node index,
+ * and a buffer of fixed-size node records holding the vector, the leaf and
+ * subnode counters and, on filtered levels, the bloom filter words. the
+ * garbage collector sees a handful of buffers per tree instead of one object
+ * per node and per filter. records themselves stay on the heap.
+ *
+ * filters are plain bloom filters hashed by the config's filter prototype
+ * of each level, so an off-heap tree keeping filters intersects with heap
+ * trees of the same config. it only takes configs with fast bloom hashing
+ * and without blocked or counting filters, whose filters never map a key
+ * onto the same bit twice. which levels are filtered is fixed when the
+ * tree is created.
+ *
+ * close() frees the direct memory of the buffers right away, where the
+ * runtime allows it, and otherwise leaves it to the garbage collector.
+ * the tree cannot be used afterwards, nor can filters or iterators taken
+ * from it.
+ */
+public class OffHeapVectorTree extends VectorTree implements AutoCloseable {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// frees direct buffers ahead of the garbage collector, null where the
+	// runtime does not allow it
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	// record layout: leaves and subnodes, the vector words, then the
+	// filter words
+	private static final int LEAVES = 0;
+	private static final int SUBNODES = 4;
+	private static final int VECTOR = 8;
+
+	// members
+	private int _filter_offset;
+
+	// members, indexed by depth
+	private ByteBuffer[] _tables;
+	private int[] _table_masks;
+	private int[] _table_sizes;
+
+	private ByteBuffer[] _records;
+	private int[] _record_sizes;
+	private int[] _records_used;
+
+	// indices of freed records, reused before new ones are appended
+	private int[][] _free_records;
+	private int[] _free_counts;
+
+	// filter words per record, and the filters whose hash parameters the
+	// records share; levels without filter words are not filtered
+	private int[] _filter_words;
+	private BloomFilter[] _filter_prototypes;
+
+
+	public OffHeapVectorTree() {
+		this(true);
+	}
+
+	public OffHeapVectorTree(boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT, maintain_bloom_filters);
+	}
+
+	public OffHeapVectorTree(int bits_per_level, boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT.withBitsPerLevel(bits_per_level), maintain_bloom_filters);
+	}
+
+	public OffHeapVectorTree(VectorTreeConfig config, boolean maintain_bloom_filters) {
+		super(config, maintain_bloom_filters, 0);
+
+		if (config.compressesPaths()) {
+			throw new IllegalArgumentException("off-heap trees do not compress paths");
+		}
+
+		int height = getHeight();
+		_filter_offset = VECTOR + 8 * _vector_words;
+
+		_tables = new ByteBuffer[height];
+		_table_masks = new int[height];
+		_table_sizes = new int[height];
+		_records = new ByteBuffer[height];
+		_record_sizes = new int[height];
+		_records_used = new int[height];
+		_free_records = new int[height][];
+		_free_counts = new int[height];
+		_filter_words = new int[height];
+		_filter_prototypes = new BloomFilter[height];
+
+		for (int depth = 0; depth < height; depth++) {
+
+			// filters are sized as the config sizes them for heap nodes; leaf
+			// nodes and filters too small to ever prune are left out
+			if (maintain_bloom_filters && (depth > config.getMaxBloomLevel()) && (depth < height - 1)) {
+				KeyFilter prototype = config.getFilterPrototype(depth);
+				if (((prototype instanceof BloomFilter) == false) || ((BloomFilter) prototype).repeatsPositions()) {
+					throw new IllegalArgumentException("off-heap trees only keep plain bloom filters hashed in fast mode");
+				}
+
+				_filter_prototypes[depth] = (BloomFilter) prototype;
+				_filter_words[depth] = prototype.getWordCount();
+			}
+
+			_record_sizes[depth] = _filter_offset + 8 * _filter_words[depth];
+			_records[depth] = allocate(INITIAL_CAPACITY * _record_sizes[depth]);
+			_tables[depth] = allocate(INITIAL_CAPACITY * 8);
+			_table_masks[depth] = INITIAL_CAPACITY - 1;
+			_free_records[depth] = new int[INITIAL_CAPACITY];
+		}
+
+		// the root always exists
+		findOrCreateNode(0, 0);
+	}
+
+	private static ByteBuffer allocate(long size) {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("level exceeds 2 GB");
+		}
+		return ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+	}
+
+	/*
+	 * frees the buffers of the tree
+	 */
+	@Override
+	public void close() {
+		if (_tables == null) {
+			return;
+		}
+
+		for (int depth = 0; depth < _tables.length; depth++) {
+			free(_tables[depth]);
+			free(_records[depth]);
+		}
+
+		_tables = null;
+		_records = null;
+	}
+
+	static {
+		Object unsafe = null;
+		Method invoke_cleaner = null;
+		try {
+			Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+			Field field = unsafe_class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			unsafe = null;
+			invoke_cleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invoke_cleaner;
+	}
+
+	private static void free(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException e) {
+			// left to the garbage collector
+		}
+	}
+
+	private void ensureOpen() {
+		if (_tables == null) {
+			throw new IllegalStateException("tree is closed");
+		}
+	}
+
+	private static int slotFor(int prefix, int mask) {
+		int h = prefix * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/*
+	 * @return int - the index of the node's record, -1 if there is no such node
+	 */
+	private int findNode(int prefix, int depth) {
+		ensureOpen();
+
+		ByteBuffer table = _tables[depth];
+		int mask = _table_masks[depth];
+
+		int slot = slotFor(prefix, mask);
+		while (true) {
+			int index = table.getInt((slot << 3) + 4);
+
+			if (index == 0) {
+				return -1;
+			}
+			if (table.getInt(slot << 3) == prefix) {
+				return index - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int findOrCreateNode(int prefix, int depth) {
+		ByteBuffer table = _tables[depth];
+		int mask = _table_masks[depth];
+
+		int slot = slotFor(prefix, mask);
+		while (true) {
+			int index = table.getInt((slot << 3) + 4);
+
+			if (index == 0) {
+				break;
+			}
+			if (table.getInt(slot << 3) == prefix) {
+				return index - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int record = allocateRecord(depth);
+		table.putInt(slot << 3, prefix);
+		table.putInt((slot << 3) + 4, record + 1);
+
+		// grow once the table is more than 3/4 full
+		if (++_table_sizes[depth] > (mask + 1) / 4 * 3) {
+			resizeTable(depth, (mask + 1) << 1);
+		}
+
+		return record;
+	}
+
+	private void resizeTable(int depth, int capacity) {
+		ByteBuffer old_table = _tables[depth];
+		int old_capacity = _table_masks[depth] + 1;
+
+		ByteBuffer table = allocate(8L * capacity);
+		int mask = capacity - 1;
+
+		for (int old_slot = 0; old_slot < old_capacity; old_slot++) {
+			int index = old_table.getInt((old_slot << 3) + 4);
+			if (index != 0) {
+				int prefix = old_table.getInt(old_slot << 3);
+
+				int slot = slotFor(prefix, mask);
+				while (table.getInt((slot << 3) + 4) != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table.putInt(slot << 3, prefix);
+				table.putInt((slot << 3) + 4, index);
+			}
+		}
+
+		_tables[depth] = table;
+		_table_masks[depth] = mask;
+	}
+
+	/*
+	 * @return int - the index of a zeroed record on the given level
+	 */
+	private int allocateRecord(int depth) {
+		int record_size = _record_sizes[depth];
+		int record;
+
+		if (_free_counts[depth] > 0) {
+			record = _free_records[depth][--_free_counts[depth]];
+		} else {
+			record = _records_used[depth]++;
+
+			// grow the record buffer, copying the records in use
+			ByteBuffer records = _records[depth];
+			if ((long) _records_used[depth] * record_size > records.capacity()) {
+				ByteBuffer grown = allocate(2L * records.capacity());
+				ByteBuffer used = records.duplicate();
+				used.clear();
+				used.limit(record * record_size);
+				grown.put(used);
+				_records[depth] = grown;
+			}
+		}
+
+		// freed records may still hold old contents
+		ByteBuffer records = _records[depth];
+		int base = record * record_size;
+		for (int b = 0; b < record_size; b += 8) {
+			records.putLong(base + b, 0L);
+		}
+
+		return record;
+	}
+
+	/*
+	 * removes the node from its level's table, closing the gap by moving
+	 * later entries of the same probe run back, as NodeTable does
+	 */
+	@Override
+	void decommissionNode(int prefix, int depth) {
+		ByteBuffer table = _tables[depth];
+		int mask = _table_masks[depth];
+
+		int gap = slotFor(prefix, mask);
+		while (table.getInt(gap << 3) != prefix) {
+			gap = (gap + 1) & mask;
+		}
+
+		// free the record
+		int[] free_records = _free_records[depth];
+		if (_free_counts[depth] == free_records.length) {
+			free_records = Arrays.copyOf(free_records, free_records.length << 1);
+			_free_records[depth] = free_records;
+		}
+		free_records[_free_counts[depth]++] = table.getInt((gap << 3) + 4) - 1;
+		_table_sizes[depth]--;
+
+		int slot = gap;
+		while (true) {
+			slot = (slot + 1) & mask;
+
+			// end of the probe run, nothing left to move
+			if (table.getInt((slot << 3) + 4) == 0) {
+				break;
+			}
+
+			int home = slotFor(table.getInt(slot << 3), mask);
+			boolean movable = (gap <= slot) ?
+					(home <= gap || home > slot) :
+					(home <= gap && home > slot);
+
+			if (movable) {
+				table.putLong(gap << 3, table.getLong(slot << 3));
+				gap = slot;
+			}
+		}
+
+		table.putLong(gap << 3, 0L);
+	}
+
+	/*
+	 * @return boolean - whether the bit of the offset was not set before
+	 */
+	private boolean setBit(int depth, int record, int offset) {
+		ByteBuffer records = _records[depth];
+		int position = record * _record_sizes[depth] + VECTOR + ((offset >>> 6) << 3);
+
+		long word = records.getLong(position);
+		long updated_word = word | (1L << offset);
+		records.putLong(position, updated_word);
+
+		return updated_word != word;
+	}
+
+	/*
+	 * @return boolean - whether the bit of the offset was set before
+	 */
+	private boolean clearBit(int depth, int record, int offset) {
+		ByteBuffer records = _records[depth];
+		int position = record * _record_sizes[depth] + VECTOR + ((offset >>> 6) << 3);
+
+		long word = records.getLong(position);
+		long updated_word = word & ~(1L << offset);
+		records.putLong(position, updated_word);
+
+		return updated_word != word;
+	}
+
+	private boolean isEmpty(int depth, int record) {
+		ByteBuffer records = _records[depth];
+		int position = record * _record_sizes[depth] + VECTOR;
+
+		for (int word = 0; word < _vector_words; word++) {
+			if (records.getLong(position + (word << 3)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void increase(int depth, int record, int field, int amount) {
+		ByteBuffer records = _records[depth];
+		int position = record * _record_sizes[depth] + field;
+		records.putInt(position, records.getInt(position) + amount);
+	}
+
+	/*
+	 * sets the bits of a key in a node filter, at the positions the
+	 * level's filter prototype chooses
+	 */
+	private void addToBloomFilter(int depth, int record, int key) {
+		ByteBuffer records = _records[depth];
+		int base = record * _record_sizes[depth] + _filter_offset;
+		BloomFilter prototype = _filter_prototypes[depth];
+
+		for (int n = 0; n < prototype.getNumberOfHashFunctions(); n++) {
+			int i = prototype.getPosition(key, n);
+			int word = base + ((i >>> 6) << 3);
+			records.putLong(word, records.getLong(word) | (1L << i));
+		}
+	}
+
+	@Override
+	public void insert(int key, Record record) {
+		ensureOpen();
+
+		// register the record
+		HashMap<Integer, ArrayList<Record>> all_registrants = getRegistrants();
+		ArrayList<Record> registrants = all_registrants.get(key);
+		if (registrants == null) {
+			registrants = new ArrayList<Record>();
+			all_registrants.put(key, registrants);
+		}
+
+		// a key already registered is in all bloom filters already
+		boolean key_is_new = registrants.isEmpty();
+		registrants.add(record);
+
+		// perform insertion at leaf level
+		int leaf = findOrCreateNode(prefixOf(key, _height - 1), _height - 1);
+
+		if (setBit(_height - 1, leaf, offsetOf(key, _height - 1))) {
+			increase(_height - 1, leaf, LEAVES, 1);
+		}
+
+		// records whether the previous vector was modified
+		boolean change_occurred = false;
+
+		// now we'll work our way up the tree, to the root
+		for (int depth = _height - 2; depth >= 0; depth--) {
+
+			int node = findOrCreateNode(prefixOf(key, depth), depth);
+
+			increase(depth, node, LEAVES, 1);
+			if (change_occurred) {
+				increase(depth, node, SUBNODES, 1);
+			}
+			change_occurred = setBit(depth, node, offsetOf(key, depth));
+
+			if (key_is_new && (_filter_words[depth] > 0)) {
+				addToBloomFilter(depth, node, key);
+			}
+		}
+	}
+
+	@Override
+	public void remove(int key, Record record) {
+		ensureOpen();
+
+		ArrayList<Record> registrants = getRegistrants().get(key);
+
+		// stop unless this removal emptied the key
+		if ((registrants == null) || (registrants.remove(record) == false) ||
+				(registrants.isEmpty() == false)) {
+			return;
+		}
+
+		// perform removal at leaf level
+		int leaf = findNode(prefixOf(key, _height - 1), _height - 1);
+
+		if (clearBit(_height - 1, leaf, offsetOf(key, _height - 1))) {
+			increase(_height - 1, leaf, LEAVES, -1);
+		}
+
+		// move up the tree, stopping at the root
+		for (int depth = _height - 2; depth >= 0; depth--) {
+
+			int previous_key = prefixOf(key, depth + 1);
+			int current_key = prefixOf(key, depth);
+
+			int current_node = findNode(current_key, depth);
+			int previous_node = findNode(previous_key, depth + 1);
+
+			// was previous node emptied?
+			if ((previous_node >= 0) && isEmpty(depth + 1, previous_node)) {
+
+				// if so, remove node
+				decommissionNode(previous_key, depth + 1);
+
+				// update leaves, and subnodes if the current vector changes
+				increase(depth, current_node, LEAVES, -1);
+				if (clearBit(depth, current_node, offsetOf(key, depth))) {
+					increase(depth, current_node, SUBNODES, -1);
+				}
+			}
+		}
+	}
+
+	@Override
+	long getVectorWord(int value, int depth) {
+		int record = findNode(value, depth);
+		return (record < 0) ? 0 : _records[depth].getLong(record * _record_sizes[depth] + VECTOR);
+	}
+
+	@Override
+	boolean intersectVector(int value, int depth, long[] vector) {
+		int record = findNode(value, depth);
+		int position = (record < 0) ? 0 : record * _record_sizes[depth] + VECTOR;
+
+		long survivors = 0;
+		for (int word = 0; word < vector.length; word++) {
+			vector[word] &= (record < 0) ? 0 : _records[depth].getLong(position + (word << 3));
+			survivors |= vector[word];
+		}
+
+		return survivors != 0;
+	}
+
+	@Override
+	int getLeaves(int value, int depth) {
+		int record = findNode(value, depth);
+		return (record < 0) ? 0 : _records[depth].getInt(record * _record_sizes[depth] + LEAVES);
+	}
+
+	@Override
+	KeyFilter getBloomFilter(int value, int depth) {
+		int words = _filter_words[depth];
+		if (words == 0) {
+			return null;
+		}
+
+		int record = findNode(value, depth);
+		if (record < 0) {
+			return null;
+		}
+
+		// the positions of a key never repeat, see the constructor
+		int hash_functions = _filter_prototypes[depth].getNumberOfHashFunctions();
+		return new KeyFilterView(_records[depth], record * _record_sizes[depth] + _filter_offset, words,
+				hash_functions, hash_functions);
+	}
+
+	/*
+	 * @return long - the bytes of direct memory held by the tree
+	 */
+	public long getOffHeapBytes() {
+		ensureOpen();
+
+		long bytes = 0;
+		for (int depth = 0; depth < _height; depth++) {
+			bytes += _tables[depth].capacity() + _records[depth].capacity();
+		}
+		return bytes;
+	}
+
+	private static long getCollectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long getUsedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/*
+	 * builds the same trees on and off the heap, reporting the heap each
+	 * keeps alive, the time spent collecting garbage while building and
+	 * intersecting them, and the intersection time
+	 */
+	public static void main(String[] args) {
+		int num_sets = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		int set_size = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		VectorTreeConfig config = VectorTreeConfig.DEFAULT.withMaxBloomLevel(5);
+
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, 0.2);
+		for (int i = 1; i < num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], 0.2);
+
+		System.out.println("backend\theap MB\toff-heap MB\tgc ms\tintersect ms\tresults");
+
+		for (boolean off_heap : new boolean[] { false, true }) {
+			long heap_before = getUsedHeap();
+			long gc_before = getCollectionMillis();
+
+			ArrayList<VectorTree> trees = new ArrayList<VectorTree>();
+			for (int i = 0; i < num_sets; i++) {
+				VectorTree tree = off_heap ? new OffHeapVectorTree(config, true) : new VectorTree(config, true);
+				for (int key : key_sets[i])
+					tree.insert(key, null);
+				trees.add(tree);
+			}
+
+			long start = System.nanoTime();
+			int results = 0;
+			for (int n = 0; n < repetitions; n++)
+				results = VectorTree.intersectStream(trees, true, false).toArray().length;
+			long intersect_duration = System.nanoTime() - start;
+
+			long heap = getUsedHeap() - heap_before;
+			long gc = getCollectionMillis() - gc_before;
+
+			long off_heap_bytes = 0;
+			for (VectorTree tree : trees) {
+				if (tree instanceof OffHeapVectorTree) {
+					off_heap_bytes += ((OffHeapVectorTree) tree).getOffHeapBytes();
+					((OffHeapVectorTree) tree).close();
+				}
+			}
+
+			System.out.println((off_heap ? "off-heap" : "heap") + "\t" + (heap >> 20) + "\t"
+					+ (off_heap_bytes >> 20) + "\t" + gc + "\t" + (intersect_duration / 1000000.0) + "\t" + results);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package vectortree;
 import java.util.HashMap;
+import java.util.Set;
 
 
 public class Record {
@@ -18,6 +19,10 @@ public class Record {
 		return _values.get(key);
 	}
 	
+	public Set<String> getFields() {
+		return _values.keySet();
+	}
+	
 	public String toString() {
 		String output = "";
 		for (String key: _values.keySet()) {
@@ -0,0 +1,291 @@
+package vectortree;
+
+import java.util.Arrays;
+
+/*
+ * leaf container holding its values as sorted runs of consecutive values,
+ * four bytes a run
+ *
+ * runs are kept as pairs of chars, the first value of the run followed by
+ * the number of values after it. a container whose runs have become larger
+ * than an array or a bitmap of its values turns into the smaller of those.
+ */
+public class RunContainer implements LeafContainer {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	// members
+	private char[] _runs;
+	private int _run_count;
+	private int _cardinality;
+
+
+	public RunContainer(LeafContainer other) {
+		long[] words = new long[BITMAP_WORDS];
+		other.copyTo(words);
+
+		_runs = new char[2 * Math.max(INITIAL_CAPACITY / 2, other.getNumberOfRuns())];
+		_cardinality = other.getCardinality();
+
+		// runs start at a set bit and end before the next clear one
+		int start = nextBit(words, 0, true);
+		while (start >= 0) {
+			int end = nextBit(words, start, false);
+			if (end < 0) {
+				end = 1 << VALUE_BITS;
+			}
+
+			_runs[2 * _run_count] = (char)start;
+			_runs[2 * _run_count + 1] = (char)(end - start - 1);
+			_run_count++;
+
+			start = (end < (1 << VALUE_BITS)) ? nextBit(words, end, true) : -1;
+		}
+	}
+
+	/*
+	 * @return int - the first value from the given one on whose bit is set,
+	 *               or clear, -1 if there is none
+	 */
+	private static int nextBit(long[] words, int from, boolean set) {
+		int word = from >>> 6;
+		long bits = (set ? words[word] : ~words[word]) & (~0L << from);
+
+		while (bits == 0) {
+			if (++word == BITMAP_WORDS) {
+				return -1;
+			}
+			bits = set ? words[word] : ~words[word];
+		}
+
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/*
+	 * @return int - the bytes taken by the given number of runs
+	 */
+	static int getSizeInBytes(int runs) {
+		return 2 * Character.BYTES * runs;
+	}
+
+	private int getStart(int run) {
+		return _runs[2 * run];
+	}
+
+	private int getEnd(int run) {
+		return _runs[2 * run] + _runs[2 * run + 1];
+	}
+
+	private void setRun(int run, int start, int end) {
+		_runs[2 * run] = (char)start;
+		_runs[2 * run + 1] = (char)(end - start);
+	}
+
+	/*
+	 * @return int - the last run starting at or before value, -1 if there
+	 *               is none
+	 */
+	private int findRun(int value) {
+		int low = 0;
+		int high = _run_count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getStart(middle) <= value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low - 1;
+	}
+
+	private void insertRun(int run, int start, int end) {
+		if (2 * _run_count == _runs.length) {
+			_runs = Arrays.copyOf(_runs, 2 * _runs.length);
+		}
+
+		System.arraycopy(_runs, 2 * run, _runs, 2 * run + 2, 2 * (_run_count - run));
+		setRun(run, start, end);
+		_run_count++;
+	}
+
+	private void deleteRun(int run) {
+		System.arraycopy(_runs, 2 * run + 2, _runs, 2 * run, 2 * (_run_count - run - 1));
+		_run_count--;
+	}
+
+	/*
+	 * @return LeafContainer - this container, unless another form has
+	 *                         become smaller
+	 */
+	private LeafContainer adapt() {
+		int array_bytes = (_cardinality <= MAX_ARRAY_SIZE) ? Character.BYTES * _cardinality : Integer.MAX_VALUE;
+
+		if (getSizeInBytes() < Math.min(array_bytes, BITMAP_BYTES)) {
+			return this;
+		}
+
+		return LeafContainer.compact(this);
+	}
+
+	@Override
+	public int getCardinality() {
+		return _cardinality;
+	}
+
+	@Override
+	public boolean contains(int value) {
+		int run = findRun(value);
+		return (run >= 0) && (value <= getEnd(run));
+	}
+
+	@Override
+	public LeafContainer add(int value) {
+		int run = findRun(value);
+		if ((run >= 0) && (value <= getEnd(run))) {
+			return this;
+		}
+
+		_cardinality++;
+
+		boolean extends_previous = (run >= 0) && (getEnd(run) + 1 == value);
+		boolean extends_next = (run + 1 < _run_count) && (getStart(run + 1) == value + 1);
+
+		if (extends_previous && extends_next) {
+			setRun(run, getStart(run), getEnd(run + 1));
+			deleteRun(run + 1);
+		} else if (extends_previous) {
+			setRun(run, getStart(run), value);
+		} else if (extends_next) {
+			setRun(run + 1, value, getEnd(run + 1));
+		} else {
+			insertRun(run + 1, value, value);
+		}
+
+		return adapt();
+	}
+
+	@Override
+	public LeafContainer remove(int value) {
+		int run = findRun(value);
+		if ((run < 0) || (value > getEnd(run))) {
+			return this;
+		}
+
+		_cardinality--;
+
+		int start = getStart(run);
+		int end = getEnd(run);
+
+		if (start == end) {
+			deleteRun(run);
+		} else if (value == start) {
+			setRun(run, start + 1, end);
+		} else if (value == end) {
+			setRun(run, start, end - 1);
+		} else {
+			setRun(run, start, value - 1);
+			insertRun(run + 1, value + 1, end);
+		}
+
+		return adapt();
+	}
+
+	@Override
+	public int getNumberOfRuns() {
+		return _run_count;
+	}
+
+	@Override
+	public int getSizeInBytes() {
+		return getSizeInBytes(_run_count);
+	}
+
+	@Override
+	public int countIn(int from, int to) {
+		int count = 0;
+		for (int run = Math.max(findRun(from), 0); (run < _run_count) && (getStart(run) < to); run++) {
+			int start = Math.max(getStart(run), from);
+			int end = Math.min(getEnd(run), to - 1);
+			if (start <= end) {
+				count += end - start + 1;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long getChildWord(int from, int to, int child_bits) {
+		long bits = 0;
+		for (int run = Math.max(findRun(from), 0); (run < _run_count) && (getStart(run) < to); run++) {
+			int start = Math.max(getStart(run), from);
+			int end = Math.min(getEnd(run), to - 1);
+			if (start <= end) {
+				int first = (start - from) >>> child_bits;
+				int last = (end - from) >>> child_bits;
+				bits |= (~0L << first) & (~0L >>> (63 - last));
+			}
+		}
+		return bits;
+	}
+
+	@Override
+	public int copyTo(char[] values) {
+		int count = 0;
+		for (int run = 0; run < _run_count; run++) {
+			for (int value = getStart(run), end = getEnd(run); value <= end; value++) {
+				values[count++] = (char)value;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void copyTo(long[] words) {
+		Arrays.fill(words, 0L);
+		for (int run = 0; run < _run_count; run++) {
+			BitmapContainer.setRange(words, getStart(run), getEnd(run) + 1);
+		}
+	}
+
+	/*
+	 * walks the runs alongside the values
+	 */
+	@Override
+	public int retainIn(char[] values, int count) {
+		int kept = 0;
+		int run = 0;
+		for (int i = 0; i < count; i++) {
+			char value = values[i];
+			while ((run < _run_count) && (getEnd(run) < value)) {
+				run++;
+			}
+			if (run == _run_count) {
+				break;
+			}
+
+			values[kept] = value;
+			kept += (getStart(run) <= value) ? 1 : 0;
+		}
+		return kept;
+	}
+
+	/*
+	 * clears the gaps between the runs
+	 */
+	@Override
+	public boolean retainIn(long[] words) {
+		int gap_start = 0;
+		for (int run = 0; run < _run_count; run++) {
+			BitmapContainer.clearRange(words, gap_start, getStart(run));
+			gap_start = getEnd(run) + 1;
+		}
+		BitmapContainer.clearRange(words, gap_start, 1 << VALUE_BITS);
+
+		long survivors = 0;
+		for (long word : words) {
+			survivors |= word;
+		}
+		return survivors != 0;
+	}
+}
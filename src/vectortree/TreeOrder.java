@@ -0,0 +1,117 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * orders the trees of an intersection by the leaves they hold below a
+ * node, fewest first, as the intersection descends
+ *
+ * vectors are ANDed in list order, and an intersection stops at the first
+ * tree lacking the node or emptying the vector, so the trees holding the
+ * fewest leaves below a node are the likeliest to spare the lookups in all
+ * others. the entry points order the trees at the root, see
+ * VectorTree.orderByLeaves(); trees whose keys cluster differently may
+ * change places from one subtree to the next, so the nodes above the
+ * reorder depth of the config of the first tree order their subtrees anew,
+ * at the cost of looking up the leaves of every tree once more, see
+ * VectorTreeConfig.withReorderDepth().
+ *
+ * one order is kept per depth, so that the order of a node is not
+ * overwritten while its subtree is visited; the chains covering a node are
+ * ordered along with the trees. an order is not safe to share between the
+ * tasks of a parallel intersection.
+ */
+class TreeOrder {
+
+	// members
+
+	// the trees and chains as last ordered at each depth above _depths, and
+	// at the last of those for any node below it that is jumped to; the
+	// root keeps the order given
+	private ArrayList<ArrayList<VectorTree>> _trees;
+	private VectorTreeNode[][] _chains;
+	private int _depths;
+
+	// depth below which the vectors of the trees are not intersected node
+	// by node, so that nothing below is ordered
+	private int _last_depth;
+
+	// leaves of each tree in the high half, its index in the low one
+	private long[] _keys;
+
+
+	/*
+	 * chains is whether any tree compresses paths
+	 */
+	TreeOrder(ArrayList<VectorTree> trees, int last_depth, boolean chains) {
+		_depths = Math.max(1, Math.min(trees.get(0).getConfig().getReorderDepth(), last_depth));
+		_last_depth = last_depth;
+
+		_trees = new ArrayList<ArrayList<VectorTree>>(_depths);
+		_trees.add(trees);
+		for (int depth = 1; depth < _depths; depth++) {
+			_trees.add(new ArrayList<VectorTree>(trees));
+		}
+
+		_chains = chains ? new VectorTreeNode[_depths][trees.size()] : null;
+		_keys = new long[trees.size()];
+	}
+
+	/*
+	 * a child is ordered if its parent is above the deepest depth ordered,
+	 * which holds for a node that a chain jumps to from there as well
+	 *
+	 * @return boolean - whether the child at this depth of a node at
+	 *                   parent_depth orders its subtree
+	 */
+	boolean reorders(int parent_depth, int depth) {
+		return (depth > 0) && (parent_depth < _depths - 1) && (depth < _last_depth);
+	}
+
+	/*
+	 * orders the trees by the leaves they hold below the node, where a tree
+	 * inside a chain, as given by chains unless it is null, holds the
+	 * leaves of the chain; only for nodes that reorder
+	 *
+	 * @return ArrayList<VectorTree> - the trees in that order, valid until
+	 *                                 the next node at this depth is ordered
+	 */
+	ArrayList<VectorTree> order(int key, int depth, ArrayList<VectorTree> trees, VectorTreeNode[] chains) {
+		for (int i = 0; i < trees.size(); i++) {
+			VectorTree tree = trees.get(i);
+			int leaves = (chains != null) ? tree.getLeaves(key, depth, chains[i]) : tree.getLeaves(key, depth);
+			_keys[i] = ((long)leaves << 32) | i;
+		}
+		Arrays.sort(_keys);
+
+		int slot = Math.min(depth, _depths - 1);
+		ArrayList<VectorTree> ordered = _trees.get(slot);
+		for (int i = 0; i < _keys.length; i++) {
+			int index = (int)_keys[i];
+			ordered.set(i, trees.get(index));
+			if (chains != null) {
+				_chains[slot][i] = chains[index];
+			}
+		}
+
+		return ordered;
+	}
+
+	/*
+	 * @return ArrayList<VectorTree> - the order of the trees of the node
+	 *                                 being visited at this depth, which is
+	 *                                 that of its deepest ancestor ordered
+	 *                                 unless it was ordered itself
+	 */
+	ArrayList<VectorTree> getTrees(int depth) {
+		return _trees.get(Math.min(depth, _depths - 1));
+	}
+
+	/*
+	 * @return VectorTreeNode[] - the chains covering the last node ordered at
+	 *                            this depth, in the order of its trees
+	 */
+	VectorTreeNode[] getChains(int depth) {
+		return _chains[Math.min(depth, _depths - 1)];
+	}
+}
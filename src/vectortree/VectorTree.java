@@ -1,132 +1,223 @@
 package vectortree;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 public class VectorTree {
 
-	public static int max_bloom_level = 12;
-	public static int bloom_size_offset = 2;
+	// parallel intersection forks subtrees above this depth, as long as
+	// the smallest input subtree still holds at least this many leaves
+	public static int fork_depth = 3;
+	public static int fork_min_leaves = 1 << 12;
 	
 	private static int num_sets = 4;
 	private static int set_size = 1000000;
 	private static double set_density = 0.2;
 	private static double set_overlap = 0.2;
 	private static int repetitions = 10;
+	private static int parallelism = 0;
+
+	// settings of the trees built by the benchmarks
+	private static VectorTreeConfig benchmark_config = VectorTreeConfig.DEFAULT;
+
+	// fan-outs compared by testFanOut, over the densities and overlaps of
+	// data/density.dat and data/overlap.dat
+	private static int[] fan_out_bits = { 4, 6, 8 };
+	private static double[] grid_densities = { 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9 };
+	private static double[] grid_overlaps = { 0.01, 0.05, 0.1, 0.2, 0.5, 0.75, 0.9 };
 	
-	private static int bloom_hits = 0;
-	
-	// static tree properties
-	private static short bits_per_level = 4;
 	private static short bits_per_key = Integer.SIZE;
-	private static short height = (short)(bits_per_key / bits_per_level);
-	private static short log_height = ((Double)(Math.log(height) / Math.log(2))).shortValue();
-
-	private static ArrayList<Short> value_lookup;
-	private static HashMap<Integer, ArrayList<Short>> survivors_lookup;
-	private static HashMap<Short, ArrayList<Short>> survivors_lookup_short;
 
 	// members	
+	private VectorTreeConfig _config;
 	private VectorTreeNode _root;
 	
-	private HashMap<Long, VectorTreeNode> _nodes;
+	private NodeTable _nodes;
 	private HashMap<Integer, ArrayList<Record>> _registrants;
+
+	// whether inserted keys are added to node bloom filters
+	boolean _maintain_bloom_filters;
+
+	// whether chains of single-child nodes are stored as one chain node,
+	// and the path of the last key inserted or removed if so
+	private boolean _compress_paths;
+	private VectorTreeNode[] _path_nodes;
+	private int[] _path_depths;
+	private boolean[] _path_changes;
+
+	// tree properties, shared with the subclasses; every node holds
+	// (1 << _bits_per_level) offsets in _vector_words words, so the last
+	// level may cover more than the key
+	short _bits_per_level;
+	short _height;
+	short _log_height;
+	int _offset_mask;
+	int _vector_words;
 	
 	
 	public VectorTree() {
-		_nodes = new HashMap<Long, VectorTreeNode>();
-		_registrants = new HashMap<Integer, ArrayList<Record>>();
+		this(true);
+	}
 
-		_root = getNode(0, 0);
-		
-		init();
+	/*
+	 * a tree built without bloom filters is cheaper to fill, but cannot be
+	 * pruned by them; intersections including it ignore use_bloom_filter
+	 */
+	public VectorTree(boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT, maintain_bloom_filters);
 	}
-	
-	private void init() {
-		if (value_lookup == null) {
-			initValueLookup();
+
+	/*
+	 * a tree with more bits per level is shallower and has wider nodes,
+	 * 4 bits giving 8 levels of 16 offsets, 6 bits 6 levels of 64 and 8 bits
+	 * 4 levels of 256. only trees of the same fan-out can be intersected.
+	 */
+	public VectorTree(int bits_per_level, boolean maintain_bloom_filters) {
+		this(VectorTreeConfig.DEFAULT.withBitsPerLevel(bits_per_level), maintain_bloom_filters);
+	}
+
+	public VectorTree(VectorTreeConfig config, boolean maintain_bloom_filters) {
+		this(config, maintain_bloom_filters, 0);
+	}
+
+	/*
+	 * sizes the node table and registrant map for the expected number of
+	 * keys, or at their default sizes if it is 0
+	 */
+	VectorTree(VectorTreeConfig config, boolean maintain_bloom_filters, int expected_keys) {
+		this(config, maintain_bloom_filters, expected_keys, null);
+	}
+
+	/*
+	 * as above, sharing the path kept by insertions and removals with the
+	 * given tree, unless it is null, for trees of which only one is written
+	 * at a time, such as the int trees of a LongVectorTree
+	 */
+	VectorTree(VectorTreeConfig config, boolean maintain_bloom_filters, int expected_keys, VectorTree path_owner) {
+		if (config.getBitsPerKey() != bits_per_key) {
+			throw new IllegalArgumentException("trees over int keys need a config of " + bits_per_key + " bits per key");
 		}
-		
-		if (survivors_lookup == null) {
-			initSurvivorsLookup();
+
+		int bits_per_level = config.getBitsPerLevel();
+
+		_config = config;
+		_bits_per_level = (short)bits_per_level;
+		_height = (short)config.getHeight();
+		_log_height = (short)(Integer.SIZE - Integer.numberOfLeadingZeros(_height - 1));
+		_offset_mask = (1 << bits_per_level) - 1;
+		_vector_words = ((1 << bits_per_level) + Long.SIZE - 1) / Long.SIZE;
+
+		_maintain_bloom_filters = maintain_bloom_filters;
+		_compress_paths = config.compressesPaths();
+		if (_compress_paths && (path_owner != null) && (path_owner._path_nodes != null) && (path_owner._height == _height)) {
+			_path_nodes = path_owner._path_nodes;
+			_path_depths = path_owner._path_depths;
+			_path_changes = path_owner._path_changes;
+		} else if (_compress_paths) {
+			_path_nodes = new VectorTreeNode[_height];
+			_path_depths = new int[_height];
+			_path_changes = new boolean[_height];
 		}
-	}
-	
-	private static void initValueLookup() {
-		value_lookup = new ArrayList<Short>();
-		
-		int max = ((Double)Math.pow(2, bits_per_level)).intValue();
-		for (int i = 0; i < max; i++) {
-			value_lookup.add(i, ((Integer)(1 << i)).shortValue());
+
+		if (expected_keys == 0) {
+			_nodes = new NodeTable();
+			_registrants = new HashMap<Integer, ArrayList<Record>>();
+		} else {
+			_nodes = new NodeTable(expected_keys / 2);
+			_registrants = new HashMap<Integer, ArrayList<Record>>(expected_keys / 3 * 4 + 1);
 		}
+
+		_root = getNode(0, 0);
 	}
-	
-	private static void initSurvivorsLookup() {
-		survivors_lookup = new HashMap<Integer, ArrayList<Short>>();
-		survivors_lookup_short = new HashMap<Short, ArrayList<Short>>();
-		
-		// bit vectors must represent all 2^{num bits per level} possibilities
-		int size_of_bitvector = (int)Math.pow(2, bits_per_level);
-		
-		// survivors represent all possible combinations of bit vectors
-		int size_of_survivors = (int)Math.pow(2, size_of_bitvector);
-		
-		for (Integer combination = 0; combination < size_of_survivors; combination++) {
-			ArrayList<Short> offsets = new ArrayList<Short>();
-			
-			String bitstring = Integer.toBinaryString(combination);
-			
-			for (Integer index = bitstring.length() - 1; index >= 0; index--) {
-				if (bitstring.charAt(index) == '1') {
-					offsets.add((short)(bitstring.length() - index - 1));
-				}
-			}
-						
-			// map list to its combination
-			survivors_lookup.put(combination, offsets);
-			survivors_lookup_short.put(combination.shortValue(), offsets);
+
+	public static VectorTree bulkLoad(int[] sorted_keys, Record[] records) {
+		return bulkLoad(sorted_keys, records, true);
+	}
+
+	public static VectorTree bulkLoad(int[] sorted_keys, Record[] records, boolean maintain_bloom_filters) {
+		return bulkLoad(sorted_keys, records, maintain_bloom_filters, VectorTreeConfig.DEFAULT);
+	}
+
+	/*
+	 * builds a tree from non-negative keys sorted in ascending order, with
+	 * records[i] registered to sorted_keys[i]; records may be null, in which
+	 * case a null record is registered to every key
+	 *
+	 * the result is the same tree repeated calls to insert would build, but
+	 * it is built bottom-up in a single pass: since every node covers a
+	 * contiguous run of the keys, each node is created once, its counters
+	 * are set when its run ends, and its bloom filter is filled from the run
+	 * in one batch.
+	 */
+	public static VectorTree bulkLoad(
+			int[] sorted_keys,
+			Record[] records,
+			boolean maintain_bloom_filters,
+			VectorTreeConfig config) {
+
+		VectorTree tree = new VectorTree(config, maintain_bloom_filters, sorted_keys.length);
+		tree.loadSorted(sorted_keys, 0, sorted_keys.length);
+		tree.registerSorted(sorted_keys, records, 0, sorted_keys.length);
+
+		if (tree._compress_paths) {
+			tree.compressPaths();
 		}
+		return tree;
 	}
 	
+	/*
+	 * @return int - the value of the node holding the key at the given depth
+	 */
+	int prefixOf(int key, int depth) {
+		int shift = (_height - depth) * _bits_per_level;
+
+		// shifts of 32 bits or more are taken modulo 32 by the JVM
+		return (shift >= Integer.SIZE) ? (key >> (Integer.SIZE - 1)) : (key >> shift);
+	}
+
+	/*
+	 * @return int - the offset of the key within its node at the given depth
+	 */
+	int offsetOf(int key, int depth) {
+		return (key >> ((_height - depth - 1) * _bits_per_level)) & _offset_mask;
+	}
+
 	public static short lookupValue(byte i) {
-		// has the array already been created?
-		if (value_lookup == null) {
-			initValueLookup();
-		}
-		
-		return value_lookup.get(i);
+		return (short)(1 << i);
 	}
 		
 	public void insert(int key, Record record) {
-		
-		insertAtLeafLevel(key, record);
 
-		// we've already inserted at leaf level, (height - 1), so begin at (height - 2)
-		short depth = (short)(height - 2);
+		if (_compress_paths) {
+			insertIntoChains(key, registerRecord(key, record));
+			return;
+		}
 		
+		// a key already registered is in all bloom filters already, and
+		// counting filters must not count it twice
+		boolean key_is_new = insertAtLeafLevel(key, record);
+
 		// records whether the previous vector was modified
 		boolean change_occurred = false;
 		
 //		trace("INSERT key " + key);
 		
-		// now we'll work our way up the tree, to the root
-		for (short shift = bits_per_level; shift < Integer.SIZE; shift += bits_per_level) {
-
-			// extract subkey and bit-sequence
-			
-			// shifting occurs in two stages, since shift=32 is ignored
-			int subkey = (key >> shift) >> bits_per_level;
-			byte vector = (byte)((byte)(key >> shift) & 0x0f);
-
-//			trace("   depth: " + ((bits_per_key - shift) / bits_per_level) + "(" + depth + "), subkey " + subkey + ", " + vector);
+		// we've already inserted at leaf level, (height - 1), so now we'll
+		// work our way up the tree from (height - 2), to the root
+		for (int depth = _height - 2; depth >= 0; depth--) {
 
 			// extract the node for this bit-sequence
-			VectorTreeNode node = getNode(subkey, depth);
-			
-			// perform bitwise OR on existing vector and new value
-			short new_vector = (short)(node.getVector() | value_lookup.get(vector));
+			VectorTreeNode node = getNode(prefixOf(key, depth), depth);
 			
 			// increment leaves and ...
 			node.increaseLeavesBy(1);
@@ -136,45 +227,37 @@ public class VectorTree {
 				node.increaseSubnodesBy(1);
 			}
 			
-			// has there been a change?
-			if (new_vector != node.getVector()) {
-				// if so...
-				change_occurred = true;
-			} else {
-				// otherwise...
-				change_occurred = false;
-			}
-
-			// update vector
-			node.setVector(new_vector);
-			
-			// update bloom filter
-			node.getBloomFilter().add(key);
+			// set the offset of the key, noting whether this changed the vector
+			change_occurred = node.setBit(offsetOf(key, depth));
 			
-			depth--;
+			// update bloom filter, unless it is too small to ever prune
+			if (key_is_new && _maintain_bloom_filters && (depth > _config.getMaxBloomLevel())) {
+				node.addToBloomFilter(key, _config);
+			}
 		}
 	}
 	
-	private void insertAtLeafLevel(int key, Record record) {
+	/*
+	 * @return boolean - whether no records were registered to the key before
+	 */
+	private boolean insertAtLeafLevel(int key, Record record) {
 
 		// perform insertion at leaf level
-		int subkey = (key >> bits_per_level);
-		int vector = key & 0x0f;
-
-		// extract the node for this bit-sequence
-		VectorTreeNode node = getNode(subkey, height - 1);
-
-		// perform bitwise OR on existing vector and new value
-		short new_vector = (short)(node.getVector() | value_lookup.get(vector));
+		VectorTreeNode node = getNode(prefixOf(key, _height - 1), _height - 1);
 
 		// is this the first record registered to this key?
-		if (new_vector != node.getVector()) {
+		if (node.setBit(offsetOf(key, _height - 1))) {
 			// if so, increment leaves
 			node.increaseLeavesBy(1);
 		}
 
-		// update vector
-		node.setVector(new_vector);
+		return registerRecord(key, record);
+	}
+
+	/*
+	 * @return boolean - whether no records were registered to the key before
+	 */
+	private boolean registerRecord(int key, Record record) {
 
 		// extract all records registered for this key
 		ArrayList<Record> registrants = _registrants.get(key);
@@ -185,282 +268,2236 @@ public class VectorTree {
 			_registrants.put(key, registrants);
 		}
 
+		boolean key_is_new = registrants.isEmpty();
+
 		// add record
 		registrants.add(record);
+
+		return key_is_new;
 	}
 
 	public void remove(int key, Record record) {
 
+		if (_compress_paths) {
+			if (unregisterRecord(key, record)) {
+				removeFromChains(key);
+			}
+			return;
+		}
+
 		// did this removal affect any above layers?
 		if (removeAtLeafLevel(key, record) == false) {
 			return;
 		}
 		
 		// move up the tree, stopping at the root
-		for (short depth = (short)(height - 2); depth >= 0; depth--) {
-
-			int current_shift = (height - depth) * bits_per_level;
-			int current_key = key >> current_shift;
+		for (int depth = _height - 2; depth >= 0; depth--) {
 
-			int previous_shift = (height - depth - 1) * bits_per_level;
-			int previous_key = key >> previous_shift;
-			byte previous_vector = (byte)(previous_key & 0x0f);
+			int previous_key = prefixOf(key, depth + 1);
+			int previous_offset = offsetOf(key, depth);
+			int current_key = prefixOf(key, depth);
 
 			VectorTreeNode current_node = getExistingNode(current_key, depth);
 			VectorTreeNode previous_node = getExistingNode(previous_key, depth + 1);
 
+			// take the key out of counting bloom filters; other filters
+			// ignore the removal
+			if (_maintain_bloom_filters && (depth > _config.getMaxBloomLevel())) {
+				current_node.removeFromBloomFilter(key);
+			}
+
 			// was previous node emptied?
-			if (previous_node.getVector() == 0) {
+			if ((previous_node != null) && previous_node.isEmpty()) {
 
 				// if so, remove node
-				_nodes.remove(previous_node);
+				decommissionNode(previous_key, depth + 1);
 				
-				// and update current vector
-				short updated_vector = (short)(current_node.getVector() & ~value_lookup.get(previous_vector));
-				
-				// update leaves and subnodes
+				// update leaves, and subnodes if the current vector changes
 				current_node.increaseLeavesBy(-1);
-				if (current_node.getVector() != updated_vector) {
+				if (current_node.clearBit(previous_offset)) {
 					current_node.increaseSubnodesBy(-1);
 				}
+			}
+		}
+	}
+
+	/*
+	 * inserts a key into a tree that compresses paths
+	 *
+	 * the tree is descended from the root, since the key may leave a chain
+	 * at any of its levels, in which case the chain is split there. below
+	 * the deepest node on its path, the key starts a chain of its own down
+	 * to its leaf. every node on the path has its counters updated as insert
+	 * would update the node at the head of its chain.
+	 */
+	private void insertIntoChains(int key, boolean key_is_new) {
+		int length = 0;
+
+		int depth = 0;
+		VectorTreeNode node = _root;
+
+		while (true) {
+
+			// does the key leave the chain above its end?
+			if ((node.getEndDepth() > depth) &&
+					(prefixOf(key, node.getEndDepth()) != ((VectorTreeChainNode)node).getEndPrefix())) {
+				node = splitChain((VectorTreeChainNode)node, key);
+			}
+
+			int end = node.getEndDepth();
+
+			// update bloom filter, unless it is too small to ever prune
+			if (key_is_new && _maintain_bloom_filters && (depth > _config.getMaxBloomLevel()) && (depth < _height - 1)) {
+				node.addToBloomFilter(key, _config);
+			}
+
+			// set the offset of the key, noting whether this changed the
+			// vector at the depth of the node
+			boolean added = node.setBit(offsetOf(key, end));
+
+			_path_nodes[length] = node;
+			_path_depths[length] = depth;
+			_path_changes[length] = added && (end == depth);
+			length++;
+
+			// leaf nodes count keys, inner nodes count records
+			if (end == _height - 1) {
+				if (added) {
+					node.increaseLeavesBy(1);
+				}
+				break;
+			}
+			node.increaseLeavesBy(1);
+
+			// is the key the first below this offset?
+			if (added) {
+				_path_nodes[length] = createChain(key, end + 1);
+				_path_depths[length] = end + 1;
+				_path_changes[length] = true;
+				length++;
+				break;
+			}
 
-				current_node.setVector(updated_vector);
+			depth = end + 1;
+			node = getExistingNode(prefixOf(key, depth), depth);
+		}
+
+		// a node counts the changes to the vectors of its inner children as
+		// its subnodes
+		for (int i = length - 2; i >= 0; i--) {
+			if (_path_changes[i + 1] && (_path_depths[i + 1] < _height - 1)) {
+				_path_nodes[i].increaseSubnodesBy(1);
 			}
 		}
 	}
-	
+
 	/*
-	 * removes the specified key from the leaf-level of the tree
-	 * 
-	 * @return Short - the new vector, -1 on failure to remove
+	 * stores the path of a key alone below the given depth as one node, a
+	 * chain down to its leaf unless the depth is leaf level already
+	 *
+	 * @return VectorTreeNode - the new node
 	 */
-	private boolean removeAtLeafLevel(int key, Record record) {
+	private VectorTreeNode createChain(int key, int depth) {
+		VectorTreeNode node;
+		if (depth == _height - 1) {
+			node = new VectorTreeNode(depth, _vector_words);
+		} else {
+			node = new VectorTreeChainNode(depth, _vector_words, _height - 1, prefixOf(key, _height - 1));
+		}
 
-		// perform removal at leaf level
-		int subkey = (key >> bits_per_level);
-		int vector = key & 0x0f;
+		node.setBit(offsetOf(key, _height - 1));
+		node.increaseLeavesBy(1);
 
-		// extract all records registered for this key
-		ArrayList<Record> registrants = _registrants.get(key);
+		if (_maintain_bloom_filters && (depth > _config.getMaxBloomLevel()) && (depth < _height - 1)) {
+			node.addToBloomFilter(key, _config);
+		}
 
-		// are any records registered?
-		if (registrants == null) {
-			// TODO: Throw error
-			return false;
+		_nodes.put(((long)prefixOf(key, depth) << _log_height) + depth, node);
+		return node;
+	}
+
+	/*
+	 * splits a chain the key leaves at the deepest level it shares with the
+	 * chain, where the key is about to add a second child. the upper part
+	 * keeps the head, its counters and its filter; the lower part is stored
+	 * on its own, with a filter rebuilt from the keys below it.
+	 *
+	 * @return VectorTreeNode - the node now stored at the head of the chain
+	 */
+	private VectorTreeNode splitChain(VectorTreeChainNode chain, int key) {
+		int head = chain.getDepth();
+		int end = chain.getEndDepth();
+
+		int split = head;
+		while ((split + 1 < end) && (prefixOf(key, split + 1) == chain.getPrefixAt(split + 1, _bits_per_level))) {
+			split++;
 		}
 
-		// remove record and check to see whether a deletion occurred
-		if (registrants.remove(record) == false) {
-			// if not, indicate no modification
-			return false;
+		// the lower part runs from below the split down to the end
+		int lower_depth = split + 1;
+		VectorTreeNode lower;
+		if (lower_depth == end) {
+			lower = new VectorTreeNode(end, _vector_words);
+		} else {
+			lower = new VectorTreeChainNode(lower_depth, _vector_words, end, chain.getEndPrefix());
 		}
-		
-		// a deletion occurred, but are any records still registered?
-		if (registrants.isEmpty() == false) {
-			// if so, indicate no modification
-			return false;
+
+		for (int word = 0; word < _vector_words; word++) {
+			lower.setVectorWord(word, chain.getVectorWord(word));
 		}
-		
-		// at this point, a registrant has been successfully deleted,
-		// and the list of remaining registrants has become empty
-		
-		// extract the node for this bit-sequence
-		VectorTreeNode node = getExistingNode(subkey, height - 1);
-		
-		// perform bitwise AND on existing vector and inverted new value
-		short new_vector = (short)(node.getVector() & ~value_lookup.get(vector));
+		lower.increaseLeavesBy(chain.getLeaves());
+		lower.increaseSubnodesBy(chain.getSubnodes());
 
-		// did a deletion occur?
-		if (new_vector != node.getVector()) {
-			node.increaseLeavesBy(-1);
+		if (_maintain_bloom_filters && (lower_depth > _config.getMaxBloomLevel()) && (lower_depth < _height - 1)) {
+			addSubtreeToBloomFilter(lower, lower, chain.getEndPrefix());
 		}
 
-		// update vector
-		node.setVector(new_vector);
-		
-		return true;
+		// the upper part runs from the head down to the split, with the
+		// lower part as its only child
+		VectorTreeNode upper;
+		if (split == head) {
+			upper = new VectorTreeNode(head, _vector_words);
+		} else {
+			upper = new VectorTreeChainNode(head, _vector_words, split, chain.getPrefixAt(split, _bits_per_level));
+		}
+
+		upper.setBit(chain.getOffsetAt(split, _bits_per_level));
+		upper.increaseLeavesBy(chain.getLeaves());
+		if (lower_depth < _height - 1) {
+			upper.increaseSubnodesBy((lower_depth == end) ? lower.getBitCount() : 1);
+		}
+		upper.setBloomFilter(chain.getBloomFilter());
+
+		_nodes.put(((long)chain.getPrefixAt(lower_depth, _bits_per_level) << _log_height) + lower_depth, lower);
+		_nodes.put(((long)chain.getPrefixAt(head, _bits_per_level) << _log_height) + head, upper);
+
+		return upper;
 	}
 
-	private VectorTreeNode getExistingNode(int value, int level) {
-		long node_id = (value << log_height) + level;
-		
-		// extract the node for this bit-sequence
-		VectorTreeNode node = _nodes.get(node_id);
+	/*
+	 * adds every key below a node, whose vector belongs to the given prefix
+	 * at its end depth, to the bloom filter of another node
+	 */
+	private void addSubtreeToBloomFilter(VectorTreeNode filtered, VectorTreeNode node, int end_prefix) {
+		int end = node.getEndDepth();
 
-		// have we seen this key yet?
-		if (node == null) {
-			return null;
+		for (int word = 0; word < _vector_words; word++) {
+			long bits = node.getVectorWord(word);
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int child_prefix = (end_prefix << _bits_per_level) + offset;
+
+				// at leaf level, the prefix of a child is its key
+				if (end == _height - 1) {
+					filtered.addToBloomFilter(child_prefix, _config);
+					continue;
+				}
+
+				VectorTreeNode child = getExistingNode(child_prefix, end + 1);
+				if (child.getEndDepth() > end + 1) {
+					addSubtreeToBloomFilter(filtered, child, ((VectorTreeChainNode)child).getEndPrefix());
+				} else {
+					addSubtreeToBloomFilter(filtered, child, child_prefix);
+				}
+			}
 		}
-		
-		return node;
 	}
 
-	private VectorTreeNode getNode(int value, int depth) {
+	/*
+	 * removes a key whose last record is gone from a tree that compresses
+	 * paths
+	 *
+	 * emptied nodes are removed, and a node on the path of the key left
+	 * with a single child is joined with it, so that the tree stores the
+	 * chains insert would have stored.
+	 */
+	private void removeFromChains(int key) {
+		int length = 0;
+
+		int depth = 0;
+		VectorTreeNode node = _root;
+		while (true) {
+			_path_nodes[length] = node;
+			_path_depths[length] = depth;
+			length++;
+
+			if (node.getEndDepth() == _height - 1) {
+				break;
+			}
 
-		long node_id = (value << log_height) + depth;
-		
-		// extract the node for this bit-sequence
-		VectorTreeNode node = _nodes.get(node_id);
+			depth = node.getEndDepth() + 1;
+			node = getExistingNode(prefixOf(key, depth), depth);
+		}
+
+		// take the key out of counting bloom filters; other filters ignore
+		// the removal
+		if (_maintain_bloom_filters) {
+			for (int i = 0; i < length; i++) {
+				if ((_path_depths[i] > _config.getMaxBloomLevel()) && (_path_depths[i] < _height - 1)) {
+					_path_nodes[i].removeFromBloomFilter(key);
+				}
+			}
+		}
+
+		VectorTreeNode leaf = _path_nodes[length - 1];
+		if (leaf.clearBit(offsetOf(key, _height - 1))) {
+			leaf.increaseLeavesBy(-1);
+		}
+
+		// move up the path, removing emptied nodes
+		for (int i = length - 2; i >= 0; i--) {
+			VectorTreeNode current_node = _path_nodes[i];
+
+			if (_path_nodes[i + 1].isEmpty()) {
+				decommissionNode(prefixOf(key, _path_depths[i + 1]), _path_depths[i + 1]);
+
+				current_node.increaseLeavesBy(-1);
+				if (current_node.clearBit(offsetOf(key, current_node.getEndDepth()))) {
+					current_node.increaseSubnodesBy(-1);
+				}
+			}
+		}
+
+		// join the nodes left with a single child, from the bottom up, so
+		// that each child has been joined already; the root never heads
+		// a chain
+		for (int i = length - 2; i > 0; i--) {
+			VectorTreeNode current_node = _path_nodes[i];
+
+			if ((current_node.isEmpty() == false) && (current_node.getBitCount() == 1)) {
+				joinChain(current_node, prefixOf(key, _path_depths[i]), prefixOf(key, current_node.getEndDepth()));
+			}
+		}
+	}
+
+	/*
+	 * joins an inner node, whose vector belongs to the given prefix at its
+	 * end depth, with its only child into one chain from its head down to
+	 * the end of the child; the chain keeps the filter of the head, as
+	 * compressPaths does
+	 */
+	private void joinChain(VectorTreeNode node, int head_prefix, int end_prefix) {
+		int head = node.getDepth();
+		int end = node.getEndDepth();
+
+		int word = 0;
+		while (node.getVectorWord(word) == 0) {
+			word++;
+		}
+		int offset = (word << 6) + Long.numberOfTrailingZeros(node.getVectorWord(word));
+
+		int child_prefix = (end_prefix << _bits_per_level) + offset;
+		VectorTreeNode child = getExistingNode(child_prefix, end + 1);
+
+		int chain_end = child.getEndDepth();
+		int chain_prefix = (chain_end > end + 1) ? ((VectorTreeChainNode)child).getEndPrefix() : child_prefix;
+
+		VectorTreeChainNode chain = new VectorTreeChainNode(head, _vector_words, chain_end, chain_prefix);
+		for (int chain_word = 0; chain_word < _vector_words; chain_word++) {
+			chain.setVectorWord(chain_word, child.getVectorWord(chain_word));
+		}
+		chain.increaseLeavesBy(child.getLeaves());
+		chain.increaseSubnodesBy(child.getSubnodes());
+		chain.setBloomFilter(node.getBloomFilter());
+
+		decommissionNode(child_prefix, end + 1);
+		_nodes.put(((long)head_prefix << _log_height) + head, chain);
+	}
+
+	/*
+	 * replaces every chain of single-child nodes below the root by a chain
+	 * node, as inserting the same keys would have stored them
+	 */
+	private void compressPaths() {
+		compressPathsBelow(_root, 0);
+	}
+
+	/*
+	 * compresses the chains starting at the children of a node whose vector
+	 * belongs to the given prefix at its end depth
+	 */
+	private void compressPathsBelow(VectorTreeNode node, int end_prefix) {
+		int end = node.getEndDepth();
+		if (end == _height - 1) {
+			return;
+		}
+
+		for (int word = 0; word < _vector_words; word++) {
+			long bits = node.getVectorWord(word);
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int head = end + 1;
+				int head_prefix = (end_prefix << _bits_per_level) + offset;
+				VectorTreeNode head_node = getExistingNode(head_prefix, head);
+
+				// follow single children down to the end of the chain,
+				// removing every node below its head
+				int chain_end = head;
+				int chain_prefix = head_prefix;
+				VectorTreeNode end_node = head_node;
+				while ((chain_end < _height - 1) && (end_node.getBitCount() == 1)) {
+					int child_word = 0;
+					while (end_node.getVectorWord(child_word) == 0) {
+						child_word++;
+					}
+					int child_offset = (child_word << 6) + Long.numberOfTrailingZeros(end_node.getVectorWord(child_word));
+
+					chain_prefix = (chain_prefix << _bits_per_level) + child_offset;
+					chain_end++;
+					end_node = getExistingNode(chain_prefix, chain_end);
+					decommissionNode(chain_prefix, chain_end);
+				}
+
+				if (chain_end == head) {
+					compressPathsBelow(head_node, head_prefix);
+					continue;
+				}
+
+				VectorTreeChainNode chain = new VectorTreeChainNode(head, _vector_words, chain_end, chain_prefix);
+				for (int chain_word = 0; chain_word < _vector_words; chain_word++) {
+					chain.setVectorWord(chain_word, end_node.getVectorWord(chain_word));
+				}
+				chain.increaseLeavesBy(end_node.getLeaves());
+				chain.increaseSubnodesBy(end_node.getSubnodes());
+				chain.setBloomFilter(head_node.getBloomFilter());
+				_nodes.put(((long)head_prefix << _log_height) + head, chain);
+
+				compressPathsBelow(chain, chain_prefix);
+			}
+		}
+	}
+	
+	public static VectorTree bulkLoadParallel(
+			int[] sorted_keys,
+			Record[] records,
+			boolean maintain_bloom_filters,
+			ForkJoinPool pool) {
+
+		return bulkLoadParallel(sorted_keys, records, maintain_bloom_filters, VectorTreeConfig.DEFAULT, pool);
+	}
+
+	/*
+	 * bulk loads the keys on the given pool, building the subtree under
+	 * every root offset, that is, every distinct top bit-sequence of the
+	 * keys, on its own worker before stitching them under the root
+	 *
+	 * the nodes of the subtrees are merged into the node table of the tree
+	 * on the pool as well, see NodeTable.putAllParallel(), and the records
+	 * are registered by a task of their own while the subtrees are built,
+	 * so that no node or registrant is hashed twice on the calling thread.
+	 */
+	public static VectorTree bulkLoadParallel(
+			int[] sorted_keys,
+			Record[] records,
+			boolean maintain_bloom_filters,
+			VectorTreeConfig config,
+			ForkJoinPool pool) {
+
+		VectorTree tree = new VectorTree(config, maintain_bloom_filters, sorted_keys.length);
+
+		ForkJoinTask<?> registration = pool.submit(() -> tree.registerSorted(sorted_keys, records, 0, sorted_keys.length));
+
+		int root_offsets = tree._offset_mask + 1;
+		int root_shift = (tree._height - 1) * tree._bits_per_level;
+
+		// split the keys into runs sharing their root offset
+		ArrayList<BuildTask> tasks = new ArrayList<BuildTask>(root_offsets);
+		int from = 0;
+		for (int offset = 0; offset < root_offsets; offset++) {
+			long bound = (long)(offset + 1) << root_shift;
+			int to = ((offset == root_offsets - 1) || (bound > Integer.MAX_VALUE)) ? sorted_keys.length :
+					lowerBound(sorted_keys, from, (int)bound);
+
+			// a descent across runs means the keys were not sorted
+			if ((from > 0) && (from < to) && (sorted_keys[from] < sorted_keys[from - 1])) {
+				throw new IllegalArgumentException("keys must be sorted in ascending order");
+			}
+
+			if (from < to) {
+				BuildTask task = new BuildTask(sorted_keys, from, to, maintain_bloom_filters, config);
+				pool.execute(task);
+				tasks.add(task);
+			}
+			from = to;
+		}
+
+		NodeTable[] subtree_nodes = new NodeTable[tasks.size()];
+		for (int i = 0; i < tasks.size(); i++) {
+			VectorTree subtree = tasks.get(i).join();
+			VectorTreeNode subtree_root = subtree._root;
+
+			// every subtree holds one offset of the root, so its counters add up
+			for (int word = 0; word < tree._vector_words; word++) {
+				tree._root.setVectorWord(word, tree._root.getVectorWord(word) | subtree_root.getVectorWord(word));
+			}
+			tree._root.increaseLeavesBy(subtree_root.getLeaves());
+			tree._root.increaseSubnodesBy(subtree_root.getSubnodes());
+
+			// move over every node but the subtree's root, whose id is 0
+			subtree._nodes.remove(0L);
+			subtree_nodes[i] = subtree._nodes;
+		}
+		tree._nodes.putAllParallel(subtree_nodes, pool);
+		registration.join();
+
+		// a root filter, if any, must see every key
+		if (maintain_bloom_filters && (0 > config.getMaxBloomLevel())) {
+			tree._root.addAllToBloomFilter(sorted_keys, 0, sorted_keys.length, config);
+		}
+
+		if (tree._compress_paths) {
+			tree.compressPaths();
+		}
+		return tree;
+	}
+
+	/*
+	 * @return int - the first index at or after from whose key is not below key
+	 */
+	private static int lowerBound(int[] sorted_keys, int from, int key) {
+		int low = from;
+		int high = sorted_keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sorted_keys[middle] < key) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * builds the subtree of one run of keys as a tree of its own, whose
+	 * root is dropped once the subtree is stitched under the final root;
+	 * its records are registered to the final tree directly
+	 */
+	private static class BuildTask extends RecursiveTask<VectorTree> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int[] _sorted_keys;
+		private int _from;
+		private int _to;
+		private boolean _maintain_bloom_filters;
+		private VectorTreeConfig _config;
+
+		public BuildTask(
+				int[] sorted_keys,
+				int from,
+				int to,
+				boolean maintain_bloom_filters,
+				VectorTreeConfig config) {
+
+			_sorted_keys = sorted_keys;
+			_from = from;
+			_to = to;
+			_maintain_bloom_filters = maintain_bloom_filters;
+			_config = config;
+		}
+
+		@Override
+		protected VectorTree compute() {
+			VectorTree subtree = new VectorTree(_config, _maintain_bloom_filters, _to - _from);
+			subtree.loadSorted(_sorted_keys, _from, _to);
+			return subtree;
+		}
+	}
+
+	/*
+	 * loads the nodes of sorted_keys[from, to) into a tree holding none of
+	 * them yet; their records are registered by registerSorted()
+	 */
+	private void loadSorted(int[] sorted_keys, int from, int to) {
+		if ((from < to) && (sorted_keys[from] < 0)) {
+			throw new IllegalArgumentException("keys must be non-negative");
+		}
+
+		// nodes on the path of the current key, the first key of their run,
+		// and the deepest depth holding an open node
+		VectorTreeNode[] open_nodes = new VectorTreeNode[_height];
+		int[] run_starts = new int[_height];
+		int open_depth = -1;
+
+		for (int i = from; i < to; i++) {
+			int key = sorted_keys[i];
+
+			// is this another record for the previous key?
+			if ((i > from) && (key == sorted_keys[i - 1])) {
+				continue;
+			}
+
+			// the highest differing bit decides the shallowest node the two
+			// keys do not share; the first key opens every depth
+			int first_new_depth = 0;
+			if (i > from) {
+				int difference = key ^ sorted_keys[i - 1];
+				if (key < sorted_keys[i - 1]) {
+					throw new IllegalArgumentException("keys must be sorted in ascending order");
+				}
+				first_new_depth = _height - (31 - Integer.numberOfLeadingZeros(difference)) / _bits_per_level;
+			}
+
+			// close the runs that ended with the previous key
+			for (; open_depth >= first_new_depth; open_depth--) {
+				closeRun(open_nodes, run_starts, open_depth, sorted_keys, i);
+			}
+
+			// and open nodes for the new key, down to leaf level
+			for (open_depth++; open_depth < _height; open_depth++) {
+				int depth = open_depth;
+
+				VectorTreeNode node;
+				if (depth == 0) {
+					node = _root;
+				} else {
+					// keys are sorted, so no other run created this node
+					node = new VectorTreeNode(depth, _vector_words);
+					_nodes.put(((long)prefixOf(key, depth) << _log_height) + depth, node);
+
+					open_nodes[depth - 1].setBit(offsetOf(key, depth - 1));
+				}
+
+				open_nodes[depth] = node;
+				run_starts[depth] = i;
+			}
+			open_depth = _height - 1;
+
+			// set the key's bit at leaf level
+			open_nodes[_height - 1].setBit(offsetOf(key, _height - 1));
+		}
+
+		for (; open_depth >= 0; open_depth--) {
+			closeRun(open_nodes, run_starts, open_depth, sorted_keys, to);
+		}
+	}
+
+	/*
+	 * registers records[i] to sorted_keys[i] for every i in [from, to), or
+	 * a null record to each key if records is null
+	 */
+	private void registerSorted(int[] sorted_keys, Record[] records, int from, int to) {
+		ArrayList<Record> registrants = null;
+
+		for (int i = from; i < to; i++) {
+			if ((i == from) || (sorted_keys[i] != sorted_keys[i - 1])) {
+				registrants = new ArrayList<Record>(1);
+				_registrants.put(sorted_keys[i], registrants);
+			}
+
+			registrants.add((records == null) ? null : records[i]);
+		}
+	}
+
+	/*
+	 * sets the counters and bloom filter of an open node whose run of keys
+	 * ends before index end, as insert would have left them
+	 */
+	private void closeRun(VectorTreeNode[] open_nodes, int[] run_starts, int depth, int[] sorted_keys, int end) {
+		VectorTreeNode node = open_nodes[depth];
+
+		// leaf nodes count keys, inner nodes count records
+		if (depth == _height - 1) {
+			node.increaseLeavesBy(node.getBitCount());
+		} else {
+			node.increaseLeavesBy(end - run_starts[depth]);
+		}
+
+		// insert counts the grandchildren of a node as its subnodes
+		if ((depth > 0) && (depth < _height - 1)) {
+			open_nodes[depth - 1].increaseSubnodesBy(node.getBitCount());
+		}
+
+		// leaf nodes keep no bloom filter
+		if (_maintain_bloom_filters && (depth > _config.getMaxBloomLevel()) && (depth < _height - 1)) {
+			node.addAllToBloomFilter(sorted_keys, run_starts[depth], end, _config);
+		}
+	}
+
+	/*
+	 * removes the specified key from the leaf-level of the tree
+	 * 
+	 * @return Short - the new vector, -1 on failure to remove
+	 */
+	private boolean removeAtLeafLevel(int key, Record record) {
+
+		if (unregisterRecord(key, record) == false) {
+			return false;
+		}
+
+		// extract the node for this bit-sequence
+		VectorTreeNode node = getExistingNode(prefixOf(key, _height - 1), _height - 1);
+		
+		// clear the offset of the key; did a deletion occur?
+		if (node.clearBit(offsetOf(key, _height - 1))) {
+			node.increaseLeavesBy(-1);
+		}
+		
+		return true;
+	}
+
+	/*
+	 * @return boolean - whether the last record registered to the key was
+	 *                   removed
+	 */
+	private boolean unregisterRecord(int key, Record record) {
+
+		// extract all records registered for this key
+		ArrayList<Record> registrants = _registrants.get(key);
+
+		// are any records registered?
+		if (registrants == null) {
+			// TODO: Throw error
+			return false;
+		}
+
+		// remove record and check to see whether a deletion occurred
+		if (registrants.remove(record) == false) {
+			// if not, indicate no modification
+			return false;
+		}
+		
+		// a deletion occurred, but are any records still registered?
+		if (registrants.isEmpty() == false) {
+			// if so, indicate no modification
+			return false;
+		}
+		
+		// at this point, a registrant has been successfully deleted,
+		// and the list of remaining registrants has become empty
+		return true;
+	}
+
+	VectorTreeNode getExistingNode(int value, int level) {
+		long node_id = ((long)value << _log_height) + level;
+		
+		// extract the node for this bit-sequence
+		VectorTreeNode node = _nodes.get(node_id);
+
+		// have we seen this key yet?
+		if (node == null) {
+			return null;
+		}
+		
+		return node;
+	}
+
+	/*
+	 * node accessors used by intersection; lookups must not create nodes,
+	 * since intersection is read-only
+	 *
+	 * ANDs the vector of the node into the given words, clearing them if
+	 * there is no such node
+	 *
+	 * @return boolean - whether any offset survives
+	 */
+	boolean intersectVector(int value, int depth, long[] vector) {
+		VectorTreeNode node = getExistingNode(value, depth);
+
+		if (node == null) {
+			Arrays.fill(vector, 0L);
+			return false;
+		}
+
+		long survivors = 0;
+		for (int word = 0; word < vector.length; word++) {
+			vector[word] &= node.getVectorWord(word);
+			survivors |= vector[word];
+		}
+
+		return survivors != 0;
+	}
+
+	/*
+	 * @return long - the vector of the node, 0 if there is no such node;
+	 *                only for trees whose vectors fit a single word
+	 */
+	long getVectorWord(int value, int depth) {
+		VectorTreeNode node = getExistingNode(value, depth);
+		return (node == null) ? 0 : node.getVector();
+	}
+
+	/*
+	 * @return int - the leaves below the node, 0 if there is no such node
+	 */
+	int getLeaves(int value, int depth) {
+		VectorTreeNode node = getExistingNode(value, depth);
+		return (node == null) ? 0 : node.getLeaves();
+	}
+
+	/*
+	 * as getLeaves, where chain, unless it is null, covers the node
+	 */
+	int getLeaves(int value, int depth, VectorTreeNode chain) {
+		return (chain != null) ? chain.getLeaves() : getLeaves(value, depth);
+	}
+
+	private static int countBits(long[] vector) {
+		int count = 0;
+		for (long word : vector) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/*
+	 * @return KeyFilter - the filter of the node, null if there is none
+	 */
+	KeyFilter getBloomFilter(int value, int depth) {
+		VectorTreeNode node = getExistingNode(value, depth);
+		return (node == null) ? null : node.getBloomFilter();
+	}
+
+	boolean maintainsBloomFilters() {
+		return _maintain_bloom_filters;
+	}
+
+	/*
+	 * @return boolean - whether every key has been removed again; only for
+	 *                   trees whose nodes are kept in the node table
+	 */
+	boolean isEmpty() {
+		return _root.isEmpty();
+	}
+
+	NodeTable getNodeTable() {
+		return _nodes;
+	}
+
+	HashMap<Integer, ArrayList<Record>> getRegistrants() {
+		return _registrants;
+	}
+
+	private VectorTreeNode getNode(int value, int depth) {
+
+		long node_id = ((long)value << _log_height) + depth;
+		
+		// extract the node for this bit-sequence
+		VectorTreeNode node = _nodes.get(node_id);
+
+		// have we seen this key yet?
+		if (node == null) {
+			
+			// if not, add it
+			node = new VectorTreeNode(depth, _vector_words);
+			_nodes.put(node_id, node);
+		}
+		
+		return node;
+	}
+
+
+	/*
+	 * adds a node created by a subclass, which must not exist yet
+	 */
+	void putNode(int value, int depth, VectorTreeNode node) {
+		_nodes.put(((long)value << _log_height) + depth, node);
+	}
+
+	void decommissionNode(int value, int depth) {
+		long node_id = ((long)value << _log_height) + depth;
+		
+		// remove node
+		_nodes.remove(node_id);
+	}
+		
+	public static VectorTreeIterator intersect(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		return intersect(trees, use_bloom_filter, null);
+	}
+
+	/*
+	 * as intersect(trees, use_bloom_filter), counting into stats, which may
+	 * be null, as the iterator is consumed
+	 */
+	public static VectorTreeIterator intersect(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			IntersectionStats stats) {
+
+		VectorTree shape = checkFanOut(trees);
+
+		ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants = getAllRegistrants(trees);
+
+		// container trees are only traversed down to their containers
+		if (ContainerVectorTree.holdContainers(trees)) {
+			return new ContainerVectorTreeIterator(all_registrants, orderByLeaves(trees),
+					createBloomFilterPolicy(trees, use_bloom_filter), stats);
+		}
+
+		// the traversal itself runs as the iterator is consumed
+		return new LazyVectorTreeIterator(all_registrants, shape._bits_per_level, shape._height, orderByLeaves(trees),
+				canUseBloomFilters(trees, use_bloom_filter), stats);
+	}
+
+	/*
+	 * @return IntStream - the keys of the intersection, split on subtree
+	 *                     boundaries when run in parallel
+	 */
+	public static IntStream intersectStream(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			boolean parallel) {
+
+		return intersectStream(trees, use_bloom_filter, parallel, null);
+	}
+
+	public static IntStream intersectStream(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			boolean parallel,
+			IntersectionStats stats) {
+
+		return StreamSupport.intStream(
+				new VectorTreeSpliterator(orderByLeaves(trees), use_bloom_filter, stats),
+				parallel);
+	}
+
+	public static long intersectCount(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		return intersectCount(trees, use_bloom_filter, null);
+	}
+
+	/*
+	 * counts the keys of the intersection without handing them out
+	 *
+	 * the traversal is that of intersect(), but the words of each leaf
+	 * intersection are only counted, so that no matches are buffered, no
+	 * records are looked up and nothing is allocated below the root. counts
+	 * into stats, unless it is null.
+	 *
+	 * @return long - the number of keys in the intersection
+	 */
+	public static long intersectCount(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			IntersectionStats stats) {
+
+		checkFanOut(trees);
+
+		// the root is never inside a chain
+		BloomFilterPolicy bloom_policy = createBloomFilterPolicy(trees, use_bloom_filter);
+		long count = countSubtree(orderByLeaves(trees), 0, 0, bloom_policy, stats,
+				compressesPaths(trees) ? new VectorTreeNode[trees.size()] : null);
+
+		if (bloom_policy != null) {
+			bloom_policy.finish();
+		}
+		return count;
+	}
+
+	public static long intersectCountParallel(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			ForkJoinPool pool) {
+
+		return intersectCountParallel(trees, use_bloom_filter, pool, null);
+	}
+
+	/*
+	 * as intersectCount, forking subtrees on the given pool as
+	 * intersectParallel does
+	 */
+	public static long intersectCountParallel(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			ForkJoinPool pool,
+			IntersectionStats stats) {
+
+		checkFanOut(trees);
+
+		BloomFilterPolicy bloom_policy = createBloomFilterPolicy(trees, use_bloom_filter);
+		long count = pool.invoke(new CountTask(orderByLeaves(trees), 0, 0, bloom_policy, stats,
+				compressesPaths(trees) ? new VectorTreeNode[trees.size()] : null));
+
+		if (bloom_policy != null) {
+			bloom_policy.finish();
+		}
+		return count;
+	}
+
+	/*
+	 * the order of the trees does not change the keys of the intersection,
+	 * nor the records handed out with them, which come from the trees given
+	 *
+	 * @return ArrayList<VectorTree> - the trees by the leaves they hold,
+	 *                                 fewest first, unless the first
+	 *                                 keeps a reorder depth of 0, see
+	 *                                 TreeOrder
+	 */
+	static ArrayList<VectorTree> orderByLeaves(ArrayList<VectorTree> trees) {
+		if (trees.get(0)._config.getReorderDepth() == 0) {
+			return trees;
+		}
+
+		// leaves in the high half, ties kept in the order given
+		long[] keys = new long[trees.size()];
+		for (int i = 0; i < trees.size(); i++) {
+			keys[i] = ((long)trees.get(i).getLeaves(0, 0) << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		ArrayList<VectorTree> ordered = new ArrayList<VectorTree>(trees.size());
+		for (long key : keys) {
+			ordered.add(trees.get((int)key));
+		}
+		return ordered;
+	}
+
+	/*
+	 * @return BloomFilterPolicy - the policy of an intersection of the given
+	 *                             trees, as their iterator creates it, null
+	 *                             if it uses no bloom filters
+	 */
+	static BloomFilterPolicy createBloomFilterPolicy(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		VectorTree shape = trees.get(0);
+
+		// the container intersection takes the place of the leaves
+		if (ContainerVectorTree.holdContainers(trees)) {
+			return BloomFilterPolicy.create(((ContainerVectorTree)shape).getContainerDepth() + 1,
+					shape._config, ContainerVectorTree.canUseUpperBloomFilters(trees, use_bloom_filter));
+		}
+
+		return BloomFilterPolicy.create(shape._height, shape._config, canUseBloomFilters(trees, use_bloom_filter));
+	}
+
+	/*
+	 * estimates the size of the intersection without traversing it
+	 *
+	 * the vectors of all trees are intersected breadth first, which counts
+	 * the intersection exactly as long as at most estimate_nodes children
+	 * survive at each depth. at a depth where more do, the keys below each
+	 * node at which every tree keeps a filter of at most
+	 * estimate_filter_words words are estimated from those, see
+	 * KeyFilter.estimateIntersection(), and the node is not descended into.
+	 * of the children still left, only estimate_nodes, evenly spaced, are
+	 * descended into, each standing in for the ones skipped. the spread of
+	 * the keys found below the nodes of the first such sample gives the
+	 * standard error of the estimate, which leaves out that of the filters.
+	 *
+	 * at the first such depth, each node holds no more keys than the fewest
+	 * leaves of any tree below it, nor than fit below its children
+	 * surviving in every tree, which bounds the estimate from above. every
+	 * key found at the leaves of the nodes descended into is in the
+	 * intersection, so that their number bounds it from below.
+	 *
+	 * estimate_nodes and estimate_filter_words are those of the config of
+	 * the first tree, see VectorTreeConfig.withEstimateNodes().
+	 *
+	 * @return IntersectionEstimate - the estimated number of keys in the
+	 *                                intersection, with bounds on it
+	 */
+	public static IntersectionEstimate estimateIntersection(ArrayList<VectorTree> trees) {
+
+		VectorTree shape = checkFanOut(trees);
+
+		boolean use_bloom_filter = ContainerVectorTree.holdContainers(trees) ?
+				ContainerVectorTree.canUseUpperBloomFilters(trees, true) : canUseBloomFilters(trees, true);
+
+		// the nodes reached at the current depth, the number of nodes each
+		// stands in for, the first sampled node each lies below, if any,
+		// their intersected vectors and, if any tree compresses paths, the
+		// chains covering them and their children
+		int capacity = shape._config.getEstimateNodes();
+		int[] prefixes = new int[capacity];
+		double[] weights = new double[capacity];
+		int[] samples = new int[capacity];
+		long[][] vectors = new long[capacity][shape._vector_words];
+		VectorTreeNode[][] chains = null;
+		VectorTreeNode[][] child_chains = null;
+		VectorTreeNode[][] next_chains = null;
+		if (compressesPaths(trees)) {
+			chains = new VectorTreeNode[capacity][trees.size()];
+			child_chains = new VectorTreeNode[capacity][trees.size()];
+			next_chains = new VectorTreeNode[capacity][trees.size()];
+		}
+
+		KeyFilter[] bloom_filters = new KeyFilter[trees.size()];
+
+		// keys estimated outside of any sample, and below each of the first
+		// sampled nodes, of which population were sampled from
+		double estimate = 0;
+		double[] sample_keys = new double[capacity];
+		int population = 0;
+
+		// the most keys a single one found at the leaves stands for, and
+		// the keys found there
+		double resolution = 0;
+		long lower_bound = 0;
+		long upper_bound = -1;
+
+		// begin at the root node, which is never inside a chain
+		int nodes = 1;
+		int depth = 0;
+		weights[0] = 1;
+		samples[0] = -1;
+
+		while (nodes > 0) {
+			int children = 0;
+			for (int n = 0; n < nodes; n++) {
+				getIntersection(prefixes[n], depth, trees, vectors[n],
+						(chains == null) ? null : chains[n], (chains == null) ? null : child_chains[n]);
+				children += countBits(vectors[n]);
+			}
+
+			// every offset surviving at the leaves is a key
+			if (depth == shape._height - 1) {
+				for (int n = 0; n < nodes; n++) {
+					resolution = Math.max(resolution, weights[n]);
+					lower_bound += countBits(vectors[n]);
+
+					double keys = weights[n] * countBits(vectors[n]);
+					if (samples[n] < 0) {
+						estimate += keys;
+					} else {
+						sample_keys[samples[n]] += keys;
+					}
+				}
+				break;
+			}
+
+			// filters are only read where not every child can be descended
+			// into, since they only estimate
+			boolean filtered = use_bloom_filter && (depth > shape._config.getMaxBloomLevel()) &&
+					(children > capacity);
+
+			// nothing has been left out yet, so the bounds of these nodes
+			// bound the whole intersection
+			if ((upper_bound < 0) && (children > capacity)) {
+				upper_bound = 0;
+				for (int n = 0; n < nodes; n++) {
+					upper_bound += getKeyBound(prefixes[n], depth, trees, vectors[n],
+							(chains == null) ? null : chains[n]);
+				}
+			}
+
+			// filters are only kept at the head of a chain
+			for (int n = 0; filtered && (n < nodes); n++) {
+				if ((chains == null) || isOutsideChains(chains[n])) {
+					double keys = estimateWithBloomFilters(prefixes[n], depth, trees, bloom_filters);
+
+					if (Double.isNaN(keys) == false) {
+						keys = weights[n] * Math.min(keys, getKeyBound(prefixes[n], depth, trees, vectors[n],
+								(chains == null) ? null : chains[n]));
+						if (samples[n] < 0) {
+							estimate += keys;
+						} else {
+							sample_keys[samples[n]] += keys;
+						}
+
+						children -= countBits(vectors[n]);
+						Arrays.fill(vectors[n], 0L);
+					}
+				}
+			}
+
+			// descend into at most capacity of the children, spread evenly
+			// over them
+			boolean first_sample = (population == 0) && (children > capacity);
+			if (first_sample) {
+				population = children;
+			}
+
+			int[] child_prefixes = new int[capacity];
+			double[] child_weights = new double[capacity];
+			int[] child_samples = new int[capacity];
+			int seen = 0;
+			int child = 0;
+			for (int n = 0; n < nodes; n++) {
+				for (int word = 0; word < shape._vector_words; word++) {
+					long bits = vectors[n][word];
+
+					while (bits != 0) {
+						int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+
+						seen++;
+						if ((children > capacity) && ((long)seen * capacity / children == child)) {
+							continue;
+						}
+
+						child_prefixes[child] = (prefixes[n] << shape._bits_per_level) + offset;
+						child_weights[child] = weights[n] * Math.max(1.0, (double)children / capacity);
+						child_samples[child] = first_sample ? child : samples[n];
+						if (chains != null) {
+							System.arraycopy(child_chains[n], 0, next_chains[child], 0, trees.size());
+						}
+						child++;
+					}
+				}
+			}
+
+			if (chains != null) {
+				VectorTreeNode[][] swap = chains;
+				chains = next_chains;
+				next_chains = swap;
+			}
+			prefixes = child_prefixes;
+			weights = child_weights;
+			samples = child_samples;
+			nodes = child;
+			depth++;
+		}
+
+		if (upper_bound < 0) {
+			return new IntersectionEstimate(Math.round(estimate), 0, Math.round(estimate), Math.round(estimate));
+		}
+
+		// the keys below each sampled node, scaled up to all of them, vary
+		// around the estimate by the standard error of a sample of
+		// capacity drawn from population without replacement; a sample
+		// that found no key tells no less than a single key could
+		double variance = 0;
+		if (population > 0) {
+			double sampled = 0;
+			for (int i = 0; i < capacity; i++) {
+				sampled += sample_keys[i];
+			}
+			for (int i = 0; i < capacity; i++) {
+				variance += (sample_keys[i] - sampled / capacity) * (sample_keys[i] - sampled / capacity);
+			}
+			variance *= (1 - (double)capacity / population) * capacity / Math.max(1, capacity - 1);
+			variance = Math.max(variance, resolution * resolution);
+
+			estimate += sampled;
+		}
+
+		return new IntersectionEstimate(Math.max(lower_bound, Math.min(Math.round(estimate), upper_bound)),
+				Math.sqrt(variance), lower_bound, upper_bound);
+	}
+
+	/*
+	 * @return long - the most keys the node can hold, given the fewest
+	 *                leaves of any tree below it and the keys that fit
+	 *                below the offsets of its intersected vector
+	 */
+	private static long getKeyBound(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			long[] vector,
+			VectorTreeNode[] chains) {
+
+		VectorTree shape = trees.get(0);
+
+		long bound = countBits(vector) * (1L << (shape._bits_per_level * (shape._height - 1 - depth)));
+		for (int i = 0; i < trees.size(); i++) {
+			bound = Math.min(bound, trees.get(i).getLeaves(key, depth, (chains == null) ? null : chains[i]));
+		}
+
+		return bound;
+	}
+
+	/*
+	 * @return double - the common keys estimated from the filters of the
+	 *                  node, NaN if some tree has none, or one too large to
+	 *                  read or too small to span whole words, or if there
+	 *                  are too many trees to estimate from filters
+	 */
+	private static double estimateWithBloomFilters(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			KeyFilter[] bloom_filters) {
+
+		for (int i = 0; i < trees.size(); i++) {
+			KeyFilter bloom_filter = trees.get(i).getBloomFilter(key, depth);
+
+			if ((bloom_filter == null) || (bloom_filter.getWordCount() < 2) ||
+					(bloom_filter.getWordCount() > trees.get(0)._config.getEstimateFilterWords())) {
+				return Double.NaN;
+			}
+
+			bloom_filters[i] = bloom_filter;
+		}
+
+		return KeyFilter.estimateIntersection(bloom_filters, trees.size());
+	}
+
+	/*
+	 * prefixes are only comparable between trees of the same fan-out
+	 *
+	 * @return VectorTree - the first of the trees, whose shape all share
+	 */
+	static VectorTree checkFanOut(ArrayList<VectorTree> trees) {
+		if (trees.isEmpty()) {
+			throw new IllegalArgumentException("no trees to intersect");
+		}
+
+		VectorTree shape = trees.get(0);
+		for (VectorTree tree : trees) {
+			if (tree._bits_per_level != shape._bits_per_level) {
+				throw new IllegalArgumentException("trees of different fan-outs cannot be intersected");
+			}
+		}
+
+		return shape;
+	}
+
+	/*
+	 * filters are only comparable between trees sharing every filter
+	 * setting; intersecting any others would lose keys
+	 *
+	 * @return boolean - whether bloom filters can be used to intersect these trees
+	 */
+	static boolean canUseBloomFilters(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		if (use_bloom_filter == false) {
+			return false;
+		}
+
+		for (VectorTree tree : trees) {
+			if (tree.maintainsBloomFilters() == false) {
+				return false;
+			}
+		}
+
+		VectorTreeConfig config = trees.get(0)._config;
+		for (VectorTree tree : trees) {
+			if (tree._config.hasSameFilters(config) == false) {
+				throw new IllegalArgumentException("trees of different bloom filter settings cannot be intersected using their filters");
+			}
+		}
+
+		return true;
+	}
+
+	static ArrayList<HashMap<Integer, ArrayList<Record>>> getAllRegistrants(ArrayList<VectorTree> trees) {
+		ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants =
+				new ArrayList<HashMap<Integer,ArrayList<Record>>>();
+		
+		// extract all records registered for this intersection
+		for (VectorTree tree : trees) {
+			all_registrants.add(tree._registrants);
+		}
+
+		return all_registrants;
+	}
+
+	public VectorTreeConfig getConfig() {
+		return _config;
+	}
+
+	short getBitsPerLevel() {
+		return _bits_per_level;
+	}
+
+	short getHeight() {
+		return _height;
+	}
+
+	short getLogHeight() {
+		return _log_height;
+	}
+
+	/*
+	 * @return int - the number of 64-bit words in the vector of a node
+	 */
+	int getVectorWords() {
+		return _vector_words;
+	}
+
+	/*
+	 * performs the intersection on the given pool, forking the subtrees
+	 * under each surviving offset down to fork_depth, as long as they are
+	 * at least fork_min_leaves large. matches are returned in key order.
+	 */
+	public static VectorTreeIterator intersectParallel(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			ForkJoinPool pool) {
+
+		return intersectParallel(trees, use_bloom_filter, pool, null);
+	}
+
+	public static VectorTreeIterator intersectParallel(
+			ArrayList<VectorTree> trees,
+			boolean use_bloom_filter,
+			ForkJoinPool pool,
+			IntersectionStats stats) {
+
+		checkFanOut(trees);
+
+		ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants = getAllRegistrants(trees);
+
+		VectorTreeIterator iterator = new VectorTreeIterator(all_registrants);
+
+		// begin intersection at the root node, which is never inside a chain;
+		// each task forks the policy deciding where filters are checked, and
+		// the root ends up with the counts of all of them
+		BloomFilterPolicy bloom_policy = createBloomFilterPolicy(trees, use_bloom_filter);
+		IntersectTask root = new IntersectTask(orderByLeaves(trees), 0, 0, bloom_policy, stats,
+				compressesPaths(trees) ? new VectorTreeNode[trees.size()] : null);
+		pool.invoke(root);
+
+		if (bloom_policy != null) {
+			bloom_policy.finish();
+		}
+
+		// collect per-task buffers in offset order, which is key order
+		root.drainInto(iterator);
+
+		return iterator;
+	}
+
+	/*
+	 * intersects the subtree below one prefix, either by forking a task per
+	 * surviving offset or by descending sequentially into its own buffer
+	 */
+	private static class IntersectTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private ArrayList<VectorTree> _trees;
+		private int _prefix;
+		private int _depth;
+		private BloomFilterPolicy _bloom_policy;
+		private IntersectionStats _stats;
+
+		// the chains covering this depth, null if no tree compresses paths
+		private VectorTreeNode[] _chains;
+
+		// filled by a sequential task
+		private ArrayList<VectorTreeIterator.Matches> _matches;
+
+		// filled by a forking task, in offset order
+		private ArrayList<IntersectTask> _subtasks;
+
+		public IntersectTask(
+				ArrayList<VectorTree> trees,
+				int prefix,
+				int depth,
+				BloomFilterPolicy bloom_policy,
+				IntersectionStats stats,
+				VectorTreeNode[] chains) {
+
+			_trees = trees;
+			_prefix = prefix;
+			_depth = depth;
+			_bloom_policy = bloom_policy;
+			_stats = stats;
+			_chains = chains;
+		}
+
+		@Override
+		protected void compute() {
+
+			VectorTree shape = _trees.get(0);
+
+			// container trees are only split above the holders of their
+			// containers
+			boolean containers = ContainerVectorTree.holdContainers(_trees);
+			int last_depth = containers ? ((ContainerVectorTree)shape).getContainerDepth() - 1 : shape._height - 1;
+
+			// the subtree of a task near the root is worth ordering anew
+			TreeOrder order = new TreeOrder(_trees, containers ? last_depth + 1 : last_depth, _chains != null);
+			if (order.reorders(_depth - 1, _depth)) {
+				_trees = order.order(_prefix, _depth, _trees, _chains);
+				_chains = (_chains == null) ? null : order.getChains(_depth);
+			}
+
+			// is this subtree too deep or too small to be worth splitting?
+			if ((_depth >= fork_depth) || (_depth >= last_depth) ||
+					(getMinimumLeaves(_prefix, _depth, _trees, _chains) < fork_min_leaves)) {
+
+				_matches = new ArrayList<VectorTreeIterator.Matches>();
+				long[][] vectors = new long[shape._height][shape._vector_words];
+				if (containers) {
+					ContainerVectorTree.intersectNode(_trees, _prefix, _depth, _matches, _bloom_policy,
+							new KeyFilter[_trees.size()], vectors, new TreeOrder(_trees, last_depth + 1, false),
+							new VectorTreeContainerNode[_trees.size()], new LeafContainer[_trees.size()],
+							new char[LeafContainer.MAX_ARRAY_SIZE], new long[LeafContainer.BITMAP_WORDS], _stats);
+				} else if (_chains != null) {
+					intersectChainNode(_trees, _prefix, _depth, _chains, _matches, _bloom_policy,
+							new KeyFilter[_trees.size()], vectors, new VectorTreeNode[shape._height][_trees.size()], _stats);
+				} else if (_bloom_policy != null) {
+					intersectNodeWithBloomFilter(_trees, _prefix, _depth, _matches,
+							new KeyFilter[_trees.size()], _bloom_policy, vectors, _stats);
+				} else {
+					intersectNode(_trees, _prefix, _depth, _matches, vectors);
+				}
+				return;
+			}
+
+			long[] survivors = new long[shape._vector_words];
+			VectorTreeNode[] child_chains = (_chains == null) ? null : new VectorTreeNode[_trees.size()];
+			getSurvivors(_prefix, _depth, _trees, _bloom_policy, new KeyFilter[_trees.size()], survivors, _stats,
+					_chains, child_chains);
+
+			_subtasks = new ArrayList<IntersectTask>();
+			for (int word = 0; word < survivors.length; word++) {
+				long bits = survivors[word];
+				while (bits != 0) {
+					int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+
+					int new_key = (_prefix << shape._bits_per_level) + offset;
+
+					_subtasks.add(new IntersectTask(_trees, new_key, _depth + 1, forkBloomFilterPolicy(_bloom_policy),
+							_stats, child_chains));
+				}
+			}
+
+			invokeAll(_subtasks);
+
+			for (IntersectTask subtask : _subtasks) {
+				joinBloomFilterPolicy(_bloom_policy, subtask._bloom_policy);
+			}
+		}
+
+		public void drainInto(VectorTreeIterator iterator) {
+			if (_matches != null) {
+				iterator.enqueueAll(_matches);
+			}
+
+			if (_subtasks != null) {
+				for (IntersectTask subtask : _subtasks) {
+					subtask.drainInto(iterator);
+				}
+			}
+		}
+	}
+
+	/*
+	 * counts the keys below one prefix, either by forking a task per
+	 * surviving offset or by descending sequentially, as IntersectTask does
+	 */
+	private static class CountTask extends RecursiveTask<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private ArrayList<VectorTree> _trees;
+		private int _prefix;
+		private int _depth;
+		private BloomFilterPolicy _bloom_policy;
+		private IntersectionStats _stats;
+
+		// the chains covering this depth, null if no tree compresses paths
+		private VectorTreeNode[] _chains;
+
+		public CountTask(
+				ArrayList<VectorTree> trees,
+				int prefix,
+				int depth,
+				BloomFilterPolicy bloom_policy,
+				IntersectionStats stats,
+				VectorTreeNode[] chains) {
+
+			_trees = trees;
+			_prefix = prefix;
+			_depth = depth;
+			_bloom_policy = bloom_policy;
+			_stats = stats;
+			_chains = chains;
+		}
+
+		@Override
+		protected Long compute() {
+
+			VectorTree shape = _trees.get(0);
+
+			// container trees are only split above the holders of their
+			// containers
+			boolean containers = ContainerVectorTree.holdContainers(_trees);
+			int last_depth = containers ? ((ContainerVectorTree)shape).getContainerDepth() - 1 : shape._height - 1;
+
+			// the subtree of a task near the root is worth ordering anew
+			TreeOrder order = new TreeOrder(_trees, containers ? last_depth + 1 : last_depth, _chains != null);
+			if (order.reorders(_depth - 1, _depth)) {
+				_trees = order.order(_prefix, _depth, _trees, _chains);
+				_chains = (_chains == null) ? null : order.getChains(_depth);
+			}
+
+			// is this subtree too deep or too small to be worth splitting?
+			if ((_depth >= fork_depth) || (_depth >= last_depth) ||
+					(getMinimumLeaves(_prefix, _depth, _trees, _chains) < fork_min_leaves)) {
+				return countSubtree(_trees, _prefix, _depth, _bloom_policy, _stats, _chains);
+			}
+
+			long[] survivors = new long[shape._vector_words];
+			VectorTreeNode[] child_chains = (_chains == null) ? null : new VectorTreeNode[_trees.size()];
+			getSurvivors(_prefix, _depth, _trees, _bloom_policy, new KeyFilter[_trees.size()], survivors, _stats,
+					_chains, child_chains);
+
+			ArrayList<CountTask> subtasks = new ArrayList<CountTask>();
+			for (int word = 0; word < survivors.length; word++) {
+				long bits = survivors[word];
+				while (bits != 0) {
+					int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+
+					int new_key = (_prefix << shape._bits_per_level) + offset;
+
+					subtasks.add(new CountTask(_trees, new_key, _depth + 1, forkBloomFilterPolicy(_bloom_policy),
+							_stats, child_chains));
+				}
+			}
+
+			invokeAll(subtasks);
+
+			long count = 0;
+			for (CountTask subtask : subtasks) {
+				count += subtask.join();
+				joinBloomFilterPolicy(_bloom_policy, subtask._bloom_policy);
+			}
+			return count;
+		}
+	}
+
+	/*
+	 * @return BloomFilterPolicy - the policy of a subtask, null if the task
+	 *                             uses no bloom filters
+	 */
+	private static BloomFilterPolicy forkBloomFilterPolicy(BloomFilterPolicy bloom_policy) {
+		return (bloom_policy != null) ? bloom_policy.fork() : null;
+	}
+
+	private static void joinBloomFilterPolicy(BloomFilterPolicy bloom_policy, BloomFilterPolicy subtask_policy) {
+		if (bloom_policy != null) {
+			bloom_policy.join(subtask_policy);
+		}
+	}
+
+	/*
+	 * @return int - the fewest leaves any tree holds below this prefix
+	 */
+	static int getMinimumLeaves(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees) {
+
+		int minimum = Integer.MAX_VALUE;
+		for (VectorTree tree : trees) {
+			minimum = Math.min(minimum, tree.getLeaves(key, depth));
+		}
+
+		return minimum;
+	}
+
+	/*
+	 * as getMinimumLeaves, where a tree inside a chain counts the leaves of
+	 * the chain
+	 */
+	static int getMinimumLeaves(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			VectorTreeNode[] chains) {
+
+		if (chains == null) {
+			return getMinimumLeaves(key, depth, trees);
+		}
+
+		int minimum = Integer.MAX_VALUE;
+		for (int i = 0; i < trees.size(); i++) {
+			int leaves = (chains[i] != null) ? chains[i].getLeaves() : trees.get(i).getLeaves(key, depth);
+			minimum = Math.min(minimum, leaves);
+		}
+
+		return minimum;
+	}
+
+	/*
+	 * vectors holds one scratch vector per depth, so that the survivors of
+	 * a node are not overwritten while its children are visited
+	 */
+	private static void intersectNode(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			int depth,
+			List<VectorTreeIterator.Matches> matches,
+			long[][] vectors) {
+
+		VectorTree shape = trees.get(0);
+
+		// are we at leaf level?
+		if (depth == shape._height - 1) {
+			// if so, perform actual value extraction
+			intersectNodeAtLeafLevel(trees, prefix, matches, vectors[depth], null);
+			return;
+		}
+
+		long[] survivors = vectors[depth];
+		if (getIntersection(prefix, depth, trees, survivors) == false) {
+			return;
+		}
+
+		// visit each set bit of the intersection, lowest offset first
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int new_key = (prefix << shape._bits_per_level) + offset;
+			
+				intersectNode(trees, new_key, depth + 1, matches, vectors);
+			}
+		}
+	}
+
+	private static void intersectNodeWithBloomFilter(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			int depth,
+			List<VectorTreeIterator.Matches> matches,
+			KeyFilter[] bloom_filters,
+			BloomFilterPolicy bloom_policy,
+			long[][] vectors,
+			IntersectionStats stats) {
+
+		VectorTree shape = trees.get(0);
+
+		// are we at leaf level?
+		if (depth == shape._height - 1) {
+			// if so, perform actual value extraction
+			intersectNodeAtLeafLevel(trees, prefix, matches, vectors[depth], bloom_policy);
+			return;
+		}
+
+		// before we perform the intersection over vectors, we intersect over
+		// bloom filters, allowing ourselves to stop here if the intersection
+		// reports no survivors
+		
+		// are there any survivors?
+		if (hasBloomFilterSurvivors(prefix, depth, trees, bloom_filters, bloom_policy, stats) == false) {
+//			trace("***** Bloom Filter says 'no matches' at depth " + depth + " *****");
+			// if not, stop descending
+			return;
+		}
+
+		long[] vector_survivors = vectors[depth];
+		long started = bloom_policy.startClock(depth);
+		boolean any_survivors = getIntersection(prefix, depth, trees, vector_survivors);
+		bloom_policy.countVisit(depth, vector_survivors, started);
+		if (any_survivors == false) {
+			return;
+		}
+
+		// visit each set bit of the intersection, lowest offset first
+		for (int word = 0; word < vector_survivors.length; word++) {
+			long bits = vector_survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int new_key = (prefix << shape._bits_per_level) + offset;
+
+				intersectNodeWithBloomFilter(trees, new_key, depth + 1, matches, bloom_filters, bloom_policy, vectors,
+						stats);
+			}
+		}
+	}
+
+	/*
+	 * intersects an inner node across all trees into survivors, checking
+	 * the bloom filters first as bloom_policy decides, unless it is null,
+	 * using bloom_filters as scratch space; filter checks and pruned nodes
+	 * are counted into stats, unless it is null
+	 * 
+	 * @return boolean - whether any offset survives in every tree; if not,
+	 *                   survivors is left empty
+	 */
+	static boolean getSurvivors(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[] survivors,
+			IntersectionStats stats) {
+
+		if (bloom_policy == null) {
+			return getIntersection(key, depth, trees, survivors);
+		}
+
+		// are there any bloom filter survivors?
+		if (hasBloomFilterSurvivors(key, depth, trees, bloom_filters, bloom_policy, stats) == false) {
+			// if not, stop descending
+			Arrays.fill(survivors, 0L);
+			return false;
+		}
+
+		long started = bloom_policy.startClock(depth);
+		boolean any_survivors = getIntersection(key, depth, trees, survivors);
+		bloom_policy.countVisit(depth, survivors, started);
+		return any_survivors;
+	}
+
+	/*
+	 * ANDs the vectors of a node across all trees into intersection, which
+	 * holds one word per 64 offsets
+	 *
+	 * @return boolean - whether any offset survives; if not, intersection
+	 *                   is left empty
+	 */
+	static boolean getIntersection(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			long[] intersection) {
+
+		// vectors of up to 64 offsets are ANDed in a register
+		if (intersection.length == 1) {
+			long survivors = ~0L;
+			for (int i = 0; (i < trees.size()) && (survivors != 0); i++) {
+				survivors &= trees.get(i).getVectorWord(key, depth);
+			}
+			intersection[0] = survivors;
+			return survivors != 0;
+		}
+
+		Arrays.fill(intersection, ~0L);
+		for (VectorTree tree : trees) {
+			// a missing node has an empty vector, so nothing survives; stop
+			// as soon as nothing survives
+			if (tree.intersectVector(key, depth, intersection) == false) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+
+	/*
+	 * collects the bloom filters of this node into the given scratch array,
+	 * which must hold one entry per tree, and checks whether enough bits
+	 * survive their intersection to hold a single key, unless bloom_policy
+	 * skips the filters of this depth
+	 */
+	static boolean hasBloomFilterSurvivors(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			KeyFilter[] bloom_filters,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats) {
+
+		// filters up to max_bloom_level hold a single bit, set in every
+		// non-empty node, so they are never built and never prune
+		if (depth <= trees.get(0)._config.getMaxBloomLevel()) {
+			return true;
+		}
 
-		// have we seen this key yet?
-		if (node == null) {
-			
-			// if not, add it
-			node = new VectorTreeNode(depth, bits_per_level, bits_per_key);
-			_nodes.put(node_id, node);
+		if (bloom_policy.shouldCheck(depth, stats) == false) {
+			return true;
 		}
+
+		long started = bloom_policy.startClock(depth);
 		
-		return node;
-	}
+		int count = 0;
+		for (VectorTree tree : trees) {
+			KeyFilter bloom_filter = tree.getBloomFilter(key, depth);
 
+			// a missing node, or one without a filter, holds no keys, so
+			// nothing can survive
+			if (bloom_filter == null) {
+				count = 0;
+				break;
+			}
 
-	private void decommissionNode(int value, int depth) {
-		long node_id = (value << log_height) + depth;
+			bloom_filters[count++] = bloom_filter;
+		}
 		
-		// remove node
-		_nodes.remove(node_id);
-	}
+//		System.out.println("intersecting " + count + " bloom filters at depth " + depth);
 		
-	protected static ArrayList<Short> getSurvivors(int key) {
-		return survivors_lookup.get(key);
-	}
-
-	protected static ArrayList<Short> getSurvivors(short key) {
-		return survivors_lookup_short.get(key);
+		return bloom_policy.hasSurvivors(depth, bloom_filters, count, started, stats);
 	}
+	
+	private static void intersectNodeAtLeafLevel(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			List<VectorTreeIterator.Matches> matches,
+			long[] intersection,
+			BloomFilterPolicy bloom_policy) {
 
-	public static VectorTreeIterator intersect(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		VectorTree shape = trees.get(0);
 
-		ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants =
-				new ArrayList<HashMap<Integer,ArrayList<Record>>>();
-		
-		// extract all records registered for this intersection
-		for (VectorTree tree : trees) {
-			all_registrants.add(tree._registrants);
+		// get bitvectors of all nodes; were results produced?
+		if (getLeafIntersection(prefix, shape._height - 1, trees, intersection, bloom_policy, null, null)) {
+			addMatches(prefix << shape._bits_per_level, intersection, matches);
 		}
-		
-		VectorTreeIterator iterator = new VectorTreeIterator(all_registrants, bits_per_level);
+	}
 
-		// begin intersection at the root node
-		if (use_bloom_filter) {
-			intersectNodeWithBloomFilter(trees, 0, (short)0, iterator);
-		} else {
-			intersectNode(trees, 0, (short)0, iterator);
+	/*
+	 * adds the keys of a leaf intersection to the buffer, a word at a time
+	 */
+	private static void addMatches(int base, long[] intersection, List<VectorTreeIterator.Matches> matches) {
+		for (int word = 0; word < intersection.length; word++) {
+			if (intersection[word] != 0) {
+				matches.add(new VectorTreeIterator.Matches(base + (word << 6), intersection[word]));
+			}
 		}
-		
-		return iterator;
 	}
 
-	private static void intersectNode(
+	/*
+	 * as intersectNode and intersectNodeWithBloomFilter, for trees of which
+	 * some compress paths
+	 *
+	 * chains holds, per tree, the chain covering this depth below its head,
+	 * or null where the node of the tree is looked up; child_chains holds a
+	 * scratch array per depth for the chains covering the children. below
+	 * a node at which every tree is inside a chain, the traversal jumps to
+	 * the shallowest end among them.
+	 */
+	private static void intersectChainNode(
 			ArrayList<VectorTree> trees,
 			int prefix,
-			short depth,
-			VectorTreeIterator iterator) {
+			int depth,
+			VectorTreeNode[] chains,
+			List<VectorTreeIterator.Matches> matches,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[][] vectors,
+			VectorTreeNode[][] child_chains,
+			IntersectionStats stats) {
+
+		VectorTree shape = trees.get(0);
+		long[] survivors = vectors[depth];
 
 		// are we at leaf level?
-		if (depth == height - 1) {
-			// if so, perform actual value extraction
-			intersectNodeAtLeafLevel(trees, prefix, iterator);
+		if (depth == shape._height - 1) {
+			if (getLeafIntersection(prefix, depth, trees, survivors, bloom_policy, chains, child_chains[depth])) {
+				addMatches(prefix << shape._bits_per_level, survivors, matches);
+			}
 			return;
 		}
 
-		short vector_intersection = getIntersection(prefix, depth, trees);
-		
-		ArrayList<Short> offsets = getSurvivors(vector_intersection);
-		
-		for (short offset : offsets) {
-			int new_key = (prefix << bits_per_level) + offset;
-			
-			intersectNode(trees, new_key, (short)(depth + 1), iterator);
+		if (getSurvivors(prefix, depth, trees, bloom_policy, bloom_filters, survivors, stats,
+				chains, child_chains[depth]) == false) {
+			return;
+		}
+
+		int child_depth = getChainJump(child_chains[depth], depth + 1, shape._bits_per_level);
+		if (child_depth < 0) {
+			return;
+		}
+
+		// visit each set bit of the intersection, lowest offset first
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int new_key = (prefix << shape._bits_per_level) + offset;
+				if (child_depth > depth + 1) {
+					new_key = ((VectorTreeChainNode)child_chains[depth][0]).getPrefixAt(child_depth, shape._bits_per_level);
+				}
+
+				intersectChainNode(trees, new_key, child_depth, child_chains[depth], matches, bloom_policy,
+						bloom_filters, vectors, child_chains, stats);
+			}
 		}
 	}
 
-	private static void intersectNodeWithBloomFilter(
+	/*
+	 * counts the keys below a node, allocating the scratch space of the
+	 * traversal once for the whole subtree
+	 */
+	private static long countSubtree(
+			ArrayList<VectorTree> trees,
+			int prefix,
+			int depth,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats,
+			VectorTreeNode[] chains) {
+
+		VectorTree shape = trees.get(0);
+
+		if (ContainerVectorTree.holdContainers(trees)) {
+			int container_depth = ((ContainerVectorTree)shape).getContainerDepth();
+			return ContainerVectorTree.countNode(trees, prefix, depth, bloom_policy, new KeyFilter[trees.size()],
+					new long[container_depth][shape._vector_words], new TreeOrder(trees, container_depth, false),
+					new VectorTreeContainerNode[trees.size()], new LeafContainer[trees.size()],
+					new char[LeafContainer.MAX_ARRAY_SIZE], new long[LeafContainer.BITMAP_WORDS], stats);
+		}
+
+		return countNode(trees, prefix, depth, chains, bloom_policy, new KeyFilter[trees.size()],
+				new long[shape._height][shape._vector_words],
+				(chains == null) ? null : new VectorTreeNode[shape._height][trees.size()],
+				new TreeOrder(trees, shape._height - 1, chains != null), stats);
+	}
+
+	/*
+	 * as intersectChainNode, counting the keys below the node instead of
+	 * collecting them; chains and child_chains are null if no tree
+	 * compresses paths, and bloom_policy is null if no filters are checked.
+	 * the children of nodes near the root order the trees anew, by
+	 * tree_order.
+	 *
+	 * @return long - the number of keys in the intersection below the node
+	 */
+	private static long countNode(
 			ArrayList<VectorTree> trees,
 			int prefix,
-			short depth,
-			VectorTreeIterator iterator) {
+			int depth,
+			VectorTreeNode[] chains,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[][] vectors,
+			VectorTreeNode[][] child_chains,
+			TreeOrder tree_order,
+			IntersectionStats stats) {
+
+		VectorTree shape = trees.get(0);
+		long[] survivors = vectors[depth];
+		VectorTreeNode[] node_chains = (child_chains == null) ? null : child_chains[depth];
 
 		// are we at leaf level?
-		if (depth == height - 1) {
-			// if so, perform actual value extraction
-			intersectNodeAtLeafLevel(trees, prefix, iterator);
-			return;
+		if (depth == shape._height - 1) {
+			if (getLeafIntersection(prefix, depth, trees, survivors, bloom_policy, chains, node_chains) == false) {
+				return 0;
+			}
+
+			long count = 0;
+			for (long word : survivors) {
+				count += Long.bitCount(word);
+			}
+			return count;
 		}
 
-		// before we perform the intersection over vectors, we intersect over
-		// bloom filters, allowing ourselves to stop here if the intersection
-		// reports no survivors
-		
-		// are there any survivors?
-		int survivors = getBloomFilterSurvivors(prefix, depth, trees);
-		if (survivors == 0) {
-//			trace("***** Bloom Filter says 'no matches' at depth " + depth + " *****");
-			// if not, stop descending
-			bloom_hits++;
-			return;
-		} else {
-//			trace("Depth: " + depth + " Survivors: " + survivors);
+		if (getSurvivors(prefix, depth, trees, bloom_policy, bloom_filters, survivors, stats,
+				chains, node_chains) == false) {
+			return 0;
 		}
 
-		short vector_intersection = getIntersection(prefix, depth, trees);
-		
-		ArrayList<Short> offsets = getSurvivors(vector_intersection);
-		
-		for (short offset : offsets) {
-			int new_key = (prefix << bits_per_level) + offset;
+		int child_depth = getChainJump(node_chains, depth + 1, shape._bits_per_level);
+		if (child_depth < 0) {
+			return 0;
+		}
+
+		long count = 0;
+		for (int word = 0; word < survivors.length; word++) {
+			long bits = survivors[word];
+			while (bits != 0) {
+				int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int new_key = (prefix << shape._bits_per_level) + offset;
+				if (child_depth > depth + 1) {
+					new_key = ((VectorTreeChainNode)node_chains[0]).getPrefixAt(child_depth, shape._bits_per_level);
+				}
 
-			intersectNodeWithBloomFilter(trees, new_key, (short)(depth + 1), iterator);
+				if (tree_order.reorders(depth, child_depth)) {
+					count += countNode(tree_order.order(new_key, child_depth, trees, node_chains), new_key, child_depth,
+							(node_chains == null) ? null : tree_order.getChains(child_depth), bloom_policy, bloom_filters,
+							vectors, child_chains, tree_order, stats);
+					continue;
+				}
+
+				count += countNode(trees, new_key, child_depth, node_chains, bloom_policy, bloom_filters, vectors,
+						child_chains, tree_order, stats);
+			}
+		}
+
+		return count;
+	}
+
+	/*
+	 * @return boolean - whether any of the trees compresses paths, in which
+	 *                   case intersection tracks the chains of every tree
+	 */
+	static boolean compressesPaths(ArrayList<VectorTree> trees) {
+		for (VectorTree tree : trees) {
+			if (tree._compress_paths) {
+				return true;
+			}
 		}
+		return false;
 	}
 
-	private static short getIntersection(
+	/*
+	 * as getSurvivors, tracking chains as getChainIntersection does, unless
+	 * chains is null because no tree compresses paths
+	 *
+	 * filters are only kept at the head of a chain, so they are checked only
+	 * where no tree is inside one
+	 */
+	static boolean getSurvivors(
 			int key,
 			int depth,
-			ArrayList<VectorTree> trees) {
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			KeyFilter[] bloom_filters,
+			long[] survivors,
+			IntersectionStats stats,
+			VectorTreeNode[] chains,
+			VectorTreeNode[] child_chains) {
+
+		if (chains == null) {
+			return getSurvivors(key, depth, trees, bloom_policy, bloom_filters, survivors, stats);
+		}
 
-		int intersection = ~0;
-		for (VectorTree tree : trees) {
-			intersection = intersection & tree.getNode(key, depth).getVector();
+		if (bloom_policy == null) {
+			return getChainIntersection(key, depth, trees, chains, child_chains, survivors);
 		}
-		
-		return (short)intersection;
+
+		if (isOutsideChains(chains) &&
+				(hasBloomFilterSurvivors(key, depth, trees, bloom_filters, bloom_policy, stats) == false)) {
+			Arrays.fill(survivors, 0L);
+			return false;
+		}
+
+		long started = bloom_policy.startClock(depth);
+		boolean any_survivors = getChainIntersection(key, depth, trees, chains, child_chains, survivors);
+		bloom_policy.countVisit(depth, survivors, started);
+		return any_survivors;
 	}
 
-	private static int getBloomFilterSurvivors(
+	/*
+	 * as getIntersection, tracking chains as getChainIntersection does,
+	 * unless chains is null because no tree compresses paths
+	 */
+	static boolean getIntersection(
 			int key,
 			int depth,
-			ArrayList<VectorTree> trees) {
-		
-		ArrayList<BloomFilter> bloom_filters = new ArrayList<BloomFilter>();
+			ArrayList<VectorTree> trees,
+			long[] intersection,
+			VectorTreeNode[] chains,
+			VectorTreeNode[] child_chains) {
 
-		for (VectorTree tree : trees) {
-			bloom_filters.add(tree.getNode(key, depth).getBloomFilter());
+		if (chains == null) {
+			return getIntersection(key, depth, trees, intersection);
 		}
-		
-//		System.out.println("intersecting " + bloom_filters.size() + " bloom filters at depth " + depth);
-		
-		return BloomFilter.intersectMutiway(bloom_filters);
+
+		return getChainIntersection(key, depth, trees, chains, child_chains, intersection);
 	}
-	
-	private static void intersectNodeAtLeafLevel(
+
+	/*
+	 * as getIntersection, for a leaf, which bloom_policy times unless it is
+	 * null
+	 */
+	static boolean getLeafIntersection(
+			int key,
+			int depth,
 			ArrayList<VectorTree> trees,
-			int prefix,
-			VectorTreeIterator iterator) {
+			long[] intersection,
+			BloomFilterPolicy bloom_policy,
+			VectorTreeNode[] chains,
+			VectorTreeNode[] child_chains) {
 
-		// get bitvectors of both nodes
-		short vector_intersection = getIntersection(prefix, height - 1, trees);
-		
-		ArrayList<Short> offsets = getSurvivors(vector_intersection);
-		
-		VectorTreeIterator.Matches matches =
-				new VectorTreeIterator.Matches(prefix, offsets);
-		
-		// were results produced?
-		if (offsets.size() > 0) {
-			// add matches to iterator
-			iterator.enqueue(matches);
+		if (bloom_policy == null) {
+			return getIntersection(key, depth, trees, intersection, chains, child_chains);
+		}
+
+		long started = bloom_policy.startClock(depth);
+		boolean any_survivors = getIntersection(key, depth, trees, intersection, chains, child_chains);
+		bloom_policy.countVisit(depth, intersection, started);
+		return any_survivors;
+	}
+
+	private static boolean isOutsideChains(VectorTreeNode[] chains) {
+		for (VectorTreeNode chain : chains) {
+			if (chain != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * ANDs the vectors of a node across trees of which some compress paths
+	 *
+	 * chains holds, per tree, the chain covering this depth below its head,
+	 * or null where the node of the tree is looked up, which may turn out to
+	 * be the head of a chain. inside a chain, only the offset on its path
+	 * survives; at its end, its vector applies. on success, child_chains
+	 * holds the chains covering the next depth.
+	 *
+	 * @return boolean - whether any offset survives; if not, intersection
+	 *                   is left empty
+	 */
+	static boolean getChainIntersection(
+			int key,
+			int depth,
+			ArrayList<VectorTree> trees,
+			VectorTreeNode[] chains,
+			VectorTreeNode[] child_chains,
+			long[] intersection) {
+
+		Arrays.fill(intersection, ~0L);
+		for (int i = 0; i < trees.size(); i++) {
+			VectorTree tree = trees.get(i);
+			VectorTreeNode node = chains[i];
+			child_chains[i] = null;
+
+			if (node == null) {
+				// a tree that does not compress paths has a node at every depth
+				if (tree._compress_paths == false) {
+					if (tree.intersectVector(key, depth, intersection) == false) {
+						return false;
+					}
+					continue;
+				}
+
+				node = tree.getExistingNode(key, depth);
+				if (node == null) {
+					Arrays.fill(intersection, 0L);
+					return false;
+				}
+			}
+
+			if (node.getEndDepth() > depth) {
+				int offset = ((VectorTreeChainNode)node).getOffsetAt(depth, tree._bits_per_level);
+				long bit = intersection[offset >>> 6] & (1L << offset);
+
+				Arrays.fill(intersection, 0L);
+				if (bit == 0) {
+					return false;
+				}
+				intersection[offset >>> 6] = bit;
+
+				child_chains[i] = node;
+			} else {
+				long survivors = 0;
+				for (int word = 0; word < intersection.length; word++) {
+					intersection[word] &= node.getVectorWord(word);
+					survivors |= intersection[word];
+				}
+
+				if (survivors == 0) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * below a node at which every tree is inside a chain, every level down
+	 * to the shallowest chain end holds a single offset, provided the
+	 * compressed prefixes of all chains agree at that end
+	 *
+	 * @return int - the depth at which to continue below the node, which is
+	 *               the given depth unless every tree is inside a chain, or
+	 *               -1 if the chains disagree, so that no key lies below
+	 *               all of them
+	 */
+	static int getChainJump(VectorTreeNode[] chains, int depth, int bits_per_level) {
+		if (chains == null) {
+			return depth;
+		}
+
+		int end = Integer.MAX_VALUE;
+		for (VectorTreeNode chain : chains) {
+			if (chain == null) {
+				return depth;
+			}
+			end = Math.min(end, chain.getEndDepth());
+		}
+
+		int prefix = ((VectorTreeChainNode)chains[0]).getPrefixAt(end, bits_per_level);
+		for (VectorTreeNode chain : chains) {
+			if (((VectorTreeChainNode)chain).getPrefixAt(end, bits_per_level) != prefix) {
+				return -1;
+			}
 		}
+
+		return end;
 	}
 
 	
@@ -784,7 +2821,25 @@ public class VectorTree {
 	}
 	
 	
+	/*
+	 * consumes all results, since intersection runs as the iterator is read
+	 * 
+	 * @return int - the number of keys in the intersection
+	 */
+	private static int drain(VectorTreeIterator iterator) {
+		int counter = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			counter++;
+		}
+		return counter;
+	}
+
 	public static void testMultiIntersect() {
+		testMultiIntersect(benchmark_config);
+	}
+
+	public static void testMultiIntersect(VectorTreeConfig config) {
 
 //		System.err.print("Initializing.. ");
 
@@ -792,7 +2847,7 @@ public class VectorTree {
 		int[][] key_sets = new int[num_sets][];
 		
 		for (int i=0; i<num_sets; i++)
-			vector_trees.add(new VectorTree());
+			vector_trees.add(new VectorTree(config, true));
 
 		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
 		for (int i=1; i<num_sets; i++)
@@ -815,13 +2870,12 @@ public class VectorTree {
 //		trace("leaves/subnodes: " + vector_trees.get(0)._root.getLeaves() + "/" + vector_trees.get(0)._root.getSubnodes());
 
 //		System.err.println("Intersecting without bloom filters.. ");
-		VectorTreeIterator iterator = null;
 
 		long startTime = System.nanoTime();
 		long endTime;
 		try {
 			for (int n=0; n<repetitions; n++)
-				iterator = VectorTree.intersect(vector_trees, false);
+				drain(VectorTree.intersect(vector_trees, false));
 		} finally {
 		  endTime = System.nanoTime();
 		}
@@ -830,36 +2884,282 @@ public class VectorTree {
 
 //		System.err.println("Intersecting with bloom filters.. ");
 		
+		IntersectionStats stats = new IntersectionStats();
 		startTime = System.nanoTime();
 		try {
 			for (int n=0; n<repetitions; n++) {
-				bloom_hits = 0;
-				iterator = VectorTree.intersect(vector_trees, true);
+				stats = new IntersectionStats();
+				drain(VectorTree.intersect(vector_trees, true, stats));
 			}
 		} finally {
 		  endTime = System.nanoTime();
 		}
 		long bloom_duration = endTime - startTime;
-		System.out.println((bloom_duration / 1000000.0) + "\t" + bloom_hits);
+		System.out.print((bloom_duration / 1000000.0) + "\t" + stats.getBloomHits());
+
+		// optionally time the fork/join intersection on a pool of the given size
+		if (parallelism > 0) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+			startTime = System.nanoTime();
+			try {
+				for (int n=0; n<repetitions; n++)
+					drain(VectorTree.intersectParallel(vector_trees, false, pool));
+			} finally {
+			  endTime = System.nanoTime();
+			}
+			long parallel_duration = endTime - startTime;
+			System.out.print("\t" + (parallel_duration / 1000000.0));
+
+			pool.shutdown();
+		}
+		System.out.println();
+	}
+
+	/*
+	 * times intersections with filters checked at every depth below each
+	 * max_bloom_level, and with the checks left to the adaptive policy, as
+	 * columns of data/min_depth.dat followed by the adaptive time, hits and
+	 * skipped checks
+	 */
+	public static void testAdaptiveBloomFilters() {
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i=1; i<num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		for (int level = 0; level < benchmark_config.getHeight() - 1; level++) {
+			System.out.print(level);
+
+			for (boolean adapt : new boolean[] { false, true }) {
+				VectorTreeConfig config = benchmark_config.withMaxBloomLevel(level).withAdaptiveBloomFilters(adapt);
+
+				ArrayList<VectorTree> vector_trees = new ArrayList<VectorTree>(num_sets);
+				for (int[] keys : key_sets) {
+					VectorTree tree = new VectorTree(config, true);
+					for (int key : keys)
+						tree.insert(key, null);
+					vector_trees.add(tree);
+				}
+
+				long startTime;
+				if (adapt == false) {
+					startTime = System.nanoTime();
+					for (int n=0; n<repetitions; n++)
+						drain(intersect(vector_trees, false));
+					System.out.print("\t" + ((System.nanoTime() - startTime) / 1000000.0));
+				}
+
+				IntersectionStats stats = null;
+				startTime = System.nanoTime();
+				for (int n=0; n<repetitions; n++) {
+					stats = new IntersectionStats();
+					drain(intersect(vector_trees, true, stats));
+				}
+				System.out.print("\t" + ((System.nanoTime() - startTime) / 1000000.0) + "\t" + stats.getBloomHits());
+				if (adapt)
+					System.out.print("\t" + stats.getBloomSkips());
+			}
+			System.out.println();
+		}
+	}
+
+	/*
+	 * compares the estimated size of the intersection with the true one at
+	 * each max_bloom_level, as columns of the level, the true size, the
+	 * estimate and its bounds, and the microseconds taken by an estimate
+	 */
+	public static void testEstimateIntersection() {
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i=1; i<num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		for (int level = 0; level < benchmark_config.getHeight() - 1; level++) {
+			ArrayList<VectorTree> vector_trees = new ArrayList<VectorTree>(num_sets);
+			for (int[] keys : key_sets) {
+				VectorTree tree = new VectorTree(benchmark_config.withMaxBloomLevel(level), true);
+				for (int key : keys)
+					tree.insert(key, null);
+				vector_trees.add(tree);
+			}
+
+			IntersectionEstimate estimate = null;
+			long startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				estimate = estimateIntersection(vector_trees);
+			double micros = (System.nanoTime() - startTime) / 1000.0 / repetitions;
+
+			System.out.println(level + "\t" + drain(intersect(vector_trees, false)) + "\t" + estimate.getEstimate() +
+					"\t" + estimate.getLowerBound() + "\t" + estimate.getUpperBound() + "\t" + micros);
+		}
+	}
+
+	/*
+	 * times draining the intersection against counting it, with and
+	 * without bloom filters, and the parallel count if parallelism is set
+	 */
+	public static void testIntersectCount() {
+		ArrayList<VectorTree> vector_trees = new ArrayList<VectorTree>(num_sets);
+		int[][] key_sets = new int[num_sets][];
+		key_sets[0] = DataGenerator.generateUniform(set_size, set_density);
+		for (int i=1; i<num_sets; i++)
+			key_sets[i] = DataGenerator.generateOverlapping(set_size, key_sets[0], set_overlap);
+
+		for (int[] keys : key_sets) {
+			VectorTree tree = new VectorTree(benchmark_config, true);
+			for (int key : keys)
+				tree.insert(key, null);
+			vector_trees.add(tree);
+		}
+
+		for (boolean use_bloom_filter : new boolean[] { false, true }) {
+			long startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				drain(intersect(vector_trees, use_bloom_filter));
+			System.out.print(((System.nanoTime() - startTime) / 1000000.0) + "\t");
+
+			long count = 0;
+			startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				count = intersectCount(vector_trees, use_bloom_filter);
+			System.out.print(((System.nanoTime() - startTime) / 1000000.0) + "\t" + count + "\t");
+		}
+
+		if (parallelism > 0) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+			long startTime = System.nanoTime();
+			for (int n=0; n<repetitions; n++)
+				intersectCountParallel(vector_trees, false, pool);
+			System.out.print((System.nanoTime() - startTime) / 1000000.0);
+
+			pool.shutdown();
+		}
+		System.out.println();
+	}
+
+	/*
+	 * @return int - the max_bloom_level at which trees of the given fan-out
+	 *               filter no nodes covering more key bits than trees of the
+	 *               benchmark fan-out do at its max_bloom_level
+	 */
+	private static int getEquivalentBloomLevel(int bits) {
+		int covered_bits = (benchmark_config.getHeight() - benchmark_config.getMaxBloomLevel() - 1) *
+				benchmark_config.getBitsPerLevel();
+
+		int height = (bits_per_key + bits - 1) / bits;
+		int depth = 0;
+		while ((depth <= height) && ((height - depth) * bits > covered_bits)) {
+			depth++;
+		}
+
+		return depth - 1;
+	}
+
+	/*
+	 * times intersections at every fan-out over the density and overlap
+	 * grid, varying one while the other stays at its configured value
+	 */
+	public static void testFanOut() {
+		double default_density = set_density;
+		double default_overlap = set_overlap;
+
+		for (int bits : fan_out_bits) {
+			VectorTreeConfig config = benchmark_config.withBitsPerLevel(bits)
+					.withMaxBloomLevel(getEquivalentBloomLevel(bits));
+
+			for (double density : grid_densities) {
+				set_density = density;
+				System.out.print(bits + "\tdensity\t" + density + "\t");
+				testMultiIntersect(config);
+			}
+			set_density = default_density;
+
+			for (double overlap : grid_overlaps) {
+				set_overlap = overlap;
+				System.out.print(bits + "\toverlap\t" + overlap + "\t");
+				testMultiIntersect(config);
+			}
+			set_overlap = default_overlap;
+		}
 	}
 
+	/*
+	 * compares building a tree key by key against a bulk load of the same
+	 * sorted keys
+	 */
+	public static void testBulkLoad() {
+		int[] keys = DataGenerator.generateUniform(set_size, set_density);
+
+		// the generator may leave runs of duplicates slightly out of order
+		Arrays.sort(keys);
+
+		Record[] records = new Record[keys.length];
+		for (int i=0; i<keys.length; i++)
+			records[i] = new Record();
+
+		for (int n=0; n<repetitions; n++) {
+			// start both builds from a collected heap
+			System.gc();
+			long startTime = System.nanoTime();
+			VectorTree inserted = new VectorTree(benchmark_config, true);
+			for (int i=0; i<keys.length; i++)
+				inserted.insert(keys[i], records[i]);
+			long insert_duration = System.nanoTime() - startTime;
+			int inserted_leaves = inserted._root.getLeaves();
+			inserted = null;
+
+			System.gc();
+			startTime = System.nanoTime();
+			VectorTree loaded = bulkLoad(keys, records, true, benchmark_config);
+			long load_duration = System.nanoTime() - startTime;
+
+			System.out.print((insert_duration / 1000000.0) + "\t" + (load_duration / 1000000.0) + "\t"
+					+ (inserted_leaves == loaded._root.getLeaves()));
+			loaded = null;
+
+			// optionally time the partitioned build on a pool of the given size
+			if (parallelism > 0) {
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+				System.gc();
+				startTime = System.nanoTime();
+				VectorTree built = bulkLoadParallel(keys, records, true, benchmark_config, pool);
+				long parallel_duration = System.nanoTime() - startTime;
+				System.out.print("\t" + (parallel_duration / 1000000.0) + "\t"
+						+ (inserted_leaves == built._root.getLeaves()));
+
+				pool.shutdown();
+			}
+			System.out.println();
+		}
+	}
 
 	public static void main(String[] args) throws IOException {
 		
 		if (args.length < 7) {
-			System.err.println("Arguments: max_bloom_lvl bloom_size_offset num_sets set_size set_density set_overlap repetitions");
+			System.err.println("Arguments: max_bloom_lvl bloom_size_offset num_sets set_size set_density set_overlap repetitions [parallelism]");
 			return;
 		}
 		
-		max_bloom_level = Integer.parseInt(args[0]);
-		bloom_size_offset =  Integer.parseInt(args[1]);
+		benchmark_config = VectorTreeConfig.DEFAULT
+				.withMaxBloomLevel(Integer.parseInt(args[0]))
+				.withBloomSizeOffset(Integer.parseInt(args[1]));
 		num_sets = Integer.parseInt(args[2]);
 		set_size = Integer.parseInt(args[3]);
 		set_density = Double.parseDouble(args[4]);
 		set_overlap = Double.parseDouble(args[5]);
 		repetitions = Integer.parseInt(args[6]);
+		if (args.length > 7)
+			parallelism = Integer.parseInt(args[7]);
 		
 //		test4();
+//		testBulkLoad();
+//		testFanOut();
+//		testAdaptiveBloomFilters();
+//		testEstimateIntersection();
+//		testIntersectCount();
 		testMultiIntersect();
 	}
 }
@@ -0,0 +1,53 @@
+package vectortree;
+
+/*
+ * node standing for a chain of nodes that have a single child each
+ *
+ * the chain node is stored under the id of the first node of the chain, its
+ * head; the nodes below the head are not stored, down to the end of the
+ * chain, the first node with more than one child or at leaf level. the
+ * vector, counters and bloom filter are those the end node would have had,
+ * except that the filter is built for the depth of the head, the only depth
+ * at which the chain is ever looked up.
+ *
+ * the prefix of the end node is kept, which holds the offsets of every
+ * level skipped in its lowest bits.
+ */
+public class VectorTreeChainNode extends VectorTreeNode {
+
+	// members
+	private int _end_depth;
+	private int _end_prefix;
+
+
+	public VectorTreeChainNode(int depth, int vector_words, int end_depth, int end_prefix) {
+		super(depth, vector_words);
+
+		_end_depth = end_depth;
+		_end_prefix = end_prefix;
+	}
+
+	@Override
+	public int getEndDepth() {
+		return _end_depth;
+	}
+
+	public int getEndPrefix() {
+		return _end_prefix;
+	}
+
+	/*
+	 * @return int - the prefix of the node of the chain at the given depth
+	 */
+	public int getPrefixAt(int depth, int bits_per_level) {
+		return _end_prefix >> ((_end_depth - depth) * bits_per_level);
+	}
+
+	/*
+	 * @return int - the single offset set in the node of the chain at the
+	 *               given depth, which lies above the end
+	 */
+	public int getOffsetAt(int depth, int bits_per_level) {
+		return getPrefixAt(depth + 1, bits_per_level) & ((1 << bits_per_level) - 1);
+	}
+}
@@ -0,0 +1,386 @@
+package vectortree;
+
+/*
+ * immutable settings of a vector tree, fixed when the tree is created
+ *
+ * the key width and fan-out decide the shape of a tree, the remaining
+ * settings how its node bloom filters are built, and how intersections,
+ * which take them from the first tree given, check them. trees can only be
+ * intersected if they share a fan-out, and can only use their filters for
+ * it if they share every filter setting, since only then are filters at
+ * the same depth built with the same size and hash functions.
+ *
+ * every with*() method returns a modified copy, so a config can be shared
+ * by any number of trees, on any number of threads. the only state a
+ * config changes is what adaptive intersections of its trees learn about
+ * their filters, which it keeps for the intersections after them.
+ */
+public final class VectorTreeConfig {
+
+	public static final VectorTreeConfig DEFAULT = new VectorTreeConfig(Integer.SIZE, 4, 12, 2, Integer.MAX_VALUE, true, false,
+			0L, false, false, 2, 64, 1 << 6);
+
+	// the default for trees over 64-bit keys, see LongVectorTree; its
+	// max_bloom_level is moved down by the 8 extra levels at 4 bits, so that
+	// like DEFAULT it builds no filters
+	public static final VectorTreeConfig DEFAULT_LONG_KEYS = DEFAULT.withBitsPerKey(Long.SIZE).withMaxBloomLevel(20);
+
+	// members
+
+	// 32 for VectorTree, 64 for LongVectorTree
+	private final int _bits_per_key;
+
+	private final int _bits_per_level;
+
+	// nodes at or above this depth keep no bloom filter
+	private final int _max_bloom_level;
+
+	// log2 of the filter bits per expected key
+	private final int _bloom_size_offset;
+
+	// nodes at or below this depth use cache-line-blocked bloom filters
+	private final int _blocked_bloom_level;
+
+	// whether node bloom filters hash with a 64-bit mixer instead of
+	// modular arithmetic over a per-filter prime
+	private final boolean _fast_bloom_hashing;
+
+	// whether node bloom filters keep 4-bit counters, so that removed keys
+	// are taken out of them again; takes precedence over _blocked_bloom_level
+	private final boolean _counting_bloom_filters;
+
+	// the filters of a depth are seeded with _bloom_seed + depth
+	private final long _bloom_seed;
+
+	// whether chains of single-child nodes are kept as one VectorTreeChainNode
+	private final boolean _path_compression;
+
+	// whether intersections of the trees stop checking the filters of the
+	// depths where they do not prune often enough to pay for themselves,
+	// see BloomFilterPolicy
+	private final boolean _adaptive_bloom_filters;
+
+	// intersections AND the vectors of the trees holding the fewest leaves
+	// below a node first, ordering them at the root and anew at every node
+	// above this depth; 0 keeps the order given, see TreeOrder
+	private final int _reorder_depth;
+
+	// intersection estimates descend for as long as at most this many nodes
+	// survive at the next depth, see VectorTree.estimateIntersection()
+	private final int _estimate_nodes;
+
+	// intersection estimates read no filter of more words than this
+	private final int _estimate_filter_words;
+
+	// empty filters per depth, built on first use, whose hash parameters
+	// are shared by every filter created at that depth
+	private final KeyFilter[] _filter_prototypes;
+
+	// what adaptive intersections have learned about the filters of the
+	// trees, by the height of the intersection, created on first use
+	private final BloomFilterPolicy[] _learned_bloom_policies;
+
+
+	private VectorTreeConfig(
+			int bits_per_key,
+			int bits_per_level,
+			int max_bloom_level,
+			int bloom_size_offset,
+			int blocked_bloom_level,
+			boolean fast_bloom_hashing,
+			boolean counting_bloom_filters,
+			long bloom_seed,
+			boolean path_compression,
+			boolean adaptive_bloom_filters,
+			int reorder_depth,
+			int estimate_nodes,
+			int estimate_filter_words) {
+
+		if ((bits_per_key != Integer.SIZE) && (bits_per_key != Long.SIZE)) {
+			throw new IllegalArgumentException("bits per key must be " + Integer.SIZE + " or " + Long.SIZE);
+		}
+		if ((bits_per_level < 1) || (bits_per_level > Byte.SIZE)) {
+			throw new IllegalArgumentException("bits per level must be between 1 and " + Byte.SIZE);
+		}
+		if ((bloom_size_offset < 0) || (bloom_size_offset > Byte.SIZE)) {
+			throw new IllegalArgumentException("bloom size offset must be between 0 and " + Byte.SIZE);
+		}
+		if (reorder_depth < 0) {
+			throw new IllegalArgumentException("reorder depth must not be negative");
+		}
+		if (estimate_nodes < 1) {
+			throw new IllegalArgumentException("estimate nodes must be at least 1");
+		}
+		if (estimate_filter_words < 0) {
+			throw new IllegalArgumentException("estimate filter words must not be negative");
+		}
+
+		_bits_per_key = bits_per_key;
+		_bits_per_level = bits_per_level;
+		_max_bloom_level = max_bloom_level;
+		_bloom_size_offset = bloom_size_offset;
+		_blocked_bloom_level = blocked_bloom_level;
+		_fast_bloom_hashing = fast_bloom_hashing;
+		_counting_bloom_filters = counting_bloom_filters;
+		_bloom_seed = bloom_seed;
+		_path_compression = path_compression;
+		_adaptive_bloom_filters = adaptive_bloom_filters;
+		_reorder_depth = reorder_depth;
+		_estimate_nodes = estimate_nodes;
+		_estimate_filter_words = estimate_filter_words;
+
+		_filter_prototypes = new KeyFilter[getHeight()];
+		_learned_bloom_policies = new BloomFilterPolicy[getHeight() + 1];
+	}
+
+	public VectorTreeConfig withBitsPerKey(int bits_per_key) {
+		return new VectorTreeConfig(bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withBitsPerLevel(int bits_per_level) {
+		return new VectorTreeConfig(_bits_per_key, bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withMaxBloomLevel(int max_bloom_level) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withBloomSizeOffset(int bloom_size_offset) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withBlockedBloomLevel(int blocked_bloom_level) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withFastBloomHashing(boolean fast_bloom_hashing) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withCountingBloomFilters(boolean counting_bloom_filters) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	public VectorTreeConfig withBloomSeed(long bloom_seed) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	/*
+	 * a tree compressing paths stores a chain of nodes with a single child
+	 * each as one node, which the intersection crosses in a single step;
+	 * removals join the chains again, so that the tree never needs a
+	 * rebuild to stay compressed. only heap trees over int keys compress
+	 * paths
+	 */
+	public VectorTreeConfig withPathCompression(boolean path_compression) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	/*
+	 * an adaptive intersection times its filter checks and node visits, so
+	 * which filters it checks, though never its result, depends on the
+	 * timings; what it learns is kept with the config for the intersections
+	 * after it, see getLearnedBloomFilterPolicy(). an intersection takes the
+	 * setting of the first of its trees
+	 */
+	public VectorTreeConfig withAdaptiveBloomFilters(boolean adaptive_bloom_filters) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				adaptive_bloom_filters, _reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	/*
+	 * an intersection takes the setting of the first of its trees
+	 */
+	public VectorTreeConfig withReorderDepth(int reorder_depth) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, reorder_depth, _estimate_nodes, _estimate_filter_words);
+	}
+
+	/*
+	 * an estimate takes the setting of the first of its trees; the more
+	 * nodes, the closer and the slower the estimate
+	 */
+	public VectorTreeConfig withEstimateNodes(int estimate_nodes) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, estimate_nodes, _estimate_filter_words);
+	}
+
+	/*
+	 * an estimate takes the setting of the first of its trees
+	 */
+	public VectorTreeConfig withEstimateFilterWords(int estimate_filter_words) {
+		return new VectorTreeConfig(_bits_per_key, _bits_per_level, _max_bloom_level, _bloom_size_offset,
+				_blocked_bloom_level, _fast_bloom_hashing, _counting_bloom_filters, _bloom_seed, _path_compression,
+				_adaptive_bloom_filters, _reorder_depth, _estimate_nodes, estimate_filter_words);
+	}
+
+	public int getBitsPerKey() {
+		return _bits_per_key;
+	}
+
+	public int getBitsPerLevel() {
+		return _bits_per_level;
+	}
+
+	public int getMaxBloomLevel() {
+		return _max_bloom_level;
+	}
+
+	public int getBloomSizeOffset() {
+		return _bloom_size_offset;
+	}
+
+	public int getBlockedBloomLevel() {
+		return _blocked_bloom_level;
+	}
+
+	public boolean usesFastBloomHashing() {
+		return _fast_bloom_hashing;
+	}
+
+	public boolean usesCountingBloomFilters() {
+		return _counting_bloom_filters;
+	}
+
+	public long getBloomSeed() {
+		return _bloom_seed;
+	}
+
+	public boolean compressesPaths() {
+		return _path_compression;
+	}
+
+	public boolean adaptsBloomFilters() {
+		return _adaptive_bloom_filters;
+	}
+
+	public int getReorderDepth() {
+		return _reorder_depth;
+	}
+
+	public int getEstimateNodes() {
+		return _estimate_nodes;
+	}
+
+	public int getEstimateFilterWords() {
+		return _estimate_filter_words;
+	}
+
+	/*
+	 * @return int - the number of levels of a tree, the last of which may
+	 *               cover more bits than are left of the key
+	 */
+	public int getHeight() {
+		return (_bits_per_key + _bits_per_level - 1) / _bits_per_level;
+	}
+
+	/*
+	 * @return boolean - whether filters at the same depth of trees built
+	 *                   with either config can be intersected
+	 */
+	public boolean hasSameFilters(VectorTreeConfig other) {
+		return (_bits_per_key == other._bits_per_key) &&
+				(_bits_per_level == other._bits_per_level) &&
+				(_max_bloom_level == other._max_bloom_level) &&
+				(_bloom_size_offset == other._bloom_size_offset) &&
+				(_blocked_bloom_level == other._blocked_bloom_level) &&
+				(_fast_bloom_hashing == other._fast_bloom_hashing) &&
+				(_counting_bloom_filters == other._counting_bloom_filters) &&
+				(_bloom_seed == other._bloom_seed);
+	}
+
+	int getFilterType(int depth) {
+		if (_counting_bloom_filters) {
+			return VectorTreeNode.COUNTING_FILTER;
+		}
+		if (depth >= _blocked_bloom_level) {
+			return VectorTreeNode.BLOCKED_FILTER;
+		}
+		return VectorTreeNode.STANDARD_FILTER;
+	}
+
+	long getFilterSeed(int depth) {
+		return _bloom_seed + depth;
+	}
+
+	/*
+	 * @return int - log2 of the number of keys below a node at the given
+	 *               depth, capped so that the size of its filter fits an int
+	 */
+	int getExpectedNumberOfBits(int depth) {
+		int covered_bits = Math.min(_bits_per_key, (getHeight() - depth) * _bits_per_level);
+
+		return Math.min(covered_bits, Integer.SIZE - 2 - _bloom_size_offset);
+	}
+
+	/*
+	 * @return KeyFilter - an empty filter for a node at the given depth
+	 */
+	KeyFilter createBloomFilter(int depth) {
+		return getFilterPrototype(depth).emptyCopy();
+	}
+
+	/*
+	 * container trees intersect down to the holders of their containers, so
+	 * their intersections are shorter than the trees
+	 *
+	 * @return BloomFilterPolicy - the policy the adaptive intersections of
+	 *                             the given height of trees of this config
+	 *                             fork from and finish into
+	 */
+	synchronized BloomFilterPolicy getLearnedBloomFilterPolicy(int height) {
+		if (_learned_bloom_policies[height] == null) {
+			_learned_bloom_policies[height] = new BloomFilterPolicy(height, _max_bloom_level, true);
+		}
+
+		return _learned_bloom_policies[height];
+	}
+
+	/*
+	 * @return KeyFilter - the filter whose hash parameters all filters of
+	 *                     nodes at the given depth share
+	 */
+	synchronized KeyFilter getFilterPrototype(int depth) {
+		if (_filter_prototypes[depth] == null) {
+			int expected_number_of_bits = getExpectedNumberOfBits(depth);
+			int expected_number_of_objects = 1 << expected_number_of_bits;
+
+			int filter_size = (depth <= _max_bloom_level) ? 1 : 1 << (expected_number_of_bits + _bloom_size_offset);
+
+			int filter_type = getFilterType(depth);
+			if (filter_type == VectorTreeNode.COUNTING_FILTER) {
+				_filter_prototypes[depth] = new CountingBloomFilter(getFilterSeed(depth), filter_size,
+						expected_number_of_objects);
+			} else if (filter_type == VectorTreeNode.BLOCKED_FILTER) {
+				_filter_prototypes[depth] = new BlockedBloomFilter(getFilterSeed(depth), filter_size,
+						expected_number_of_objects);
+			} else {
+				_filter_prototypes[depth] = new BloomFilter(getFilterSeed(depth), filter_size,
+						expected_number_of_objects, _fast_bloom_hashing);
+			}
+		}
+
+		return _filter_prototypes[depth];
+	}
+}
@@ -0,0 +1,33 @@
+package vectortree;
+
+/*
+ * node of the deepest vector level of a ContainerVectorTree, holding a leaf
+ * container under each offset set in its vector
+ *
+ * the offset of a container, appended to the prefix of the node, gives the
+ * upper 16 bits of the keys it holds.
+ */
+public class VectorTreeContainerNode extends VectorTreeNode {
+
+	// members
+	private LeafContainer[] _containers;
+
+
+	public VectorTreeContainerNode(int depth, int vector_words, int offsets) {
+		super(depth, vector_words);
+
+		_containers = new LeafContainer[offsets];
+	}
+
+	/*
+	 * @return LeafContainer - the container under the offset, null if the
+	 *                         offset is not set
+	 */
+	public LeafContainer getContainer(int offset) {
+		return _containers[offset];
+	}
+
+	public void setContainer(int offset, LeafContainer container) {
+		_containers[offset] = container;
+	}
+}
@@ -1,44 +1,49 @@
 package vectortree;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
 
 
-public class VectorTreeIterator implements Iterator<Integer> {
+public class VectorTreeIterator implements PrimitiveIterator.OfInt {
 
 	public static class Matches {
-		protected int _prefix;
-		protected ArrayList<Short> _offsets;
+		// key of the first offset covered by the vector
+		protected int _base;
+
+		// one word of an intersected leaf vector, one bit per matching offset
+		protected long _vector;
 		
 		public Matches(
-				int prefix,
-				ArrayList<Short> offsets) {
+				int base,
+				long vector) {
 
-			_prefix = prefix;
-			_offsets = offsets;
+			_base = base;
+			_vector = vector;
 		}
 	}
 
 	// members
 	
-	private LinkedList<Matches> _queue;
+	private ArrayDeque<Matches> _queue;
 	private ArrayList<HashMap<Integer, ArrayList<Record>>> _all_registrants;
-	private int _current_matchset;
-	private short _position_in_current_matchset;
-	private short _num_bits;
+
+	// base key of the current matchset, and its offsets not yet returned
+	private int _current_base;
+	private long _remaining_in_current_matchset;
 
 	
 	public VectorTreeIterator(
-			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants,
-			short num_bits) {
+			ArrayList<HashMap<Integer, ArrayList<Record>>> all_registrants) {
 		_all_registrants = all_registrants;
-		_num_bits = num_bits;
 		
-		_queue = new LinkedList<Matches>();
+		_queue = new ArrayDeque<Matches>();
 		
-		_current_matchset = 0;
-		_position_in_current_matchset = 0;
+		_current_base = 0;
+		_remaining_in_current_matchset = 0;
 	}
 
 
@@ -46,21 +51,39 @@ public class VectorTreeIterator implements Iterator<Integer> {
 	public void enqueue(Matches matches) {
 		_queue.add(matches);
 	}
+
+	public void enqueueAll(List<Matches> matches) {
+		_queue.addAll(matches);
+	}
 	
-	
-	public boolean hasNext() {
-		// is queue empty?
-		if (_queue.size() == 0){ 
+	/*
+	 * makes the next non-empty matchset current
+	 *
+	 * the base iterator pulls from its queue of precomputed matches;
+	 * subclasses may instead produce matchsets on demand.
+	 * 
+	 * @return boolean - false if no matchsets are left
+	 */
+	protected boolean advance() {
+		Matches matches = _queue.poll();
+
+		if (matches == null) {
 			return false;
 		}
 
-		// are we on the last matchset in the list?
-		if (_current_matchset == _queue.size() - 1) {
-			// if so, are there still matches to process?
-			Matches current_matches = _queue.get(_current_matchset);
-			
-			if ((current_matches._offsets.isEmpty()) ||
-					(_position_in_current_matchset >= current_matches._offsets.size())) {
+		setCurrentMatchset(matches._base, matches._vector);
+		return true;
+	}
+
+	protected void setCurrentMatchset(int base, long vector) {
+		_current_base = base;
+		_remaining_in_current_matchset = vector;
+	}
+	
+	public boolean hasNext() {
+		// skip ahead until a matchset with unreturned offsets is current
+		while (_remaining_in_current_matchset == 0) {
+			if (advance() == false) {
 				return false;
 			}
 		}
@@ -69,42 +92,64 @@ public class VectorTreeIterator implements Iterator<Integer> {
 	}
 
 	public Integer next() {
+		return nextInt();
+	}
+
+	public int nextInt() {
 
 		// is there anything left to process?
 		if (hasNext() == false) {
-			return null;
-		}
-		
-		// we aren't at the end of the queue, so load whatever is waiting
-		Matches current_matches = _queue.get(_current_matchset);
-
-		if ((current_matches._offsets.isEmpty()) ||
-			(_position_in_current_matchset >= current_matches._offsets.size())) {
-
-			moveToNextMatchset();
-			current_matches = _queue.get(_current_matchset);
+			throw new NoSuchElementException();
 		}
 
-		int offset = current_matches._offsets.get(_position_in_current_matchset);
-		int prefix = current_matches._prefix;
+		// take the lowest remaining offset
+		int offset = Long.numberOfTrailingZeros(_remaining_in_current_matchset);
 		
-		int key = (prefix << _num_bits) + offset;
+		int key = _current_base + offset;
 		
 		
-		_position_in_current_matchset += 1;
+		_remaining_in_current_matchset &= _remaining_in_current_matchset - 1;
 
 		return key;
 	}
-	
-	private void moveToNextMatchset() {
-		_current_matchset += 1;
-		_position_in_current_matchset = 0;
-	}
 
+	/*
+	 * hands every remaining key to the consumer, a matchset at a time
+	 */
 	@Override
-	public void remove() {
-		// TODO Auto-generated method stub
-		
+	public void forEachRemaining(IntConsumer action) {
+		while (hasNext()) {
+			int base = _current_base;
+			long remaining = _remaining_in_current_matchset;
+			_remaining_in_current_matchset = 0;
+
+			while (remaining != 0) {
+				action.accept(base + Long.numberOfTrailingZeros(remaining));
+				remaining &= remaining - 1;
+			}
+		}
 	}
 
+	/*
+	 * copies up to buffer.length of the remaining keys into the buffer
+	 * 
+	 * @return int - the number of keys copied, 0 once the iterator is exhausted
+	 */
+	public int toArray(int[] buffer) {
+		int count = 0;
+
+		while ((count < buffer.length) && hasNext()) {
+			int base = _current_base;
+			long remaining = _remaining_in_current_matchset;
+
+			while ((remaining != 0) && (count < buffer.length)) {
+				buffer[count++] = base + Long.numberOfTrailingZeros(remaining);
+				remaining &= remaining - 1;
+			}
+
+			_remaining_in_current_matchset = remaining;
+		}
+
+		return count;
+	}
 }
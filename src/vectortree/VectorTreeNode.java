@@ -3,41 +3,177 @@ package vectortree;
 import java.io.IOException;
 
 public class VectorTreeNode {
-	private short _vector;
+
+	// kinds of bloom filter a node can keep
+	public static final int STANDARD_FILTER = 0;
+	public static final int BLOCKED_FILTER = 1;
+	public static final int COUNTING_FILTER = 2;
+
+	// one bit per child offset; nodes with more than 64 offsets keep all
+	// of them in _wide_vector instead
+	private long _vector;
+	private long[] _wide_vector;
 	private int _leaves;
 	private int _subnodes;
 	private int _depth;
 
-	private BloomFilter _bloom_filter;
+	// created on the first key added, since most nodes are never filtered;
+	// its kind and size are decided by the config of the tree
+	private KeyFilter _bloom_filter;
 
-	public VectorTreeNode(int depth, short bits_per_level, short bits_per_key) {
+	public VectorTreeNode(int depth, int vector_words) {
 		_vector = 0;
 		_leaves = 0;
 		_subnodes = 0;
 		_depth = depth;
 
-		int expected_number_of_bits = bits_per_key - bits_per_level * depth;
-		int expected_number_of_objects = new Double(Math.pow(2, expected_number_of_bits)).intValue();
-		
-		int filter_size = (depth <= VectorTree.max_bloom_level) ? 1 : 1 << (expected_number_of_bits + VectorTree.bloom_size_offset);
+		if (vector_words > 1) {
+			_wide_vector = new long[vector_words];
+		}
+	}
 
-//		trace("depth " +  depth  + ", filter_size " + filter_size + ", expected_number_of_objects: " + expected_number_of_objects);
-		
-		_bloom_filter = new BloomFilter(depth, filter_size, expected_number_of_objects);
+	/*
+	 * @return int - the number of 64-bit words holding the vector
+	 */
+	public int getVectorWordCount() {
+		return (_wide_vector == null) ? 1 : _wide_vector.length;
+	}
+
+	public long getVectorWord(int word) {
+		return (_wide_vector == null) ? _vector : _wide_vector[word];
 	}
 
-	public short getVector() {
+	/*
+	 * @return long - the vector of a node of up to 64 offsets
+	 */
+	public long getVector() {
 		return _vector;
 	}
 
-	public void setVector(short vector) {
-		_vector = vector;
+	public void setVectorWord(int word, long bits) {
+		if (_wide_vector == null) {
+			_vector = bits;
+		} else {
+			_wide_vector[word] = bits;
+		}
+	}
+
+	/*
+	 * @return boolean - whether the bit of the offset was not set before
+	 */
+	public boolean setBit(int offset) {
+		long word = getVectorWord(offset >>> 6);
+		long updated_word = word | (1L << offset);
+
+		setVectorWord(offset >>> 6, updated_word);
+		return updated_word != word;
+	}
+
+	/*
+	 * @return boolean - whether the bit of the offset was set before
+	 */
+	public boolean clearBit(int offset) {
+		long word = getVectorWord(offset >>> 6);
+		long updated_word = word & ~(1L << offset);
+
+		setVectorWord(offset >>> 6, updated_word);
+		return updated_word != word;
+	}
+
+	/*
+	 * @return int - the number of offsets set in the vector
+	 */
+	public int getBitCount() {
+		if (_wide_vector == null) {
+			return Long.bitCount(_vector);
+		}
+
+		int count = 0;
+		for (long word : _wide_vector) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		if (_wide_vector == null) {
+			return _vector == 0;
+		}
+
+		for (long word : _wide_vector) {
+			if (word != 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
-	public BloomFilter getBloomFilter() {
+	public int getDepth() {
+		return _depth;
+	}
+
+	/*
+	 * @return int - the depth whose offsets the vector holds, which lies
+	 *               below the depth of the node only for a chain node
+	 */
+	public int getEndDepth() {
+		return _depth;
+	}
+
+	/*
+	 * @return KeyFilter - the filter of this node, null if no key was ever added
+	 */
+	public KeyFilter getBloomFilter() {
 		return _bloom_filter;
 	}
 
+	/*
+	 * hands the filter of a node that is being replaced to its successor
+	 */
+	void setBloomFilter(KeyFilter bloom_filter) {
+		_bloom_filter = bloom_filter;
+	}
+
+	public void addToBloomFilter(int key, VectorTreeConfig config) {
+		if (_bloom_filter == null) {
+			_bloom_filter = config.createBloomFilter(_depth);
+		}
+
+		_bloom_filter.add(key);
+	}
+
+	/*
+	 * adds the distinct keys of a sorted run in one batch
+	 */
+	public void addAllToBloomFilter(int[] sorted_keys, int from, int to, VectorTreeConfig config) {
+		if (from >= to) {
+			return;
+		}
+
+		if (_bloom_filter == null) {
+			_bloom_filter = config.createBloomFilter(_depth);
+		}
+
+		KeyFilter filter = _bloom_filter;
+		filter.add(sorted_keys[from]);
+		for (int i = from + 1; i < to; i++) {
+			if (sorted_keys[i] != sorted_keys[i - 1]) {
+				filter.add(sorted_keys[i]);
+			}
+		}
+	}
+
+	/*
+	 * @return boolean - whether the filter was able to forget the key
+	 */
+	public boolean removeFromBloomFilter(int key) {
+		if (_bloom_filter == null) {
+			return false;
+		}
+
+		return _bloom_filter.remove(key);
+	}
+
 	public int getLeaves() {
 		return _leaves;
 	}
@@ -0,0 +1,238 @@
+package vectortree;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+
+/*
+ * spliterator over the keys of a multiway intersection
+ *
+ * a spliterator covers a set of surviving offsets below one inner node.
+ * splitting hands the lower half of those offsets to a new spliterator;
+ * once a single offset is left, the split descends into that child first,
+ * so every split falls on a subtree boundary. traversal is delegated to a
+ * LazyVectorTreeIterator started below the node, or for container trees to
+ * a ContainerVectorTreeIterator, whose splits stop at the holders of their
+ * containers.
+ *
+ * the trees must not be modified while the spliterator is in use.
+ */
+public class VectorTreeSpliterator implements Spliterator.OfInt {
+
+	// members
+
+	private ArrayList<VectorTree> _trees;
+	private BloomFilterPolicy _bloom_policy;
+	private KeyFilter[] _bloom_filters;
+	private IntersectionStats _stats;
+
+	// the inner node covered, and its offsets not yet split off
+	private int _prefix;
+	private int _depth;
+	private long[] _offsets;
+	private long _estimated_size;
+
+	// the chains covering the children of the node, null if no tree
+	// compresses paths
+	private VectorTreeNode[] _chains;
+
+	// the deepest inner node a split may descend to
+	private int _last_depth;
+
+	// created on first traversal, after which no more splits take place
+	private VectorTreeIterator _iterator;
+
+
+	public VectorTreeSpliterator(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		this(trees, use_bloom_filter, null);
+	}
+
+	/*
+	 * counts into stats, unless it is null; every split counts into the
+	 * same object, and starts from the choices of where filters are checked
+	 * made before it split off
+	 */
+	public VectorTreeSpliterator(ArrayList<VectorTree> trees, boolean use_bloom_filter, IntersectionStats stats) {
+		this(trees, createBloomFilterPolicy(trees, use_bloom_filter), stats, 0, 0,
+				new long[trees.get(0).getVectorWords()],
+				VectorTree.getMinimumLeaves(0, 0, trees),
+				VectorTree.compressesPaths(trees) ? new VectorTreeNode[trees.size()] : null);
+
+		// the root is never inside a chain, so no chains cover its children
+		VectorTree.getSurvivors(0, 0, trees, _bloom_policy, _bloom_filters, _offsets, _stats);
+	}
+
+	private static BloomFilterPolicy createBloomFilterPolicy(ArrayList<VectorTree> trees, boolean use_bloom_filter) {
+		VectorTree.checkFanOut(trees);
+		return VectorTree.createBloomFilterPolicy(trees, use_bloom_filter);
+	}
+
+	private VectorTreeSpliterator(
+			ArrayList<VectorTree> trees,
+			BloomFilterPolicy bloom_policy,
+			IntersectionStats stats,
+			int prefix,
+			int depth,
+			long[] offsets,
+			long estimated_size,
+			VectorTreeNode[] chains) {
+
+		_trees = trees;
+		_bloom_policy = bloom_policy;
+		_bloom_filters = new KeyFilter[trees.size()];
+		_stats = stats;
+		_prefix = prefix;
+		_depth = depth;
+		_offsets = offsets;
+		_estimated_size = estimated_size;
+		_chains = chains;
+
+		VectorTree shape = trees.get(0);
+		_last_depth = ContainerVectorTree.holdContainers(trees) ?
+				((ContainerVectorTree)shape).getContainerDepth() - 1 : shape.getHeight() - 2;
+	}
+
+	private VectorTreeIterator getIterator() {
+		if (_iterator != null) {
+			return _iterator;
+		}
+
+		if (ContainerVectorTree.holdContainers(_trees)) {
+			_iterator = new ContainerVectorTreeIterator(
+					VectorTree.getAllRegistrants(_trees),
+					_trees,
+					_bloom_policy,
+					_stats,
+					_prefix,
+					_depth,
+					_offsets);
+		} else {
+			_iterator = new LazyVectorTreeIterator(
+					VectorTree.getAllRegistrants(_trees),
+					_trees.get(0).getBitsPerLevel(),
+					_trees.get(0).getHeight(),
+					_trees,
+					_bloom_policy,
+					_stats,
+					_prefix,
+					_depth,
+					_offsets,
+					_chains);
+		}
+
+		return _iterator;
+	}
+
+	@Override
+	public Spliterator.OfInt trySplit() {
+
+		// has traversal already begun?
+		if (_iterator != null) {
+			return null;
+		}
+
+		VectorTree shape = _trees.get(0);
+
+		// while only one child is covered, descend into it, as long as that
+		// child is an inner node
+		while (countOffsets(_offsets) == 1) {
+			if (_depth + 1 > _last_depth) {
+				return null;
+			}
+
+			int word = 0;
+			while (_offsets[word] == 0) {
+				word++;
+			}
+			int offset = (word << 6) + Long.numberOfTrailingZeros(_offsets[word]);
+			int child = (_prefix << shape.getBitsPerLevel()) + offset;
+
+			VectorTreeNode[] child_chains = (_chains == null) ? null : new VectorTreeNode[_trees.size()];
+
+			_prefix = child;
+			_depth += 1;
+			VectorTree.getSurvivors(child, _depth, _trees, _bloom_policy, _bloom_filters, _offsets, _stats,
+					_chains, child_chains);
+			_estimated_size = VectorTree.getMinimumLeaves(child, _depth, _trees, _chains);
+			_chains = child_chains;
+		}
+
+		int count = countOffsets(_offsets);
+		if (count == 0) {
+			return null;
+		}
+
+		// hand the lower half of the offsets, which come first in encounter
+		// order, to the new spliterator
+		long[] lower = new long[_offsets.length];
+		int word = 0;
+		for (int moved = count / 2; moved > 0; moved--) {
+			while (_offsets[word] == 0) {
+				word++;
+			}
+
+			long lowest = Long.lowestOneBit(_offsets[word]);
+			lower[word] |= lowest;
+			_offsets[word] &= ~lowest;
+		}
+
+		_estimated_size -= _estimated_size / 2;
+
+		BloomFilterPolicy bloom_policy = (_bloom_policy != null) ? _bloom_policy.fork() : null;
+
+		return new VectorTreeSpliterator(_trees, bloom_policy, _stats, _prefix, _depth, lower, _estimated_size,
+				_chains);
+	}
+
+	private static int countOffsets(long[] offsets) {
+		int count = 0;
+		for (long word : offsets) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean tryAdvance(IntConsumer action) {
+		VectorTreeIterator iterator = getIterator();
+
+		if (iterator.hasNext() == false) {
+			return false;
+		}
+
+		action.accept(iterator.nextInt());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(IntConsumer action) {
+		getIterator().forEachRemaining(action);
+	}
+
+	/*
+	 * the smallest input subtree bounds the size of the intersection
+	 */
+	@Override
+	public long estimateSize() {
+		return _estimated_size;
+	}
+
+	/*
+	 * keys are handed out in ascending order, and every split covers keys
+	 * below those left to this spliterator
+	 */
+	@Override
+	public int characteristics() {
+		return ORDERED | SORTED | DISTINCT | NONNULL;
+	}
+
+	/*
+	 * @return Comparator<? super Integer> - null, since keys are sorted in
+	 *                                        their natural order
+	 */
+	@Override
+	public Comparator<? super Integer> getComparator() {
+		return null;
+	}
+}